@@ -0,0 +1,645 @@
+package org.spoorn.simplebackup;
+
+import lombok.extern.log4j.Log4j2;
+import org.spoorn.simplebackup.compressors.LZ4Compressor;
+import org.spoorn.simplebackup.compressors.MultiDestinationCompressor;
+import org.spoorn.simplebackup.compressors.ZipCompressor;
+import org.spoorn.simplebackup.config.BackupSettings;
+import org.spoorn.simplebackup.io.BackupEncryption;
+import org.spoorn.simplebackup.io.BackupExtractor;
+import org.spoorn.simplebackup.io.DirectoryCheckpoint;
+import org.spoorn.simplebackup.io.DirectoryCopier;
+import org.spoorn.simplebackup.io.RegionSnapshot;
+import org.spoorn.simplebackup.progress.BackupProgress;
+import org.spoorn.simplebackup.progress.ProgressBus;
+import org.spoorn.simplebackup.storage.LocalStorageBackend;
+import org.spoorn.simplebackup.util.HostCoordinator;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+import org.spoorn.simplebackup.util.StorageUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Backs up a world folder to a backup folder.  Everything it needs is in its {@link BackupSettings}, and it doesn't
+ * touch the game, so the mod and the command line tool run the exact same backups.
+ */
+@Log4j2
+public class BackupEngine {
+
+    private static final String LAST_BACKUP_FILE = "last-backup.properties";
+    // Key suffix for the name of the last backup of a world, as world folder names can't have a '/' in them
+    private static final String LAST_BACKUP_NAME_SUFFIX = "/name";
+    // Slack for filesystems with coarse modified time granularity
+    private static final long MODIFIED_TIME_SLACK_MILLIS = 2000;
+    // In the metadata folder, with a locked file per partial backup being written
+    private static final String IN_PROGRESS_FOLDER = "in-progress";
+    private static final String LOCK_EXTENSION = ".lock";
+    // File locks belong to the whole JVM and can't tell its backups apart, so claims in this JVM are tracked here too
+    private static final Set<Path> CLAIMED = ConcurrentHashMap.newKeySet();
+
+    private final BackupSettings settings;
+
+    public BackupEngine(BackupSettings settings) {
+        this.settings = settings;
+    }
+
+    public BackupSettings getSettings() {
+        return this.settings;
+    }
+
+    public Path getBackupPath() {
+        return this.settings.backupPath;
+    }
+
+    public Path getMetadataPath() {
+        return SimpleBackupUtil.getMetadataPath(this.settings.backupPath);
+    }
+
+    /**
+     * @return Epoch millis of when the last successful backup of a world started
+     */
+    public OptionalLong getLastBackupTime(String worldFolderName) {
+        Optional<String> value = getLastBackupProperty(worldFolderName);
+        try {
+            return value.isPresent() ? OptionalLong.of(Long.parseLong(value.get())) : OptionalLong.empty();
+        } catch (NumberFormatException e) {
+            log.error("Invalid last backup time {} for world {}", value.get(), worldFolderName);
+            return OptionalLong.empty();
+        }
+    }
+
+    /**
+     * @return Time string the last successful backup of a world is named after, which incremental backups are based on
+     */
+    public Optional<String> getLastBackupTimeStr(String worldFolderName) {
+        return getLastBackupProperty(worldFolderName + LAST_BACKUP_NAME_SUFFIX);
+    }
+
+    private Optional<String> getLastBackupProperty(String key) {
+        Path file = getMetadataPath().resolve(LAST_BACKUP_FILE);
+        if (Files.exists(file)) {
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(file)) {
+                properties.load(reader);
+                return Optional.ofNullable(properties.getProperty(key));
+            } catch (Exception e) {
+                log.error("Could not read last backup time from " + file, e);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @param timeStr Time string the backup is named after
+     */
+    public void setLastBackupTime(String worldFolderName, long startMillis, String timeStr) {
+        // Engines are cheap and made per backup, so lock on something they all share
+        synchronized (BackupEngine.class) {
+            Path folder = getMetadataPath();
+            Path file = folder.resolve(LAST_BACKUP_FILE);
+            Path tmp = folder.resolve(LAST_BACKUP_FILE + ".tmp");
+            try {
+                Files.createDirectories(folder);
+                Properties properties = new Properties();
+                if (Files.exists(file)) {
+                    try (Reader reader = Files.newBufferedReader(file)) {
+                        properties.load(reader);
+                    }
+                }
+                properties.setProperty(worldFolderName, String.valueOf(startMillis));
+                properties.setProperty(worldFolderName + LAST_BACKUP_NAME_SUFFIX, timeStr);
+                try (Writer writer = Files.newBufferedWriter(tmp)) {
+                    properties.store(writer, "Start time and name of the last successful backup per world");
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.error("Could not save last backup time to " + file, e);
+            }
+        }
+    }
+
+    /**
+     * @return True if backups of this format are written to a .partial output with checkpoints, and can be resumed
+     *      after the server is killed mid-backup.  Encrypted backups aren't
+     */
+    public boolean isResumable(String backupFormat) {
+        return this.settings.enableResumableBackups && !isEncrypted(backupFormat) && !isThrottled(backupFormat)
+                && (SimpleBackupUtil.ZIP_FORMAT.equals(backupFormat) || SimpleBackupUtil.DIRECTORY_FORMAT.equals(backupFormat));
+    }
+
+    /**
+     * @return True if backups of this format are encrypted.  DIRECTORY backups never are
+     */
+    public boolean isEncrypted(String backupFormat) {
+        return this.settings.encryption != null && !SimpleBackupUtil.DIRECTORY_FORMAT.equals(backupFormat);
+    }
+
+    /**
+     * @return True if ZIP or LZ4 backups read the world through the host's bandwidth budget, which only the multi
+     *      destination pipeline does.  DIRECTORY backups are throttled by {@link DirectoryCopier}
+     */
+    private boolean isThrottled(String backupFormat) {
+        return this.settings.hostCoordinator != null && this.settings.hostCoordinator.isBandwidthLimited()
+                && !SimpleBackupUtil.DIRECTORY_FORMAT.equals(backupFormat);
+    }
+
+    /**
+     * Waits for this backup's turn on the host, see {@link HostCoordinator}.  Take it before preparing anything, so
+     * the backup is of the world as it is when it actually runs.
+     *
+     * @param owner Who is backing up, i.e. the world folder name
+     * @return Slot to close once the backup is done, or null if backups aren't coordinated.  If the shared folder can't
+     *      be used, backups go ahead uncoordinated rather than not at all
+     * @throws InterruptedException If interrupted while waiting, i.e. the server is stopping
+     */
+    public HostCoordinator.Slot acquireHostSlot(String owner) throws InterruptedException {
+        return acquireHostSlot(owner, true, 0);
+    }
+
+    /**
+     * @param jitter True to first wait a random jitter, for scheduled backups
+     * @param maxWaitMillis Most time to wait for a turn, or 0 to wait as long as it takes.  After that the backup goes
+     *      ahead uncoordinated
+     * @see #acquireHostSlot(String)
+     */
+    public HostCoordinator.Slot acquireHostSlot(String owner, boolean jitter, long maxWaitMillis) throws InterruptedException {
+        if (this.settings.hostCoordinator == null) {
+            return null;
+        }
+        try {
+            HostCoordinator.Slot slot = this.settings.hostCoordinator.acquireSlot(owner, jitter, maxWaitMillis);
+            if (slot == null) {
+                log.warn("Backing up {} without waiting any longer for its turn on the host", owner);
+            }
+            return slot;
+        } catch (IOException e) {
+            log.error("Could not coordinate the backup of " + owner + " with other servers on the host.  Backing up anyway", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return File name of a ZIP or LZ4 backup, or folder name of a DIRECTORY backup
+     */
+    public String getBackupName(String timeStr, String backupFormat) {
+        String name;
+        if (SimpleBackupUtil.ZIP_FORMAT.equals(backupFormat)) {
+            name = timeStr + ZipCompressor.ZIP_EXTENSION;
+        } else if (SimpleBackupUtil.LZ4_FORMAT.equals(backupFormat)) {
+            name = timeStr + LZ4Compressor.TAR_LZ4_EXTENSION;
+        } else {
+            return timeStr;
+        }
+        return isEncrypted(backupFormat) ? name + BackupEncryption.ENCRYPTED_EXTENSION : name;
+    }
+
+    public Path getPartialBackupPath(String timeStr, String backupFormat) {
+        if (SimpleBackupUtil.ZIP_FORMAT.equals(backupFormat)) {
+            return getBackupPath().resolve(timeStr + ZipCompressor.ZIP_EXTENSION + SimpleBackupUtil.PARTIAL_EXTENSION);
+        } else {
+            return getBackupPath().resolve(timeStr + SimpleBackupUtil.PARTIAL_EXTENSION);
+        }
+    }
+
+    public Path getCheckpointPath(String timeStr) {
+        return getBackupPath().resolve(timeStr + SimpleBackupUtil.CHECKPOINT_EXTENSION);
+    }
+
+    /**
+     * Looks for an interrupted backup of the given format that can be resumed.  Partial backups being written by
+     * another backup, in this process or another, are left alone.  Of the rest, ones that never reached their first
+     * checkpoint and all but the most recent are cleaned up.
+     *
+     * @return Timestamp name of the most recent resumable backup
+     */
+    public Optional<String> findResumableBackup(String backupFormat) {
+        String suffix = SimpleBackupUtil.ZIP_FORMAT.equals(backupFormat) ? ZipCompressor.ZIP_EXTENSION + SimpleBackupUtil.PARTIAL_EXTENSION : SimpleBackupUtil.PARTIAL_EXTENSION;
+        File[] partials = getBackupPath().toFile().listFiles((dir, name) -> name.endsWith(suffix));
+        if (partials == null) {
+            return Optional.empty();
+        }
+        // Newest first, as names sort by time
+        Arrays.sort(partials, Comparator.comparing(File::getName).reversed());
+
+        String latest = null;
+        for (File partial : partials) {
+            // ZIP partials are files, DIRECTORY partials are folders
+            if (partial.isDirectory() != SimpleBackupUtil.DIRECTORY_FORMAT.equals(backupFormat)) {
+                continue;
+            }
+            String timeStr = partial.getName().substring(0, partial.getName().length() - suffix.length());
+            try (PartialClaim claim = claimPartial(timeStr)) {
+                if (claim == null) {
+                    log.info("Partial backup at {} is still being written by another backup", partial);
+                    continue;
+                }
+                // It may have finished between listing and claiming it
+                if (!partial.exists()) {
+                    continue;
+                }
+                Path checkpoint = getCheckpointPath(timeStr);
+                if (latest == null && Files.exists(checkpoint)) {
+                    latest = timeStr;
+                } else {
+                    log.info("Partial backup at {} {}.  Cleaning it up", partial,
+                            Files.exists(checkpoint) ? "is older than another one that will be resumed" : "has no checkpoint and can't be resumed");
+                    SimpleBackupUtil.cleanupFailedBackup(partial.toPath());
+                    Files.deleteIfExists(checkpoint);
+                }
+            } catch (IOException e) {
+                log.error("Could not clean up partial backup at " + partial, e);
+            }
+        }
+        return Optional.ofNullable(latest);
+    }
+
+    /**
+     * Claims a partial backup for writing, so no other backup in this or another process resumes or deletes it while
+     * it's written.  The OS drops the lock if the process dies, so a killed backup's partial can be claimed again.
+     *
+     * @return Claim to close once done with the partial, or null if another backup holds it
+     */
+    private PartialClaim claimPartial(String timeStr) {
+        Path lockFile = getMetadataPath().resolve(IN_PROGRESS_FOLDER).resolve(timeStr + LOCK_EXTENSION);
+        if (!CLAIMED.add(lockFile)) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            Files.createDirectories(lockFile.getParent());
+            channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                return new PartialClaim(lockFile, channel);
+            }
+        } catch (IOException | OverlappingFileLockException e) {
+            log.error("Could not claim partial backup " + timeStr, e);
+        }
+        closeQuietly(channel);
+        CLAIMED.remove(lockFile);
+        return null;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Could not close " + channel, e);
+            }
+        }
+    }
+
+    public boolean backup(Path source, String worldFolderName, String timeStr, String backupFormat) {
+        return backup(source, worldFolderName, timeStr, backupFormat, null);
+    }
+
+    /**
+     * @param snapshot Chunks captured from memory to back up instead of their copies on disk, or null to back up the
+     *                 world as it is on disk
+     */
+    public boolean backup(Path source, String worldFolderName, String timeStr, String backupFormat, RegionSnapshot snapshot) {
+        BackupProgress progress = ProgressBus.get().start(worldFolderName);
+        boolean success = false;
+        try {
+            success = backup(source, worldFolderName, timeStr, backupFormat, snapshot, progress);
+            return success;
+        } finally {
+            ProgressBus.get().finish(progress, success);
+        }
+    }
+
+    private boolean backup(Path source, String worldFolderName, String timeStr, String backupFormat, RegionSnapshot snapshot, BackupProgress progress) {
+        // Snapshots are merged into region files, archives are encrypted as they stream through and reads are throttled,
+        // which only the multi destination pipeline does
+        if (!this.settings.additionalDestinations.isEmpty() || snapshot != null || isEncrypted(backupFormat) || isThrottled(backupFormat)) {
+            return backupToAllDestinations(source, timeStr, backupFormat, snapshot, progress);
+        }
+
+        if (SimpleBackupUtil.ZIP_FORMAT.equals(backupFormat)) {
+            Path destination = getBackupPath().resolve(timeStr);
+            String destinationFile = destination + ZipCompressor.ZIP_EXTENSION;
+            if (isResumable(backupFormat)) {
+                Path partial = getPartialBackupPath(timeStr, backupFormat);
+                try (PartialClaim claim = claimPartial(timeStr)) {
+                    if (claim == null) {
+                        log.error("Backup at {} is already being written by another backup!  Skipping...", partial);
+                        return false;
+                    }
+                    log.info("Backing up world [{}] to {}", source, partial);
+                    return ZipCompressor.zipResumable(source, partial, getCheckpointPath(timeStr), this.settings, progress)
+                            && completePartialBackup(partial, Path.of(destinationFile), getCheckpointPath(timeStr));
+                }
+            }
+            log.info("Backing up world [{}] to {}", source, destinationFile);
+            if (Files.exists(Path.of(destinationFile))) {
+                log.error("Backup at {} already exists!  Skipping...", destinationFile);
+            }
+            return ZipCompressor.zip(source.toString(), destination.toString(), this.settings, progress);
+        } if (SimpleBackupUtil.LZ4_FORMAT.equals(backupFormat)) {
+            Path destination = getBackupPath().resolve(timeStr);
+            String destinationFile = destination + LZ4Compressor.TAR_LZ4_EXTENSION;
+            log.info("Backing up world [{}] to {}", source, destinationFile);
+            if (Files.exists(Path.of(destinationFile))) {
+                log.error("Backup at {} already exists!  Skipping...", destinationFile);
+            }
+            return LZ4Compressor.compress(source.toString(), destination.getParent().toString(), timeStr, this.settings, progress);
+        } else if (SimpleBackupUtil.DIRECTORY_FORMAT.equals(backupFormat)) {
+            if (isResumable(backupFormat)) {
+                Path partial = getPartialBackupPath(timeStr, backupFormat);
+                try (PartialClaim claim = claimPartial(timeStr)) {
+                    if (claim == null) {
+                        log.error("Backup at {} is already being written by another backup!  Skipping...", partial);
+                        return false;
+                    }
+                    return backupDirectoryResumable(source, worldFolderName, timeStr, partial, progress);
+                }
+            }
+
+            Path destination = getBackupPath().resolve(Path.of(timeStr, worldFolderName));
+            log.info("Backing up world [{}] to {}", source, destination);
+            if (Files.exists(destination)) {
+                log.error("Backup at {} already exists!  Skipping...", destination);
+            }
+            SimpleBackupUtil.createDirectoryFailSafe(destination);
+            return copyDirectoriesFailSafe(source, destination, null, progress);
+        } else {
+            log.error("Backup format {} is not supported!", backupFormat);
+            return false;
+        }
+    }
+
+    private boolean backupDirectoryResumable(Path source, String worldFolderName, String timeStr, Path partial, BackupProgress progress) {
+        Path destination = partial.resolve(worldFolderName);
+        Path checkpointPath = getCheckpointPath(timeStr);
+        log.info("Backing up world [{}] to {}", source, destination);
+        SimpleBackupUtil.createDirectoryFailSafe(destination);
+        boolean copied;
+        try (DirectoryCheckpoint checkpoint = DirectoryCheckpoint.open(checkpointPath, destination, this.settings.checkpointIntervalInSeconds * 1000L)) {
+            if (!checkpoint.getCompleted().isEmpty()) {
+                log.info("Resuming backup at {} with {} files already copied", partial, checkpoint.getCompleted().size());
+            }
+            copied = copyDirectoriesFailSafe(source, destination, checkpoint, progress);
+        } catch (IOException e) {
+            log.error("Could not open backup checkpoint " + checkpointPath, e);
+            return false;
+        }
+        return copied && completePartialBackup(partial, getBackupPath().resolve(timeStr), checkpointPath);
+    }
+
+    /**
+     * Copies only the files in a world that were modified since the given time into a {@code <time>-delta} folder,
+     * along with a manifest of every file in the world at the time of the delta, so deleted files can be told apart.
+     *
+     * @param sinceMillis When the backup the delta is based on was started
+     * @param baseTimeStr Time string the backup the delta is based on is named after, recorded in the manifest so it is
+     *      merged into exactly that backup
+     */
+    public boolean backupDelta(Path source, String worldFolderName, String timeStr, long sinceMillis, String baseTimeStr) {
+        BackupProgress progress = ProgressBus.get().start(worldFolderName);
+        boolean success = false;
+        try {
+            success = backupDelta(source, worldFolderName, timeStr, sinceMillis, baseTimeStr, progress);
+            return success;
+        } finally {
+            ProgressBus.get().finish(progress, success);
+        }
+    }
+
+    private boolean backupDelta(Path source, String worldFolderName, String timeStr, long sinceMillis, String baseTimeStr, BackupProgress progress) {
+        Path deltaRoot = getBackupPath().resolve(timeStr + SimpleBackupUtil.DELTA_SUFFIX);
+        Path destination = deltaRoot.resolve(worldFolderName);
+        log.info("Backing up files in world [{}] changed since the last backup to {}", source, destination);
+        SimpleBackupUtil.createDirectoryFailSafe(destination);
+
+        try {
+            FileTime since = FileTime.fromMillis(sinceMillis - MODIFIED_TIME_SLACK_MILLIS);
+            List<String> allFiles = new ArrayList<>();
+            AtomicLong changed = new AtomicLong();
+            boolean sourceRotational = StorageUtil.isRotational(source, this.settings.sourceStorageType);
+            boolean destinationRotational = StorageUtil.isRotational(destination, this.settings.backupStorageType);
+            int numThreads = this.settings.numThreads;
+            DirectoryCopier copier = new DirectoryCopier(source, destination, (file, attrs) -> {
+                        if (SimpleBackupUtil.FILES_TO_SKIP_COPY.contains(file.getFileName().toString())) {
+                            return false;
+                        }
+                        allFiles.add(DirectoryCopier.toRelativeString(source.relativize(file)));
+                        return attrs.lastModifiedTime().compareTo(since) >= 0;
+                    }, StorageUtil.concurrencyFor(sourceRotational, numThreads), StorageUtil.concurrencyFor(destinationRotational, numThreads),
+                    sourceRotational, null, this.settings.hostCoordinator, (relativePath, size) -> {
+                        changed.incrementAndGet();
+                        progress.addBytes(size);
+                        progress.addFiles(1);
+                    });
+            copier.copy();
+
+            List<String> manifest = new ArrayList<>();
+            manifest.add("# Files changed since " + Instant.ofEpochMilli(sinceMillis) + " are in this folder.  All files in the world at the time of this backup:");
+            manifest.add(SimpleBackupUtil.DELTA_BASE_PREFIX + baseTimeStr);
+            manifest.addAll(allFiles);
+            Files.write(deltaRoot.resolve(SimpleBackupUtil.DELTA_MANIFEST), manifest);
+            log.info("Backed up {} changed files out of {}", changed.get(), allFiles.size());
+            return true;
+        } catch (Exception e) {
+            log.error(String.format("Could not copy changed files from source=%s to destination=%s", source, destination), e);
+            return false;
+        }
+    }
+
+    /**
+     * Rebuilds the world as it was at an incremental backup, into a {@code <time>.staging} folder: the backup it was
+     * taken against is extracted, the files that changed are copied over it and the files that were deleted since are
+     * removed.  Deltas have to be merged oldest first, as each one is based on the one before.
+     *
+     * @return World folder in the staging folder, to back up in its final format.  The caller deletes the staging folder
+     */
+    public Path mergeDelta(String deltaName) throws IOException {
+        Path delta = getBackupPath().resolve(deltaName);
+        String baseTimeStr = SimpleBackupUtil.getDeltaBaseTimeStr(delta)
+                .orElseThrow(() -> new IOException("Incremental backup " + delta + " doesn't record the backup it's based on, so it can't be merged"));
+        String base = SimpleBackupUtil.findBackup(getBackupPath(), baseTimeStr)
+                .orElseThrow(() -> new IOException("Backup " + baseTimeStr + " that incremental backup " + delta + " is based on is gone, so it can't be merged.  "
+                        + "Delete the incremental backup to stop merging it"));
+        if (base.endsWith(SimpleBackupUtil.DELTA_SUFFIX)) {
+            throw new IOException("Incremental backup " + base + " has to be merged before " + deltaName);
+        }
+        Path deltaWorld;
+        try (Stream<Path> list = Files.list(delta)) {
+            deltaWorld = list.filter(Files::isDirectory).findFirst()
+                    .orElseThrow(() -> new IOException("Incremental backup " + delta + " has no world folder"));
+        }
+
+        String timeStr = deltaName.substring(0, deltaName.length() - SimpleBackupUtil.DELTA_SUFFIX.length());
+        Path staging = getBackupPath().resolve(timeStr + SimpleBackupUtil.STAGING_EXTENSION);
+        if (Files.exists(staging)) {
+            // Left over from a merge that was cut off
+            SimpleBackupUtil.deleteRecursively(staging);
+        }
+        log.info("Merging incremental backup [{}] into backup [{}]", deltaName, base);
+        BackupExtractor.extractAll(getBackupPath().resolve(base), staging, this.settings.encryption);
+        Path world = staging.resolve(deltaWorld.getFileName().toString());
+        if (!Files.isDirectory(world)) {
+            throw new IOException("Backup " + base + " has no world folder " + world.getFileName() + " to merge incremental backup " + deltaName + " into");
+        }
+
+        Files.walkFileTree(deltaWorld, new SimpleFileVisitor<>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path target = world.resolve(deltaWorld.relativize(file).toString());
+                Files.createDirectories(target.getParent());
+                Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        Set<String> manifest = new HashSet<>();
+        for (String line : Files.readAllLines(delta.resolve(SimpleBackupUtil.DELTA_MANIFEST))) {
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                manifest.add(line);
+            }
+        }
+        Files.walkFileTree(world, new SimpleFileVisitor<>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!manifest.contains(DirectoryCopier.toRelativeString(world.relativize(file)))) {
+                    Files.delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return world;
+    }
+
+    /**
+     * Backs up to the main backup folder and every additional destination, reading the world only once.  Retention
+     * of the additional destinations is handled here, the main backup folder is pruned by the caller.
+     */
+    private boolean backupToAllDestinations(Path source, String timeStr, String backupFormat, RegionSnapshot snapshot, BackupProgress progress) {
+        List<MultiDestinationCompressor.Destination> destinations = new ArrayList<>();
+        // Main backup folder is pruned by the caller like the other formats
+        destinations.add(new MultiDestinationCompressor.Destination("backupPath", backupFormat, new LocalStorageBackend(getBackupPath()), Integer.MAX_VALUE, true));
+        destinations.addAll(this.settings.additionalDestinations);
+
+        log.info("Backing up world [{}] to {} destinations", source, destinations.size());
+        return MultiDestinationCompressor.compress(source, timeStr, destinations, this.settings, snapshot, progress);
+    }
+
+    public boolean deleteStaleBackupFiles() {
+        return SimpleBackupUtil.deleteStaleBackupFiles(getBackupPath(), this.settings.maxBackupsToKeep);
+    }
+
+    /**
+     * Renames a finished .partial backup to its final name and removes its checkpoint.
+     */
+    private static boolean completePartialBackup(Path partial, Path destination, Path checkpoint) {
+        try {
+            Files.move(partial, destination, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(checkpoint);
+            return true;
+        } catch (IOException e) {
+            log.error(String.format("Could not move finished backup from %s to %s", partial, destination), e);
+            return false;
+        }
+    }
+
+    private boolean copyDirectoriesFailSafe(Path source, Path destination, DirectoryCheckpoint checkpoint, BackupProgress progress) {
+        try {
+            // Files already copied by an interrupted run don't count towards this one
+            Set<String> completed = checkpoint != null ? checkpoint.getCompleted() : Set.of();
+            long[] totals = {0, 0};
+            Files.walkFileTree(source, new SimpleFileVisitor<>() {
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!SimpleBackupUtil.FILES_TO_SKIP_COPY.contains(file.getFileName().toString())
+                            && !completed.contains(DirectoryCopier.toRelativeString(source.relativize(file)))) {
+                        totals[0] += attrs.size();
+                        totals[1]++;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            progress.setTotals(totals[0], totals[1]);
+
+            boolean sourceRotational = StorageUtil.isRotational(source, this.settings.sourceStorageType);
+            boolean destinationRotational = StorageUtil.isRotational(destination, this.settings.backupStorageType);
+            int numThreads = this.settings.numThreads;
+            DirectoryCopier copier = new DirectoryCopier(source, destination, (file, attrs) -> !SimpleBackupUtil.FILES_TO_SKIP_COPY.contains(file.getFileName().toString()),
+                    StorageUtil.concurrencyFor(sourceRotational, numThreads), StorageUtil.concurrencyFor(destinationRotational, numThreads),
+                    sourceRotational, checkpoint != null ? checkpoint.getCompleted() : null, this.settings.hostCoordinator, (relativePath, size) -> {
+                        if (checkpoint != null) {
+                            try {
+                                checkpoint.markDone(relativePath);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }
+                        progress.addBytes(size);
+                        progress.addFiles(1);
+                    });
+            copier.copy();
+
+            return true;
+        } catch (Exception e) {
+            log.error(String.format("Could not copy directory from source=%s to destination=%s", source, destination), e);
+            return false;
+        }
+    }
+
+    /**
+     * A partial backup claimed by {@link #claimPartial}.  Close it once the partial is finished or given up on.
+     */
+    private static class PartialClaim implements AutoCloseable {
+
+        private final Path lockFile;
+        private final FileChannel channel;
+
+        private PartialClaim(Path lockFile, FileChannel channel) {
+            this.lockFile = lockFile;
+            this.channel = channel;
+        }
+
+        @Override
+        public void close() {
+            // Deleted while still locked, so whoever opens it next makes a new one.  Resuming checks the partial still
+            // exists after claiming it, in case it got the old one
+            try {
+                Files.deleteIfExists(this.lockFile);
+            } catch (IOException e) {
+                log.debug("Could not delete " + this.lockFile, e);
+            }
+            closeQuietly(this.channel);
+            CLAIMED.remove(this.lockFile);
+        }
+    }
+}
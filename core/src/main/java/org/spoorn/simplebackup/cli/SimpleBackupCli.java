@@ -0,0 +1,444 @@
+package org.spoorn.simplebackup.cli;
+
+import org.spoorn.simplebackup.BackupEngine;
+import org.spoorn.simplebackup.config.BackupSettings;
+import org.spoorn.simplebackup.io.BackupEncryption;
+import org.spoorn.simplebackup.io.BackupExtractor;
+import org.spoorn.simplebackup.io.BackupVerifier;
+import org.spoorn.simplebackup.io.BufferPool;
+import org.spoorn.simplebackup.io.PlayerDataLog;
+import org.spoorn.simplebackup.progress.LogProgressListener;
+import org.spoorn.simplebackup.progress.ProgressBus;
+import org.spoorn.simplebackup.storage.LocalStorageBackend;
+import org.spoorn.simplebackup.storage.StorageBackend;
+import org.spoorn.simplebackup.util.BackupSpacePlanner;
+import org.spoorn.simplebackup.util.CompressionTuner;
+import org.spoorn.simplebackup.util.HostCoordinator;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+import org.spoorn.simplebackup.util.StorageUtil;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Command line front end to the backup engine, for backing up stopped servers from cron, testing restores and
+ * profiling backups without starting the game.  Backups are the same as the mod's, so the two can share a backup folder.
+ *
+ * Run without arguments for usage.  Exits with 0 on success, 1 if the command failed and 2 on bad arguments.
+ */
+public class SimpleBackupCli {
+
+    private static final String USAGE = """
+            Usage: simplebackup <command> [arguments]
+
+              backup <world folder> <backup folder>   Back up a world
+                  --format ZIP|DIRECTORY|LZ4           Backup format, ZIP by default
+                  --threads <n>                        Threads to back up with, 1 by default
+                  --keep <n>                           Backups to keep in the backup folder, 10 by default
+                  --source-storage AUTO|SSD|HDD        Disk the world is on, AUTO by default
+                  --backup-storage AUTO|SSD|HDD        Disk the backup folder is on, AUTO by default
+                  --disk-space <percent>               Free disk space required to back up, 20 by default
+                  --resumable                          Write a .partial backup with checkpoints that can be resumed
+                  --force                              Back up even if a running server has the world open
+                  --key-file <file>                    Encrypt ZIP and LZ4 backups with this key file, created if missing
+                  --algorithm AES_GCM|CHACHA20_POLY1305  Encryption algorithm, AES_GCM by default
+                  --progress <percent>                 Log progress every this many percent, 10 by default, 0 to not log
+                  --zip-level <1-9>                    Deflate level of ZIP backups, 5 by default
+                  --lz4-level <0-17>                   0 for LZ4's fast compressor, 1-17 for its high compressor, 0 by default
+                  --time-budget <seconds>              Pick the level, threads and buffer size to back up within this time,
+                                                       calibrating on the world first if it never was
+                  --max-cpu <percent>                  Most of the CPU to use with --time-budget, 50 by default
+                  --host-folder <folder>               Folder shared by the servers on this host to coordinate backups through
+                  --max-concurrent <n>                 Backups that may run at once on the host with --host-folder, 2 by default
+                  --bandwidth <MB/s>                   MB/s backups may read at host-wide with --host-folder, 0 for no limit
+                  --jitter <seconds>                   Most seconds to randomly delay the backup by with --host-folder, 30 by default
+              restore <backup> <destination folder>  Extract a backup, of any format, into an empty folder
+                  --key-file <file>                    Key file of an encrypted backup
+              verify <backup>...                      Check backups can be read back in full
+                  --key-file <file>                    Key file of encrypted backups
+              list <backup folder>                    List backups, oldest first
+              player-data <log file>                  List player data backups in a .simplebackup/player-data/<world>.log
+                  --extract <folder>                   Extract every file as of --at into a folder
+                  --at <time>                          Time like 2022-05-04_05-04-13, the latest backup by default
+              benchmark <world folder>                Time backing up a world in each format, without keeping the backups
+                  --formats <format,...>               Formats to time, ZIP,LZ4,DIRECTORY by default
+                  --threads <n>                        Threads to back up with, 1 by default
+                  --runs <n>                           Runs per format, 3 by default
+                  --work-dir <folder>                  Where to write the backups, a temporary folder by default
+                  --key-file <file>                    Time encrypted backups, see backup
+                  --algorithm AES_GCM|CHACHA20_POLY1305  Encryption algorithm, AES_GCM by default
+            """;
+    private static final Set<String> FLAGS = Set.of("resumable", "force");
+
+    private final List<String> arguments = new ArrayList<>();
+    private final Map<String, String> options = new HashMap<>();
+
+    public static void main(String[] args) {
+        // The game configures logging inside the mod.  Standalone, engine logs go to the console
+        if (System.getProperty("log4j2.configurationFile") == null) {
+            System.setProperty("log4j2.configurationFile", "simplebackup-cli-log4j2.xml");
+        }
+        System.exit(run(args));
+    }
+
+    public static int run(String[] args) {
+        if (args.length == 0) {
+            System.err.print(USAGE);
+            return 2;
+        }
+        SimpleBackupCli cli = new SimpleBackupCli();
+        try {
+            cli.parse(args);
+            return switch (args[0]) {
+                case "backup" -> cli.backup();
+                case "restore" -> cli.restore();
+                case "verify" -> cli.verify();
+                case "list" -> cli.list();
+                case "player-data" -> cli.playerData();
+                case "benchmark" -> cli.benchmark();
+                default -> throw new IllegalArgumentException("Unknown command " + args[0]);
+            };
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            return 2;
+        } catch (Exception e) {
+            System.err.println("simplebackup " + args[0] + " failed: " + e);
+            return 1;
+        }
+    }
+
+    private int backup() throws IOException, InterruptedException {
+        Path world = existingFolder(argument(0, "world folder"));
+        BackupSettings settings = settings(Path.of(argument(1, "backup folder")));
+        String backupFormat = format(option("format", SimpleBackupUtil.ZIP_FORMAT));
+        if (isInUse(world) && !this.options.containsKey("force")) {
+            System.err.println("World " + world + " is open in a running server, and backing it up could give an inconsistent backup.  "
+                    + "Stop the server, or use --force to back up anyway");
+            return 1;
+        }
+        BufferPool.init(BufferPool.MAX_BUFFER_SIZE * 32L);
+        Files.createDirectories(settings.backupPath);
+
+        BackupEngine engine = new BackupEngine(settings);
+        String worldFolderName = world.getFileName().toString();
+        HostCoordinator.Slot slot = engine.acquireHostSlot(worldFolderName);
+        try {
+            return backup(engine, world, worldFolderName, backupFormat);
+        } finally {
+            if (slot != null) {
+                slot.close();
+            }
+        }
+    }
+
+    private int backup(BackupEngine engine, Path world, String worldFolderName, String backupFormat) throws IOException {
+        BackupSettings settings = engine.getSettings();
+        LocalDateTime startTime = LocalDateTime.now();
+        String timeStr = SimpleBackupUtil.BACKUP_TIME_FORMAT.format(startTime);
+        if (engine.isResumable(backupFormat)) {
+            Optional<String> interrupted = engine.findResumableBackup(backupFormat);
+            if (interrupted.isPresent()) {
+                System.out.println("Resuming interrupted backup " + interrupted.get());
+                timeStr = interrupted.get();
+                startTime = LocalDateTime.parse(timeStr, SimpleBackupUtil.BACKUP_TIME_FORMAT);
+            }
+        }
+
+        long startMillis = System.currentTimeMillis();
+        Optional<BackupSpacePlanner.Plan> plan = BackupSpacePlanner.plan(settings, world, worldFolderName, settings.backupPath,
+                backupFormat, settings.maxBackupsToKeep, false);
+        boolean autotune = this.options.containsKey("time-budget") && plan.isPresent();
+        if (autotune) {
+            if (CompressionTuner.getCalibrationTime(settings).isEmpty()) {
+                CompressionTuner.calibrate(settings, world);
+            }
+            CompressionTuner.tune(settings, world, backupFormat, plan.get().sourceBytes());
+            startMillis = System.currentTimeMillis();
+        }
+        boolean backedUp;
+        ProgressBus.Subscription subscription = ProgressBus.get().subscribe(new LogProgressListener(settings.intervalPercentageToLogBackupProgress),
+                LogProgressListener.SAMPLE_INTERVAL_MILLIS);
+        try {
+            backedUp = plan.isPresent() && BackupSpacePlanner.pruneFirst(plan.get(), settings.backupPath)
+                    && engine.backup(world, worldFolderName, timeStr, backupFormat)
+                    && engine.deleteStaleBackupFiles();
+        } finally {
+            subscription.close();
+        }
+        if (!backedUp) {
+            System.err.println("Backup of " + world + " failed.  Check the log above for errors");
+            return 1;
+        }
+
+        if (autotune) {
+            CompressionTuner.recordBackup(settings, world, backupFormat, plan.get().sourceBytes(), System.currentTimeMillis() - startMillis);
+        }
+        Path backup = settings.backupPath.resolve(engine.getBackupName(timeStr, backupFormat));
+        BackupSpacePlanner.recordBackup(settings, worldFolderName, backupFormat, plan.get().sourceBytes(), backup);
+        engine.setLastBackupTime(worldFolderName, startTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), timeStr);
+        System.out.printf("Backed up %s to %s in %.1f s%n", world, backup, (System.currentTimeMillis() - startMillis) / 1000.0);
+        return 0;
+    }
+
+    private int restore() throws IOException {
+        Path backup = existing(argument(0, "backup"));
+        Path destination = Path.of(argument(1, "destination folder"));
+        if (Files.isDirectory(destination)) {
+            try (Stream<Path> files = Files.list(destination)) {
+                if (files.findAny().isPresent()) {
+                    System.err.println("Destination " + destination + " is not empty.  Restore into an empty folder so nothing is overwritten");
+                    return 1;
+                }
+            }
+        }
+        BufferPool.init(BufferPool.MAX_BUFFER_SIZE * 4L);
+
+        long startMillis = System.currentTimeMillis();
+        long files = BackupExtractor.extractAll(backup, destination, encryption(false));
+        System.out.printf("Restored %d files from %s to %s in %.1f s%n", files, backup, destination, (System.currentTimeMillis() - startMillis) / 1000.0);
+        return 0;
+    }
+
+    private int verify() throws IOException {
+        argument(0, "backup");
+        BackupEncryption encryption = encryption(false);
+        BufferPool.init(BufferPool.MAX_BUFFER_SIZE * 4L);
+        int failed = 0;
+        for (String name : this.arguments) {
+            Path backup = existing(name);
+            BackupVerifier.Result result = BackupVerifier.verify(backup, encryption);
+            if (result.isValid()) {
+                System.out.printf("OK      %s: %d files, %d bytes%n", backup, result.files(), result.bytes());
+            } else {
+                failed++;
+                System.out.printf("FAILED  %s: %d problems in %d files%n", backup, result.problems().size(), result.files());
+                result.problems().forEach(problem -> System.out.println("        " + problem));
+            }
+        }
+        return failed == 0 ? 0 : 1;
+    }
+
+    private int list() throws IOException {
+        Path backupFolder = existingFolder(argument(0, "backup folder"));
+        List<StorageBackend.BackupEntry> backups = new ArrayList<>(new LocalStorageBackend(backupFolder).list());
+        backups.sort(Comparator.comparingLong(StorageBackend.BackupEntry::createdMillis).thenComparing(StorageBackend.BackupEntry::name));
+        for (StorageBackend.BackupEntry entry : backups) {
+            Path backup = backupFolder.resolve(entry.name());
+            long size = Files.isDirectory(backup) ? SimpleBackupUtil.getDirectorySize(backup) : Files.size(backup);
+            System.out.printf("%-40s %-20s %,15d bytes%n", entry.name(), Instant.ofEpochMilli(entry.createdMillis()).atZone(ZoneId.systemDefault())
+                    .format(SimpleBackupUtil.BACKUP_TIME_FORMAT), size);
+        }
+        System.out.println(backups.size() + " backups");
+        return 0;
+    }
+
+    private int playerData() throws IOException {
+        Path logFile = existing(argument(0, "log file"));
+        long atMillis = Long.MAX_VALUE;
+        if (this.options.containsKey("at")) {
+            // Include the whole second, as times are shown without milliseconds
+            atMillis = SimpleBackupUtil.getBackupTime(this.options.get("at"))
+                    .orElseThrow(() -> new IllegalArgumentException("--at must be a time like 2022-05-04_05-04-13")) + 999;
+        }
+        try (PlayerDataLog playerDataLog = PlayerDataLog.open(logFile)) {
+            if (this.options.containsKey("extract")) {
+                Path destination = Path.of(this.options.get("extract"));
+                int files = playerDataLog.extract(destination, atMillis);
+                System.out.println("Extracted " + files + " files into " + destination);
+                return 0;
+            }
+            List<PlayerDataLog.Snapshot> snapshots = playerDataLog.getSnapshots();
+            for (PlayerDataLog.Snapshot snapshot : snapshots) {
+                System.out.printf("%-20s %-10s %6d files%n", SimpleBackupUtil.formatBackupTime(snapshot.timeMillis()), snapshot.reason(),
+                        snapshot.changes().size());
+            }
+            System.out.println(snapshots.size() + " player data backups");
+        }
+        return 0;
+    }
+
+    /**
+     * Backs up the same world repeatedly into a scratch folder and reports how long each format took.  Also a
+     * convenient way to run the engine under a profiler.
+     */
+    private int benchmark() throws IOException {
+        Path world = existingFolder(argument(0, "world folder"));
+        List<String> formats = new ArrayList<>();
+        for (String format : option("formats", "ZIP,LZ4,DIRECTORY").split(",")) {
+            formats.add(format(format.trim()));
+        }
+        int runs = intOption("runs", 3);
+        Path workDir = this.options.containsKey("work-dir") ? Path.of(this.options.get("work-dir")) : Files.createTempDirectory("simplebackup-benchmark");
+        BufferPool.init(BufferPool.MAX_BUFFER_SIZE * 32L);
+
+        long sourceBytes = SimpleBackupUtil.getDirectorySize(world);
+        System.out.printf("World %s: %,d bytes%n", world, sourceBytes);
+        System.out.printf("%-10s %5s %10s %10s %8s%n", "format", "run", "seconds", "MB/s", "ratio");
+        boolean failed = false;
+        for (String format : formats) {
+            for (int run = 1; run <= runs; run++) {
+                Path backupFolder = workDir.resolve(format + "-" + run);
+                Files.createDirectories(backupFolder);
+                BackupSettings settings = settings(backupFolder);
+                String timeStr = SimpleBackupUtil.BACKUP_TIME_FORMAT.format(LocalDateTime.now());
+
+                long startNanos = System.nanoTime();
+                BackupEngine engine = new BackupEngine(settings);
+                boolean backedUp = engine.backup(world, world.getFileName().toString(), timeStr, format);
+                double seconds = (System.nanoTime() - startNanos) / 1e9;
+                Path backup = backupFolder.resolve(engine.getBackupName(timeStr, format));
+                if (backedUp && Files.exists(backup)) {
+                    long backupBytes = Files.isDirectory(backup) ? SimpleBackupUtil.getDirectorySize(backup) : Files.size(backup);
+                    System.out.printf("%-10s %5d %10.2f %10.1f %8.3f%n", format, run, seconds, sourceBytes / seconds / (1024 * 1024), (double) backupBytes / sourceBytes);
+                } else {
+                    failed = true;
+                    System.out.printf("%-10s %5d %10s%n", format, run, "failed");
+                }
+                SimpleBackupUtil.deleteRecursively(backupFolder);
+            }
+        }
+        if (!this.options.containsKey("work-dir")) {
+            SimpleBackupUtil.deleteRecursively(workDir);
+        }
+        return failed ? 1 : 0;
+    }
+
+    private void parse(String[] args) {
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                String name = args[i].substring(2);
+                if (FLAGS.contains(name)) {
+                    this.options.put(name, "true");
+                } else if (i + 1 < args.length) {
+                    this.options.put(name, args[++i]);
+                } else {
+                    throw new IllegalArgumentException("Missing value for --" + name);
+                }
+            } else {
+                this.arguments.add(args[i]);
+            }
+        }
+    }
+
+    private BackupSettings settings(Path backupPath) throws IOException {
+        BackupSettings settings = new BackupSettings(backupPath.toAbsolutePath());
+        settings.numThreads = Math.max(1, intOption("threads", settings.numThreads));
+        settings.maxBackupsToKeep = Math.max(1, intOption("keep", settings.maxBackupsToKeep));
+        settings.sourceStorageType = storageType(option("source-storage", settings.sourceStorageType));
+        settings.backupStorageType = storageType(option("backup-storage", settings.backupStorageType));
+        settings.percentageAvailableDiskSpaceRequirement = intOption("disk-space", settings.percentageAvailableDiskSpaceRequirement);
+        settings.intervalPercentageToLogBackupProgress = intOption("progress", settings.intervalPercentageToLogBackupProgress);
+        settings.zipCompressionLevel = Math.max(1, Math.min(9, intOption("zip-level", settings.zipCompressionLevel)));
+        settings.lz4CompressionLevel = Math.max(0, Math.min(17, intOption("lz4-level", settings.lz4CompressionLevel)));
+        settings.autotuneTimeBudgetInSeconds = Math.max(1, intOption("time-budget", settings.autotuneTimeBudgetInSeconds));
+        settings.autotuneMaxCpuPercent = Math.max(1, Math.min(100, intOption("max-cpu", settings.autotuneMaxCpuPercent)));
+        settings.enableResumableBackups = this.options.containsKey("resumable");
+        settings.encryption = encryption(true);
+        if (this.options.containsKey("host-folder")) {
+            settings.hostCoordinator = new HostCoordinator(Path.of(this.options.get("host-folder")).toAbsolutePath(), intOption("max-concurrent", 2),
+                    Math.max(0, intOption("bandwidth", 0)) * 1024L * 1024L, intOption("jitter", 30));
+        }
+        return settings;
+    }
+
+    /**
+     * @param create True to create the key file if it doesn't exist, for backing up
+     * @return Key from --key-file, or null if there is none
+     */
+    private BackupEncryption encryption(boolean create) throws IOException {
+        String keyFile = this.options.get("key-file");
+        if (keyFile == null) {
+            return null;
+        }
+        String algorithm = option("algorithm", BackupEncryption.AES_GCM).toUpperCase();
+        if (!BackupEncryption.isSupportedAlgorithm(algorithm)) {
+            throw new IllegalArgumentException("Unknown encryption algorithm " + algorithm);
+        }
+        return BackupEncryption.load(create ? Path.of(keyFile) : existing(keyFile), algorithm);
+    }
+
+    private String argument(int index, String name) {
+        if (index >= this.arguments.size()) {
+            throw new IllegalArgumentException("Missing " + name);
+        }
+        return this.arguments.get(index);
+    }
+
+    private String option(String name, String defaultValue) {
+        return this.options.getOrDefault(name, defaultValue);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = this.options.get(name);
+        try {
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be a number, not " + value);
+        }
+    }
+
+    private static String format(String format) {
+        String upper = format.toUpperCase();
+        if (!SimpleBackupUtil.ZIP_FORMAT.equals(upper) && !SimpleBackupUtil.DIRECTORY_FORMAT.equals(upper) && !SimpleBackupUtil.LZ4_FORMAT.equals(upper)) {
+            throw new IllegalArgumentException("Unknown backup format " + format);
+        }
+        return upper;
+    }
+
+    private static String storageType(String storageType) {
+        String upper = storageType.toUpperCase();
+        if (!StorageUtil.isValidStorageType(upper)) {
+            throw new IllegalArgumentException("Unknown storage type " + storageType);
+        }
+        return upper;
+    }
+
+    private static Path existing(String name) {
+        Path path = Path.of(name).toAbsolutePath();
+        if (!Files.exists(path)) {
+            throw new IllegalArgumentException(name + " does not exist");
+        }
+        return path;
+    }
+
+    private static Path existingFolder(String name) {
+        Path path = existing(name);
+        if (!Files.isDirectory(path)) {
+            throw new IllegalArgumentException(name + " is not a folder");
+        }
+        return path;
+    }
+
+    /**
+     * @return True if a running server holds the world's session.lock
+     */
+    private static boolean isInUse(Path world) {
+        Path sessionLock = world.resolve("session.lock");
+        if (!Files.exists(sessionLock)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(sessionLock, StandardOpenOption.WRITE);
+             FileLock lock = channel.tryLock()) {
+            return lock == null;
+        } catch (IOException e) {
+            // Windows refuses to open files another process has locked
+            return true;
+        }
+    }
+}
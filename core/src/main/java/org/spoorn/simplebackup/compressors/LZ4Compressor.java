@@ -0,0 +1,128 @@
+package org.spoorn.simplebackup.compressors;
+
+import lombok.extern.log4j.Log4j2;
+import org.spoorn.simplebackup.config.BackupSettings;
+import org.spoorn.simplebackup.io.BufferPool;
+import org.spoorn.simplebackup.io.DirectoryCopier;
+import org.spoorn.simplebackup.io.TarLz4ArchiveWriter;
+import org.spoorn.simplebackup.progress.BackupProgress;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+import org.spoorn.simplebackup.util.StorageUtil;
+import org.spoorn.tarlz4java.api.TarLz4Compressor;
+import org.spoorn.tarlz4java.api.TarLz4CompressorBuilder;
+import org.spoorn.tarlz4java.logging.Verbosity;
+import org.spoorn.tarlz4java.util.concurrent.NamedThreadFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+@Log4j2
+public class LZ4Compressor {
+    
+    public static final String TAR_LZ4_EXTENSION = ".tar.lz4";
+    
+    /**
+     * Compresses with tar-lz4-java's multithreaded fast compressor, or streams through LZ4's high compressor on a
+     * single thread if {@link BackupSettings#lz4CompressionLevel} is set, as tar-lz4-java only has the fast one.
+     *
+     * @param progress Only gets the total once done for the fast compressor, as tar-lz4-java doesn't expose its
+     *                 progress and logs it itself instead
+     */
+    public static boolean compress(String targetPath, String destinationPath, String outputFileBaseName, BackupSettings settings, BackupProgress progress) {
+        if (settings.lz4CompressionLevel > 0) {
+            return compressHigh(Path.of(targetPath), Path.of(destinationPath, outputFileBaseName + TAR_LZ4_EXTENSION), settings, progress);
+        }
+        try {
+            int numThreads = settings.numThreads;
+            // tar-lz4-java reads and writes a slice per thread, so a spinning disk on either side gets a single stream
+            if (StorageUtil.isRotational(Path.of(targetPath), settings.sourceStorageType)
+                    || StorageUtil.isRotational(Path.of(destinationPath), settings.backupStorageType)) {
+                log.info("World or backup folder is on a rotational disk.  Compressing LZ4 backup using a single thread");
+                numThreads = 1;
+            }
+            TarLz4Compressor compressor = new TarLz4CompressorBuilder()
+                    .numThreads(numThreads)
+                    .bufferSize(settings.multiThreadBufferSize)
+                    .logProgressPercentInterval(settings.intervalPercentageToLogBackupProgress)
+                    .executorService(Executors.newFixedThreadPool(numThreads, new NamedThreadFactory("SimpleBackup")))
+                    .shouldLogProgress(settings.shouldLogProgress())
+                    .verbosity(Verbosity.DEBUG)
+                    .excludeFiles(SimpleBackupUtil.FILES_TO_SKIP_COPY)
+                    .build();
+            if (compressor.compress(targetPath, destinationPath, outputFileBaseName) == null) {
+                return false;
+            }
+            progress.setTotals(SimpleBackupUtil.getDirectorySize(Path.of(targetPath)), -1);
+            return true;
+        } catch (Exception e) {
+            log.error("Could not lz4 compress target=[" + targetPath + "] to [" + destinationPath + "]", e);
+            return false;
+        }
+    }
+
+    /**
+     * Same layout as tar-lz4-java, with entries relative to the target's parent folder.
+     */
+    private static boolean compressHigh(Path target, Path outputFile, BackupSettings settings, BackupProgress progress) {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(target)) {
+            walk.filter(file -> Files.isRegularFile(file) && !SimpleBackupUtil.FILES_TO_SKIP_COPY.contains(file.getFileName().toString()))
+                    .forEach(files::add);
+        } catch (IOException e) {
+            log.error("Could not list files to lz4 compress in [" + target + "]", e);
+            return false;
+        }
+
+        Path root = target.getParent();
+        BufferPool bufferPool = BufferPool.get();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(outputFile), BufferPool.MAX_BUFFER_SIZE);
+             TarLz4ArchiveWriter writer = new TarLz4ArchiveWriter(out, settings.lz4CompressionLevel)) {
+            long total = 0;
+            for (Path file : files) {
+                total += Files.size(file);
+            }
+            progress.setTotals(total, files.size());
+
+            for (Path file : files) {
+                try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                    // Only what was there when the entry was started, in case the file is still being written
+                    long remaining = in.size();
+                    writer.putFile(DirectoryCopier.toRelativeString(root.relativize(file)), remaining, Files.getLastModifiedTime(file));
+                    ByteBuffer buffer = bufferPool.acquire(BufferPool.bufferSizeFor(file, remaining));
+                    try {
+                        while (remaining > 0) {
+                            buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                            if (in.read(buffer) < 0) {
+                                throw new IOException("File " + file + " shrunk while being backed up");
+                            }
+                            buffer.flip();
+                            remaining -= buffer.remaining();
+                            progress.addBytes(buffer.remaining());
+                            writer.write(buffer);
+                        }
+                    } finally {
+                        bufferPool.release(buffer);
+                    }
+                    writer.closeFile();
+                }
+                progress.addFiles(1);
+            }
+            writer.finish();
+            return true;
+        } catch (Exception e) {
+            log.error("Could not lz4 compress target=[" + target + "] to [" + outputFile + "]", e);
+            SimpleBackupUtil.cleanupFailedBackup(outputFile);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package org.spoorn.simplebackup.compressors;
+
+import lombok.extern.log4j.Log4j2;
+import org.spoorn.simplebackup.BackupEngine;
+import org.spoorn.simplebackup.config.BackupSettings;
+import org.spoorn.simplebackup.io.ArchiveWriter;
+import org.spoorn.simplebackup.io.BufferPool;
+import org.spoorn.simplebackup.io.DirectoryArchiveWriter;
+import org.spoorn.simplebackup.io.DirectoryCopier;
+import org.spoorn.simplebackup.io.EncryptingOutputStream;
+import org.spoorn.simplebackup.io.RegionSnapshot;
+import org.spoorn.simplebackup.io.SharedBuffer;
+import org.spoorn.simplebackup.io.StorageDirectoryArchiveWriter;
+import org.spoorn.simplebackup.io.TarLz4ArchiveWriter;
+import org.spoorn.simplebackup.io.ZipArchiveWriter;
+import org.spoorn.simplebackup.progress.BackupProgress;
+import org.spoorn.simplebackup.storage.StorageBackend;
+import org.spoorn.simplebackup.storage.StorageOutputStream;
+import org.spoorn.simplebackup.util.BackupSpacePlanner;
+import org.spoorn.simplebackup.util.HostCoordinator;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+import org.spoorn.simplebackup.util.StorageUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Backs up a world to several destinations, each with its own format, while reading the world only once.
+ *
+ * A single reader walks the world and reads each file into pooled buffers.  Every buffer is shared with one writer
+ * thread per destination through that destination's own queue, so compression and writing for each destination run
+ * concurrently and a slow destination only holds up the others once its queue is full.  A destination that fails is
+ * dropped and the rest carry on.
+ *
+ * Destinations are {@link StorageBackend}s, so archives are streamed straight to remote storage as they are compressed.
+ * If encryption is on, ZIP and LZ4 archives are encrypted on the way out by an {@link EncryptingOutputStream}.
+ */
+@Log4j2
+public class MultiDestinationCompressor {
+
+    // Per destination, in buffers of up to 1 MB
+    private static final int QUEUE_CAPACITY = 128;
+
+    /**
+     * @param label Name of the destination for logs
+     * @param format Backup format to write
+     * @param backend Where to write backups to
+     * @param maxBackupsToKeep Retention for this destination
+     * @param planned True if the caller already made space for the backup in this destination, i.e. the main backup
+     *                folder, so it isn't planned again
+     */
+    public record Destination(String label, String format, StorageBackend backend, int maxBackupsToKeep, boolean planned) {}
+
+    /**
+     * @return True if every destination succeeded
+     */
+    public static boolean compress(Path source, String timeStr, List<Destination> destinations, BackupSettings settings, BackupProgress progress) {
+        return compress(source, timeStr, destinations, settings, null, progress);
+    }
+
+    /**
+     * @param snapshot Chunks captured from memory to merge into the region files read from disk, or null to back up
+     *                 the world as it is on disk
+     * @return True if every destination succeeded
+     */
+    public static boolean compress(Path source, String timeStr, List<Destination> destinations, BackupSettings settings, RegionSnapshot snapshot,
+                                   BackupProgress progress) {
+        // Walked up front so every destination is planned against the same size, without walking the world again
+        List<Path> files = new ArrayList<>();
+        long[] totalBytes = {0};
+        Exception walkError = null;
+        try {
+            Files.walkFileTree(source, new SimpleFileVisitor<>() {
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!SimpleBackupUtil.FILES_TO_SKIP_COPY.contains(file.getFileName().toString())) {
+                        files.add(file);
+                        totalBytes[0] += attrs.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.error("Could not list world [" + source + "] for backup", e);
+            walkError = e;
+        }
+
+        List<Worker> workers = new ArrayList<>();
+        for (Destination destination : destinations) {
+            if (settings.encryption != null && SimpleBackupUtil.DIRECTORY_FORMAT.equals(destination.format())) {
+                log.warn("Backup destination [{}] uses the DIRECTORY format, which is never encrypted", destination.label());
+            }
+            Worker worker = new Worker(destination, timeStr, settings);
+            try {
+                Path folder = destination.backend().getLocalFolder().orElse(null);
+                if (walkError != null) {
+                    worker.fail(walkError);
+                } else if (destination.planned() || folder == null) {
+                    worker.open();
+                } else {
+                    Optional<BackupSpacePlanner.Plan> plan = BackupSpacePlanner.plan(settings, totalBytes[0], source.getFileName().toString(), folder,
+                            destination.format(), destination.maxBackupsToKeep(), false);
+                    if (plan.isPresent() && BackupSpacePlanner.pruneFirst(plan.get(), folder)) {
+                        worker.open();
+                    } else {
+                        worker.fail(new IOException("Not enough disk space"));
+                    }
+                }
+            } catch (Exception e) {
+                worker.fail(e);
+            }
+            workers.add(worker);
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (Worker worker : workers) {
+            Thread thread = new Thread(worker, "SimpleBackup-" + worker.destination.label());
+            thread.start();
+            threads.add(thread);
+        }
+
+        try {
+            if (StorageUtil.isRotational(source, settings.sourceStorageType)) {
+                StorageUtil.sortByPhysicalOrder(files);
+            }
+            if (snapshot != null) {
+                // Regions only generated since the last save
+                for (Path regionFile : snapshot.getRegionFiles()) {
+                    if (!Files.exists(regionFile)) {
+                        files.add(regionFile);
+                    }
+                }
+            }
+
+            Path root = source.getParent();
+            long total = totalBytes[0];
+            progress.setTotals(total, files.size());
+            // Done once the slowest destination is, as reading the world can run ahead of them by the queue size
+            progress.trackBytes(() -> workers.stream().filter(worker -> !worker.isFailed())
+                    .mapToLong(worker -> worker.bytesConsumed.sum()).min().orElse(0));
+            progress.setDetail(() -> describeDestinations(workers, total));
+            for (Path file : files) {
+                if (workers.stream().allMatch(Worker::isFailed)) {
+                    break;
+                }
+                String name = DirectoryCopier.toRelativeString(root.relativize(file));
+                readFile(file, name, workers, snapshot, settings.hostCoordinator);
+                progress.addFiles(1);
+            }
+        } catch (Exception e) {
+            log.error("Could not read world [" + source + "] for backup", e);
+            workers.forEach(worker -> worker.fail(e));
+        }
+        
+        try {
+            for (Worker worker : workers) {
+                worker.send(Event.FINISH);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            log.error("Interrupted while waiting for backup destinations to finish", e);
+            threads.forEach(Thread::interrupt);
+            workers.forEach(worker -> worker.fail(e));
+        }
+
+        boolean allSucceeded = true;
+        for (Worker worker : workers) {
+            Destination destination = worker.destination;
+            if (!worker.isFailed() && worker.complete()) {
+                log.info("Backup destination [{}] finished: wrote {} bytes to {}", destination.label(), worker.bytesWritten.sum(), worker.name);
+                SimpleBackupUtil.deleteStaleBackupFiles(destination.backend(), destination.maxBackupsToKeep());
+            } else {
+                allSucceeded = false;
+                log.error("Backup destination [" + destination.label() + "] failed", worker.error);
+                worker.cleanup();
+            }
+        }
+        return allSucceeded;
+    }
+
+    /**
+     * Reads exactly the size of the file when opened, so archive headers written up front stay valid even if the
+     * world is still writing to it.  Region files with captured chunks are merged in memory instead.
+     *
+     * @param hostCoordinator Bandwidth budget to read the world within, or null for no limit
+     */
+    private static long readFile(Path file, String name, List<Worker> workers, RegionSnapshot snapshot, HostCoordinator hostCoordinator)
+            throws IOException, InterruptedException {
+        if (snapshot != null && snapshot.contains(file)) {
+            byte[] region = snapshot.read(file);
+            return sendFile(Channels.newChannel(new ByteArrayInputStream(region)), file, name, region.length, snapshot.getCapturedTime(), workers, hostCoordinator);
+        }
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            return sendFile(in, file, name, in.size(), Files.getLastModifiedTime(file), workers, hostCoordinator);
+        }
+    }
+
+    private static long sendFile(ReadableByteChannel in, Path file, String name, long size, FileTime lastModifiedTime,
+                                 List<Worker> workers, HostCoordinator hostCoordinator) throws IOException, InterruptedException {
+        BufferPool bufferPool = BufferPool.get();
+        for (Worker worker : workers) {
+            worker.send(new Event(EventType.START, name, size, lastModifiedTime, null));
+        }
+
+        long remaining = size;
+        while (remaining > 0) {
+            ByteBuffer buffer = bufferPool.acquire(BufferPool.bufferSizeFor(file, size));
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            if (hostCoordinator != null) {
+                try {
+                    hostCoordinator.acquireBandwidth(buffer.remaining());
+                } catch (IOException | InterruptedException e) {
+                    bufferPool.release(buffer);
+                    throw e;
+                }
+            }
+            while (buffer.hasRemaining()) {
+                if (in.read(buffer) < 0) {
+                    // Its size is already in the archives, and padding it out would back up a corrupt file
+                    bufferPool.release(buffer);
+                    throw new IOException("File " + file + " shrunk while being backed up");
+                }
+            }
+            buffer.flip();
+            remaining -= buffer.remaining();
+
+            List<Worker> live = workers.stream().filter(worker -> !worker.isFailed()).toList();
+            if (live.isEmpty()) {
+                bufferPool.release(buffer);
+                break;
+            }
+            SharedBuffer shared = new SharedBuffer(buffer, live.size());
+            for (Worker worker : live) {
+                worker.send(new Event(EventType.DATA, null, 0, null, shared));
+            }
+        }
+
+        for (Worker worker : workers) {
+            worker.send(new Event(EventType.END, null, 0, null, null));
+        }
+        return size;
+    }
+
+    /**
+     * @return How far along each destination is, as they can fall behind reading the world
+     */
+    private static String describeDestinations(List<Worker> workers, long totalBytes) {
+        StringBuilder perDestination = new StringBuilder("[");
+        for (Worker worker : workers) {
+            if (perDestination.length() > 1) {
+                perDestination.append(", ");
+            }
+            perDestination.append(worker.destination.label()).append(": ")
+                    .append(worker.isFailed() ? "FAILED" : (totalBytes > 0 ? Math.min(100, worker.bytesConsumed.sum() * 100 / totalBytes) : 100) + "%");
+        }
+        return perDestination.append("]").toString();
+    }
+
+    private enum EventType {
+        START, DATA, END, FINISH
+    }
+
+    private record Event(EventType type, String name, long size, FileTime lastModifiedTime, SharedBuffer data) {
+        static final Event FINISH = new Event(EventType.FINISH, null, 0, null, null);
+    }
+
+    private static class Worker implements Runnable {
+        private final Destination destination;
+        private final String timeStr;
+        private final String name;
+        private final BackupSettings settings;
+        private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder bytesConsumed = new LongAdder();
+        private ArchiveWriter writer;
+        // Archive formats, committed when the writer finishes
+        private StorageOutputStream output;
+        // DIRECTORY backups on a local folder, renamed when complete
+        private Path stagingFolder;
+        private volatile boolean failed = false;
+        private volatile Exception error;
+
+        Worker(Destination destination, String timeStr, BackupSettings settings) {
+            this.destination = destination;
+            this.timeStr = timeStr;
+            this.settings = settings;
+            this.name = new BackupEngine(settings).getBackupName(timeStr, destination.format());
+        }
+
+        void open() throws IOException {
+            String format = this.destination.format();
+            StorageBackend backend = this.destination.backend();
+            if (SimpleBackupUtil.DIRECTORY_FORMAT.equals(format)) {
+                Optional<Path> folder = backend.getLocalFolder();
+                if (folder.isPresent()) {
+                    this.stagingFolder = folder.get().resolve(this.timeStr + SimpleBackupUtil.STAGING_EXTENSION);
+                    this.writer = new DirectoryArchiveWriter(this.stagingFolder);
+                } else {
+                    this.writer = new StorageDirectoryArchiveWriter(backend, this.timeStr);
+                }
+            } else {
+                this.output = backend.openWrite(this.name);
+                OutputStream archive = this.settings.encryption != null
+                        ? new EncryptingOutputStream(this.output, this.settings.encryption, this.settings.numThreads) : this.output;
+                BufferedOutputStream out = new BufferedOutputStream(archive, BufferPool.MAX_BUFFER_SIZE) {
+                    @Override
+                    public synchronized void write(byte[] b, int off, int len) throws IOException {
+                        super.write(b, off, len);
+                        bytesWritten.add(len);
+                    }
+                };
+                this.writer = SimpleBackupUtil.ZIP_FORMAT.equals(format) ? new ZipArchiveWriter(out, this.settings.zipCompressionLevel)
+                        : new TarLz4ArchiveWriter(out, this.settings.lz4CompressionLevel);
+            }
+        }
+
+        boolean isFailed() {
+            return this.failed;
+        }
+
+        void fail(Exception e) {
+            if (!this.failed) {
+                this.error = e;
+                this.failed = true;
+            }
+        }
+
+        void send(Event event) throws InterruptedException {
+            if (this.failed && event.type() != EventType.FINISH) {
+                if (event.data() != null) {
+                    event.data().release();
+                }
+                return;
+            }
+            this.queue.put(event);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Event event;
+                try {
+                    event = this.queue.take();
+                } catch (InterruptedException e) {
+                    fail(e);
+                    return;
+                }
+
+                try {
+                    if (this.failed) {
+                        // Drain so the reader never blocks on us
+                        if (event.type() == EventType.FINISH) {
+                            return;
+                        }
+                        continue;
+                    }
+
+                    switch (event.type()) {
+                        case START -> this.writer.putFile(event.name(), event.size(), event.lastModifiedTime());
+                        case DATA -> {
+                            ByteBuffer view = event.data().view();
+                            int length = view.remaining();
+                            this.writer.write(view);
+                            this.bytesConsumed.add(length);
+                            if (this.output == null) {
+                                this.bytesWritten.add(length);
+                            }
+                        }
+                        case END -> this.writer.closeFile();
+                        case FINISH -> {
+                            this.writer.finish();
+                            return;
+                        }
+                    }
+                } catch (Exception e) {
+                    fail(e);
+                } finally {
+                    if (event.data() != null) {
+                        event.data().release();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Moves a finished local DIRECTORY backup to its final name.  Everything else was committed when the writer
+         * finished.
+         */
+        boolean complete() {
+            if (this.stagingFolder == null) {
+                return true;
+            }
+            try {
+                Files.move(this.stagingFolder, this.stagingFolder.resolveSibling(this.name), StandardCopyOption.ATOMIC_MOVE);
+                return true;
+            } catch (IOException e) {
+                fail(e);
+                return false;
+            }
+        }
+
+        void cleanup() {
+            // Abort first so closing the writer can't commit a half written archive
+            if (this.output != null) {
+                this.output.abort();
+            }
+            try {
+                if (this.writer != null) {
+                    this.writer.close();
+                }
+            } catch (IOException e) {
+                log.debug("Could not close writer for backup destination " + this.destination.label(), e);
+            }
+            
+            if (this.stagingFolder != null) {
+                SimpleBackupUtil.cleanupFailedBackup(this.stagingFolder);
+            } else if (this.writer instanceof StorageDirectoryArchiveWriter) {
+                try {
+                    this.destination.backend().delete(this.name);
+                } catch (IOException e) {
+                    log.error("Could not clean up failed backup " + this.name + " in " + this.destination.backend().getName(), e);
+                }
+            }
+        }
+    }
+}
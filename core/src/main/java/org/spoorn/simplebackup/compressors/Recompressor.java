@@ -0,0 +1,172 @@
+package org.spoorn.simplebackup.compressors;
+
+import lombok.extern.log4j.Log4j2;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.spoorn.simplebackup.io.BackupReader;
+import org.spoorn.simplebackup.io.BufferPool;
+import org.spoorn.simplebackup.io.TarBackupReader;
+import org.spoorn.simplebackup.io.TarXzArchiveWriter;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Recompresses an existing backup of any format into a .tar.xz, which is much smaller than ZIP or LZ4 but far too slow
+ * to write while the server is running a normal backup.
+ *
+ * The new archive is written to a .tmp file, then read back and checked file by file against the original before it
+ * is moved into place and the original deleted, so a crash at any point leaves at least one complete copy.
+ */
+@Log4j2
+public class Recompressor {
+
+    public static final String TAR_XZ_EXTENSION = ".tar.xz";
+
+    private record FileChecksum(long size, long crc) {}
+
+    /**
+     * @param preset XZ preset from 0 to 9
+     * @param shouldStop Checked regularly, stops and discards the new archive if this returns true
+     * @return True if the backup was replaced by a .tar.xz, false if stopped or failed, in which case the original is untouched
+     */
+    public static boolean recompress(Path backup, int preset, BooleanSupplier shouldStop) {
+        Path target = backup.resolveSibling(getBaseName(backup.getFileName().toString()) + TAR_XZ_EXTENSION);
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            long originalSize = Files.isDirectory(backup) ? SimpleBackupUtil.getDirectorySize(backup) : Files.size(backup);
+            FileTime lastModifiedTime = Files.getLastModifiedTime(backup);
+
+            // Left over from a crash between moving the new archive into place and deleting the original
+            if (Files.exists(target)) {
+                if (matches(target, backup)) {
+                    log.info("Recompressed backup {} already exists, deleting the original", target);
+                    deleteBackup(backup);
+                    return true;
+                }
+                log.warn("Replacing recompressed backup {} as it does not match the original", target);
+                Files.delete(target);
+            }
+
+            Map<String, FileChecksum> expected;
+            try (TarXzArchiveWriter writer = new TarXzArchiveWriter(new BufferedOutputStream(Files.newOutputStream(tmp), BufferPool.MAX_BUFFER_SIZE), preset)) {
+                expected = checksums(BackupReader.open(backup), new Copy(writer, shouldStop));
+                if (expected != null) {
+                    writer.finish();
+                }
+            }
+            if (expected == null) {
+                log.info("Stopped recompressing backup {}", backup);
+                Files.deleteIfExists(tmp);
+                return false;
+            }
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+
+            if (!expected.equals(checksums(openTarXz(tmp), null))) {
+                log.error("Recompressed backup {} does not match the original {}.  Keeping the original", tmp, backup);
+                Files.deleteIfExists(tmp);
+                return false;
+            }
+
+            Files.setLastModifiedTime(tmp, lastModifiedTime);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            deleteBackup(backup);
+            log.info("Recompressed backup {} from {} bytes to {} bytes at {}", backup, originalSize, Files.size(target), target);
+            return true;
+        } catch (Exception e) {
+            log.error("Could not recompress backup " + backup, e);
+            SimpleBackupUtil.cleanupFailedBackup(tmp);
+            return false;
+        }
+    }
+
+    /**
+     * @return Name of the backup without its format extension, i.e. the time it was created
+     */
+    public static String getBaseName(String fileName) {
+        for (String extension : new String[]{ZipCompressor.ZIP_EXTENSION, LZ4Compressor.TAR_LZ4_EXTENSION, TAR_XZ_EXTENSION}) {
+            if (fileName.endsWith(extension)) {
+                return fileName.substring(0, fileName.length() - extension.length());
+            }
+        }
+        return fileName;
+    }
+
+    private static BackupReader openTarXz(Path file) throws IOException {
+        return new TarBackupReader(new XZCompressorInputStream(new BufferedInputStream(Files.newInputStream(file), BufferPool.MAX_BUFFER_SIZE)));
+    }
+
+    private static boolean matches(Path tarXz, Path backup) {
+        try {
+            return checksums(openTarXz(tarXz), null).equals(checksums(BackupReader.open(backup), null));
+        } catch (IOException e) {
+            log.debug("Could not compare " + tarXz + " to " + backup, e);
+            return false;
+        }
+    }
+
+    private static void deleteBackup(Path backup) throws IOException {
+        if (Files.isDirectory(backup)) {
+            SimpleBackupUtil.deleteRecursively(backup);
+        } else {
+            Files.delete(backup);
+        }
+    }
+
+    /**
+     * Reads every file in a backup, computing its size and CRC32, and optionally copies it into an archive.
+     *
+     * @return Checksums by file name, or null if the copy was stopped
+     */
+    private static Map<String, FileChecksum> checksums(BackupReader reader, Copy copy) throws IOException {
+        Map<String, FileChecksum> checksums = new HashMap<>();
+        byte[] buffer = new byte[64 * 1024];
+        try (reader) {
+            BackupReader.Entry entry;
+            while ((entry = reader.next()) != null) {
+                if (copy != null) {
+                    copy.writer.putFile(entry.name(), entry.size(), entry.lastModifiedTime());
+                }
+                CRC32 crc = new CRC32();
+                long size = 0;
+                InputStream in = reader.stream();
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    if (copy != null && copy.shouldStop.getAsBoolean()) {
+                        return null;
+                    }
+                    crc.update(buffer, 0, read);
+                    size += read;
+                    if (copy != null) {
+                        copy.writer.write(ByteBuffer.wrap(buffer, 0, read));
+                    }
+                }
+                if (size != entry.size()) {
+                    throw new IOException(String.format("File %s in backup has %d bytes, expected %d", entry.name(), size, entry.size()));
+                }
+                if (copy != null) {
+                    copy.writer.closeFile();
+                }
+                checksums.put(entry.name(), new FileChecksum(size, crc.getValue()));
+            }
+        }
+        return checksums;
+    }
+
+    private record Copy(TarXzArchiveWriter writer, BooleanSupplier shouldStop) {}
+}
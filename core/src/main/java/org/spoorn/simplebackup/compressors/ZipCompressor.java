@@ -0,0 +1,154 @@
+package org.spoorn.simplebackup.compressors;
+
+import lombok.extern.log4j.Log4j2;
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.model.ExcludeFileFilter;
+import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.model.ZipParameters;
+import net.lingala.zip4j.model.enums.CompressionLevel;
+import net.lingala.zip4j.progress.ProgressMonitor;
+import org.spoorn.simplebackup.config.BackupSettings;
+import org.spoorn.simplebackup.io.DirectoryCopier;
+import org.spoorn.simplebackup.io.ZipCheckpoint;
+import org.spoorn.simplebackup.progress.BackupProgress;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+@Log4j2
+public class ZipCompressor {
+    
+    public static final String ZIP_EXTENSION = ".zip";
+    private static final long MIN_BATCH_SIZE = 16 * 1024 * 1024;
+    
+    /**
+     * @param level Deflate level from 1 (fastest) to 9 (smallest)
+     */
+    public static CompressionLevel getCompressionLevel(int level) {
+        for (CompressionLevel compressionLevel : CompressionLevel.values()) {
+            if (compressionLevel.getLevel() == level) {
+                return compressionLevel;
+            }
+        }
+        return CompressionLevel.NORMAL;
+    }
+
+    /**
+     * @param progress Reads zip4j's own progress counter, so the zip runs on the calling thread without polling
+     */
+    public static boolean zip(String targetPath, String destinationPath, BackupSettings settings, BackupProgress progress) {
+        try {
+            ExcludeFileFilter excludeFileFilter = file -> SimpleBackupUtil.FILES_TO_SKIP_COPY.contains(file.getName());
+            ZipParameters parameters = new ZipParameters();
+            parameters.setExcludeFileFilter(excludeFileFilter);
+            parameters.setCompressionLevel(getCompressionLevel(settings.zipCompressionLevel));
+
+            ZipFile zipFile = new ZipFile(destinationPath + ZIP_EXTENSION);
+            File targetFile = new File(targetPath);
+            // zip4j only works out the total itself when it runs in its own thread
+            progress.setTotals(targetFile.isDirectory() ? SimpleBackupUtil.getDirectorySize(targetFile.toPath()) : targetFile.length(), -1);
+            progress.trackBytes(zipFile.getProgressMonitor()::getWorkCompleted);
+
+            if (targetFile.isDirectory()) {
+                zipFile.addFolder(targetFile, parameters);
+            } else if (targetFile.isFile()) {
+                zipFile.addFile(targetFile, parameters);
+            } else {
+                throw new IllegalArgumentException("Target Path=" + targetPath + " is not a valid file or directory to backup");
+            }
+            
+            return true;
+        } catch (Exception e) {
+            log.error("Could not zip target=[" + targetPath + "] to [" + destinationPath + "]", e);
+            return false;
+        }
+    }
+
+    /**
+     * Zips a folder in batches into a .partial file, saving a checkpoint after every batch.  If the partial file and
+     * checkpoint already exist, the archive is rolled back to the last checkpoint and only the remaining files are added.
+     * Batches are sized so a checkpoint is saved roughly every checkpointIntervalInSeconds.
+     */
+    public static boolean zipResumable(Path targetPath, Path partialFile, Path checkpointFile, BackupSettings settings, BackupProgress progress) {
+        try {
+            Set<String> completed = new HashSet<>();
+            if (Files.exists(partialFile)) {
+                if (Files.exists(checkpointFile) && ZipCheckpoint.restore(partialFile, checkpointFile)) {
+                    try (ZipFile existing = new ZipFile(partialFile.toFile())) {
+                        for (FileHeader fileHeader : existing.getFileHeaders()) {
+                            completed.add(fileHeader.getFileName());
+                        }
+                    }
+                    log.info("Resuming backup at {} with {} files already archived", partialFile, completed.size());
+                } else {
+                    log.warn("Could not restore checkpoint for {}.  Starting the backup over", partialFile);
+                    Files.delete(partialFile);
+                }
+            }
+
+            // Entry names are relative to the world folder's parent, same as addFolder()
+            Path root = targetPath.getParent();
+            List<File> remaining = new ArrayList<>();
+            long[] totalBytes = {0};
+            Files.walkFileTree(targetPath, new SimpleFileVisitor<>() {
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!SimpleBackupUtil.FILES_TO_SKIP_COPY.contains(file.getFileName().toString())
+                            && !completed.contains(DirectoryCopier.toRelativeString(root.relativize(file)))) {
+                        remaining.add(file.toFile());
+                        totalBytes[0] += attrs.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            ZipParameters parameters = new ZipParameters();
+            parameters.setDefaultFolderPath(root.toString());
+            parameters.setCompressionLevel(getCompressionLevel(settings.zipCompressionLevel));
+            long checkpointIntervalMillis = Math.max(1, settings.checkpointIntervalInSeconds) * 1000L;
+            long batchSize = MIN_BATCH_SIZE;
+            try (ZipFile zipFile = new ZipFile(partialFile.toFile())) {
+                // Finished batches, plus how far zip4j is into the current one
+                ProgressMonitor progressMonitor = zipFile.getProgressMonitor();
+                LongAdder doneBytes = new LongAdder();
+                progress.setTotals(totalBytes[0], remaining.size());
+                progress.trackBytes(() -> doneBytes.sum() + (progressMonitor.getState() == ProgressMonitor.State.BUSY ? progressMonitor.getWorkCompleted() : 0));
+                int i = 0;
+                while (i < remaining.size()) {
+                    List<File> batch = new ArrayList<>();
+                    long batchBytes = 0;
+                    while (i < remaining.size() && (batch.isEmpty() || batchBytes < batchSize)) {
+                        File file = remaining.get(i++);
+                        batch.add(file);
+                        batchBytes += file.length();
+                    }
+
+                    long start = System.currentTimeMillis();
+                    zipFile.addFiles(batch, parameters);
+                    ZipCheckpoint.save(partialFile, checkpointFile);
+                    long elapsed = Math.max(1, System.currentTimeMillis() - start);
+                    batchSize = Math.max(MIN_BATCH_SIZE, batchBytes * checkpointIntervalMillis / elapsed);
+                    doneBytes.add(batchBytes);
+                    progress.addFiles(batch.size());
+                }
+            }
+
+            return true;
+        } catch (Exception e) {
+            log.error("Could not zip target=[" + targetPath + "] to [" + partialFile + "]", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.spoorn.simplebackup.config;
+
+import org.spoorn.simplebackup.compressors.MultiDestinationCompressor;
+import org.spoorn.simplebackup.io.BackupEncryption;
+import org.spoorn.simplebackup.util.HostCoordinator;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings of the backup engine, passed to it explicitly so it can run outside the game.  The mod fills these in from
+ * {@code ModConfig}, the command line tool from its arguments.  See config-documentation.json5 for what each of them does.
+ */
+public class BackupSettings {
+
+    // Folder backups are written to, and where the .simplebackup metadata folder lives
+    public Path backupPath;
+
+    public int numThreads = 1;
+
+    public String sourceStorageType = "AUTO";
+
+    public String backupStorageType = "AUTO";
+
+    public int multiThreadBufferSize = 8192;
+
+    // Deflate level of ZIP backups, 1 (fastest) to 9 (smallest)
+    public int zipCompressionLevel = 5;
+
+    // 0 for LZ4's fast compressor, 1 to 17 for its high compressor at that level
+    public int lz4CompressionLevel = 0;
+
+    // Used by CompressionTuner, which overrides the thread count, buffer size and compression levels above
+    public int autotuneTimeBudgetInSeconds = 300;
+
+    public int autotuneMaxCpuPercent = 50;
+
+    public boolean enableResumableBackups = false;
+
+    public int checkpointIntervalInSeconds = 60;
+
+    public int percentageAvailableDiskSpaceRequirement = 20;
+
+    public int maxBackupsToKeep = 10;
+
+    // 0 to not log progress
+    public int intervalPercentageToLogBackupProgress = 10;
+
+    // Destinations backed up to alongside backupPath, reading the world only once
+    public List<MultiDestinationCompressor.Destination> additionalDestinations = new ArrayList<>();
+
+    // Key to encrypt ZIP and LZ4 backups with, or null to not encrypt them
+    public BackupEncryption encryption;
+    // Shares concurrency and bandwidth limits with the other servers on the host, or null to not coordinate
+    public HostCoordinator hostCoordinator;
+
+    public BackupSettings(Path backupPath) {
+        this.backupPath = backupPath;
+    }
+
+    public boolean shouldLogProgress() {
+        return this.intervalPercentageToLogBackupProgress > 0 && this.intervalPercentageToLogBackupProgress <= 100;
+    }
+}
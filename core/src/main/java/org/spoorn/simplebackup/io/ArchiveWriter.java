@@ -0,0 +1,27 @@
+package org.spoorn.simplebackup.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Streaming sink for one backup output.  Files are written one at a time: {@link #putFile}, any number of
+ * {@link #write} calls, then {@link #closeFile}.  {@link #finish} completes the archive, and {@link #close} releases
+ * resources without completing it if the backup failed.
+ */
+public interface ArchiveWriter extends Closeable {
+
+    /**
+     * @param name Path of the file inside the backup, with forward slashes
+     * @param size Exact number of bytes that will be written for this file
+     * @param lastModifiedTime Last modified time of the source file
+     */
+    void putFile(String name, long size, FileTime lastModifiedTime) throws IOException;
+
+    void write(ByteBuffer data) throws IOException;
+
+    void closeFile() throws IOException;
+
+    void finish() throws IOException;
+}
@@ -0,0 +1,249 @@
+package org.spoorn.simplebackup.io;
+
+import lombok.extern.log4j.Log4j2;
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.util.Zip4jUtil;
+import org.spoorn.simplebackup.compressors.ZipCompressor;
+import org.spoorn.tarlz4java.util.concurrent.NamedThreadFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares two backups of the same world, listing the files that were added, removed or modified, and for region
+ * files, which chunks changed.
+ *
+ * Only metadata is compared, never file contents: sizes and CRCs from the ZIP central directory, or sizes and last
+ * modified times otherwise, and the chunk timestamps in the header of each region file.  DIRECTORY and ZIP backups are
+ * read with random access, so only the 8 KB header of each modified region file is read, one dimension per thread.
+ * Tar based backups have to be read front to back once, keeping just the region file headers.
+ */
+@Log4j2
+public class BackupDiff {
+
+    private static final int SECTOR_SIZE = 4096;
+    private static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+    // DOS times in ZIP files are only accurate to 2 seconds
+    private static final long MODIFIED_TIME_SLACK_MILLIS = 2000;
+
+    /**
+     * @param crc CRC32 of the file, or -1 if the backup format doesn't store it
+     */
+    private record FileInfo(long size, long crc, long lastModifiedMillis) {}
+
+    /**
+     * Chunks by coordinates, as {@code x,z}
+     */
+    public record ChunkChanges(List<String> added, List<String> removed, List<String> modified) {}
+
+    /**
+     * @param chunkChanges Changed chunks of each modified region file, including entities and poi region files
+     */
+    public record Report(List<String> addedFiles, List<String> removedFiles, List<String> modifiedFiles, Map<String, ChunkChanges> chunkChanges) {
+
+        public int changedChunkCount() {
+            return this.chunkChanges.values().stream().mapToInt(changes -> changes.added().size() + changes.removed().size() + changes.modified().size()).sum();
+        }
+
+        /**
+         * @return Human readable report, one line per change
+         */
+        public List<String> toLines() {
+            List<String> lines = new ArrayList<>();
+            lines.add(String.format("%d files added, %d removed, %d modified.  %d chunks changed", this.addedFiles.size(),
+                    this.removedFiles.size(), this.modifiedFiles.size(), changedChunkCount()));
+            this.addedFiles.forEach(name -> lines.add("+ " + name));
+            this.removedFiles.forEach(name -> lines.add("- " + name));
+            for (String name : this.modifiedFiles) {
+                lines.add("M " + name);
+                ChunkChanges changes = this.chunkChanges.get(name);
+                if (changes != null) {
+                    changes.added().forEach(chunk -> lines.add("\t+ chunk " + chunk));
+                    changes.removed().forEach(chunk -> lines.add("\t- chunk " + chunk));
+                    changes.modified().forEach(chunk -> lines.add("\tM chunk " + chunk));
+                }
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * @param from Older backup
+     * @param to Newer backup
+     * @param encryption Key to read encrypted backups with, or null if there is none
+     */
+    public static Report diff(Path from, Path to, int numThreads, BackupEncryption encryption) throws IOException {
+        BackupExtractor.checkFullBackup(from);
+        BackupExtractor.checkFullBackup(to);
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.max(2, numThreads), new NamedThreadFactory("SimpleBackup-Diff"));
+        try {
+            // Both backups at once, as tar based backups take a full read
+            Map<String, FileInfo> fromFiles = new HashMap<>();
+            Map<String, FileInfo> toFiles = new HashMap<>();
+            Map<String, ByteBuffer> fromHeaders = new HashMap<>();
+            Map<String, ByteBuffer> toHeaders = new HashMap<>();
+            Future<?> fromFuture = executorService.submit(() -> readMetadata(from, fromFiles, fromHeaders, encryption));
+            Future<?> toFuture = executorService.submit(() -> readMetadata(to, toFiles, toHeaders, encryption));
+            fromFuture.get();
+            toFuture.get();
+
+            TreeSet<String> added = new TreeSet<>(toFiles.keySet());
+            added.removeAll(fromFiles.keySet());
+            TreeSet<String> removed = new TreeSet<>(fromFiles.keySet());
+            removed.removeAll(toFiles.keySet());
+            TreeSet<String> modified = new TreeSet<>();
+            for (Map.Entry<String, FileInfo> file : toFiles.entrySet()) {
+                FileInfo before = fromFiles.get(file.getKey());
+                if (before != null && isModified(before, file.getValue())) {
+                    modified.add(file.getKey());
+                }
+            }
+
+            // Chunk changes of modified region files, a dimension per task
+            Map<String, List<String>> regionsByDimension = new TreeMap<>();
+            for (String name : modified) {
+                if (name.endsWith(RegionSnapshot.REGION_EXTENSION)) {
+                    regionsByDimension.computeIfAbsent(getDimension(name), k -> new ArrayList<>()).add(name);
+                }
+            }
+            List<Future<Map<String, ChunkChanges>>> futures = new ArrayList<>();
+            for (List<String> regions : regionsByDimension.values()) {
+                futures.add(executorService.submit(() -> {
+                    Map<String, ChunkChanges> changes = new HashMap<>();
+                    // Random access backups are opened once per task rather than once per region file
+                    try (BackupExtractor.RandomAccess fromAccess = openRandomAccess(from, encryption);
+                         BackupExtractor.RandomAccess toAccess = openRandomAccess(to, encryption)) {
+                        for (String region : regions) {
+                            ByteBuffer fromHeader = getHeader(fromAccess, region, fromHeaders);
+                            ByteBuffer toHeader = getHeader(toAccess, region, toHeaders);
+                            if (fromHeader != null && toHeader != null) {
+                                changes.put(region, compareHeaders(region, fromHeader, toHeader));
+                            }
+                        }
+                    }
+                    return changes;
+                }));
+            }
+            Map<String, ChunkChanges> chunkChanges = new TreeMap<>();
+            for (Future<Map<String, ChunkChanges>> future : futures) {
+                chunkChanges.putAll(future.get());
+            }
+            return new Report(List.copyOf(added), List.copyOf(removed), List.copyOf(modified), chunkChanges);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Could not compare backups " + from + " and " + to, e);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private static boolean isModified(FileInfo before, FileInfo after) {
+        if (before.size() != after.size()) {
+            return true;
+        }
+        if (before.crc() >= 0 && after.crc() >= 0) {
+            return before.crc() != after.crc();
+        }
+        return Math.abs(before.lastModifiedMillis() - after.lastModifiedMillis()) >= MODIFIED_TIME_SLACK_MILLIS;
+    }
+
+    /**
+     * @return Folder of the dimension a region file belongs to, i.e. {@code world/DIM-1} for {@code world/DIM-1/region/r.0.0.mca}
+     */
+    private static String getDimension(String regionFile) {
+        String folder = regionFile.substring(0, Math.max(0, regionFile.lastIndexOf('/')));
+        return folder.substring(0, Math.max(0, folder.lastIndexOf('/')));
+    }
+
+    /**
+     * Reads the metadata of every file in a backup.  Region file headers are kept for tar based backups only, the
+     * others are read on demand.
+     */
+    private static Void readMetadata(Path backup, Map<String, FileInfo> files, Map<String, ByteBuffer> headers, BackupEncryption encryption) throws IOException {
+        if (!Files.isDirectory(backup) && backup.getFileName().toString().endsWith(ZipCompressor.ZIP_EXTENSION)) {
+            try (ZipFile zipFile = new ZipFile(backup.toFile())) {
+                for (FileHeader header : zipFile.getFileHeaders()) {
+                    if (!header.isDirectory()) {
+                        files.put(header.getFileName(), new FileInfo(header.getUncompressedSize(), header.getCrc(),
+                                Zip4jUtil.dosToExtendedEpochTme(header.getLastModifiedTime())));
+                    }
+                }
+            }
+            return null;
+        }
+
+        boolean keepHeaders = !BackupExtractor.isRandomAccess(backup);
+        try (BackupReader reader = BackupReader.open(backup, encryption)) {
+            BackupReader.Entry entry;
+            while ((entry = reader.next()) != null) {
+                files.put(entry.name(), new FileInfo(entry.size(), -1, entry.lastModifiedTime().toMillis()));
+                if (keepHeaders && entry.name().endsWith(RegionSnapshot.REGION_EXTENSION)) {
+                    headers.put(entry.name(), readHeader(reader.stream()));
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Backup opened for random access, or null if it's tar based and its headers were kept by {@link #readMetadata}
+     */
+    private static BackupExtractor.RandomAccess openRandomAccess(Path backup, BackupEncryption encryption) throws IOException {
+        return BackupExtractor.isRandomAccess(backup) ? new BackupExtractor.RandomAccess(backup, encryption) : null;
+    }
+
+    private static ByteBuffer getHeader(BackupExtractor.RandomAccess randomAccess, String regionFile, Map<String, ByteBuffer> headers) throws IOException {
+        if (randomAccess == null) {
+            return headers.get(regionFile);
+        }
+        try (InputStream in = randomAccess.open(regionFile)) {
+            return in != null ? readHeader(in) : null;
+        }
+    }
+
+    private static ByteBuffer readHeader(InputStream in) throws IOException {
+        // Missing entries in a short header are empty
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        byte[] bytes = in.readNBytes(HEADER_SIZE);
+        return header.put(bytes).clear();
+    }
+
+    private static ChunkChanges compareHeaders(String regionFile, ByteBuffer from, ByteBuffer to) {
+        // r.<x>.<z>.mca
+        String[] parts = regionFile.substring(regionFile.lastIndexOf('/') + 1).split("\\.");
+        int regionX = Integer.parseInt(parts[1]);
+        int regionZ = Integer.parseInt(parts[2]);
+
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        List<String> modified = new ArrayList<>();
+        for (int i = 0; i < SECTOR_SIZE / 4; i++) {
+            int fromLocation = from.getInt(i * 4);
+            int toLocation = to.getInt(i * 4);
+            String chunk = (regionX * 32 + (i & 31)) + "," + (regionZ * 32 + (i >> 5));
+            if (fromLocation == 0 && toLocation != 0) {
+                added.add(chunk);
+            } else if (fromLocation != 0 && toLocation == 0) {
+                removed.add(chunk);
+            } else if (fromLocation != 0 && (from.getInt(SECTOR_SIZE + i * 4) != to.getInt(SECTOR_SIZE + i * 4)
+                    || (fromLocation & 0xFF) != (toLocation & 0xFF))) {
+                // The game updates the timestamp every time it saves a chunk
+                modified.add(chunk);
+            }
+        }
+        return new ChunkChanges(added, removed, modified);
+    }
+}
@@ -0,0 +1,244 @@
+package org.spoorn.simplebackup.io;
+
+import lombok.extern.log4j.Log4j2;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Set;
+
+/**
+ * Authenticated encryption of archive backups, applied to the compressed archive as it is written.
+ *
+ * An encrypted backup is a header followed by the archive split into blocks of {@link #BLOCK_SIZE} bytes, each
+ * encrypted on its own with AES-GCM or ChaCha20-Poly1305 and followed by its 16 byte tag.  Blocks are independent, so
+ * they are encrypted in parallel by {@link EncryptingOutputStream} and any block can be decrypted without the others,
+ * which keeps encrypted ZIP backups readable with random access through {@link EncryptedFileChannel}.
+ *
+ * Each backup gets its own key, derived with HKDF-SHA256 from the key file and a random salt stored in its header.
+ * The nonce of a block is its index, with the top bit set on the last block, and the header is authenticated with
+ * every block.  So blocks can't be reordered, dropped, or moved between backups, and a truncated backup fails to
+ * decrypt instead of looking complete.
+ */
+@Log4j2
+public class BackupEncryption {
+
+    public static final String ENCRYPTED_EXTENSION = ".enc";
+    public static final String AES_GCM = "AES_GCM";
+    public static final String CHACHA20_POLY1305 = "CHACHA20_POLY1305";
+
+    public static final int BLOCK_SIZE = BufferPool.MAX_BUFFER_SIZE;
+    static final int TAG_SIZE = 16;
+    static final int ENCRYPTED_BLOCK_SIZE = BLOCK_SIZE + TAG_SIZE;
+
+    private static final byte[] MAGIC = "SBENC".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+    private static final int SALT_SIZE = 32;
+    private static final int KEY_SIZE = 32;
+    private static final int NONCE_SIZE = 12;
+    private static final int MIN_KEY_FILE_SIZE = 32;
+    // Magic, version, algorithm, block size, salt
+    static final int HEADER_SIZE = MAGIC.length + 2 + 4 + SALT_SIZE;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final byte[] masterKey;
+    private final String algorithm;
+
+    /**
+     * A key and cipher for a single backup, parsed from or written to its header.
+     */
+    class FileKey {
+        final byte[] header;
+        private final String algorithm;
+        private final SecretKeySpec key;
+
+        private FileKey(byte[] header, String algorithm, byte[] salt) throws IOException {
+            this.header = header;
+            this.algorithm = algorithm;
+            this.key = new SecretKeySpec(deriveKey(salt), AES_GCM.equals(algorithm) ? "AES" : "ChaCha20");
+        }
+
+        /**
+         * @return Ciphertext of the block followed by its tag
+         */
+        byte[] encrypt(byte[] block, int length, long index, boolean last) throws IOException {
+            try {
+                return cipher(Cipher.ENCRYPT_MODE, index, last).doFinal(block, 0, length);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not encrypt block " + index, e);
+            }
+        }
+
+        /**
+         * @return Plaintext of the block
+         * @throws IOException If the block was modified, moved, truncated or encrypted with a different key
+         */
+        byte[] decrypt(byte[] block, int length, long index, boolean last) throws IOException {
+            try {
+                return cipher(Cipher.DECRYPT_MODE, index, last).doFinal(block, 0, length);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Block " + index + " failed authentication, the backup is corrupt or was encrypted with a different key", e);
+            }
+        }
+
+        private Cipher cipher(int mode, long index, boolean last) throws GeneralSecurityException {
+            byte[] nonce = new byte[NONCE_SIZE];
+            ByteBuffer.wrap(nonce).putLong(NONCE_SIZE - Long.BYTES, index);
+            if (last) {
+                nonce[0] |= (byte) 0x80;
+            }
+            Cipher cipher;
+            if (AES_GCM.equals(this.algorithm)) {
+                cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(mode, this.key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+            } else {
+                cipher = Cipher.getInstance("ChaCha20-Poly1305");
+                cipher.init(mode, this.key, new IvParameterSpec(nonce));
+            }
+            cipher.updateAAD(this.header);
+            return cipher;
+        }
+    }
+
+    public BackupEncryption(byte[] masterKey, String algorithm) {
+        if (!isSupportedAlgorithm(algorithm)) {
+            throw new IllegalArgumentException("Unknown encryption algorithm " + algorithm + ", must be " + AES_GCM + " or " + CHACHA20_POLY1305);
+        }
+        this.masterKey = masterKey;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Loads the key file, creating it with a random key readable only by its owner if it doesn't exist yet.
+     */
+    public static BackupEncryption load(Path keyFile, String algorithm) throws IOException {
+        if (!Files.exists(keyFile)) {
+            byte[] key = new byte[KEY_SIZE];
+            RANDOM.nextBytes(key);
+            if (keyFile.getParent() != null) {
+                Files.createDirectories(keyFile.getParent());
+            }
+            // Created with owner only permissions, so the key is never readable by others, not even briefly
+            FileAttribute<?>[] attributes = FileSystems.getDefault().supportedFileAttributeViews().contains("posix")
+                    ? new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))}
+                    : new FileAttribute<?>[0];
+            try (SeekableByteChannel channel = Files.newByteChannel(keyFile, Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), attributes)) {
+                ByteBuffer buffer = ByteBuffer.wrap(Base64.getEncoder().encode(key));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            log.warn("Created encryption key file {}.  Keep a copy of it somewhere other than the backups, encrypted backups can't be restored without it", keyFile);
+        }
+        // Trailing whitespace is ignored, so a newline added by an editor doesn't change the key
+        String text = Files.readString(keyFile, StandardCharsets.ISO_8859_1).stripTrailing();
+        byte[] key = text.getBytes(StandardCharsets.ISO_8859_1);
+        if (key.length < MIN_KEY_FILE_SIZE) {
+            throw new IOException("Encryption key file " + keyFile + " must have at least " + MIN_KEY_FILE_SIZE + " bytes");
+        }
+        return new BackupEncryption(key, algorithm);
+    }
+
+    public static boolean isSupportedAlgorithm(String algorithm) {
+        return AES_GCM.equals(algorithm) || CHACHA20_POLY1305.equals(algorithm);
+    }
+
+    public static boolean isEncrypted(Path backup) {
+        return backup.getFileName().toString().endsWith(ENCRYPTED_EXTENSION);
+    }
+
+    /**
+     * @return File name without the {@link #ENCRYPTED_EXTENSION}, i.e. the name of the archive inside
+     */
+    public static String stripExtension(String fileName) {
+        return fileName.endsWith(ENCRYPTED_EXTENSION) ? fileName.substring(0, fileName.length() - ENCRYPTED_EXTENSION.length()) : fileName;
+    }
+
+    public String getAlgorithm() {
+        return this.algorithm;
+    }
+
+    /**
+     * Encrypts a finished archive into a new file.
+     */
+    public void encryptFile(Path source, Path target, int numThreads) throws IOException {
+        try (EncryptingOutputStream out = new EncryptingOutputStream(Files.newOutputStream(target), this, numThreads)) {
+            Files.copy(source, out);
+        } catch (IOException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+    }
+
+    /**
+     * @return Key for a new backup, with a fresh salt
+     */
+    FileKey newFileKey() throws IOException {
+        byte[] salt = new byte[SALT_SIZE];
+        RANDOM.nextBytes(salt);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).put(VERSION).put((byte) (AES_GCM.equals(this.algorithm) ? 1 : 2)).putInt(BLOCK_SIZE).put(salt);
+        return new FileKey(header.array(), this.algorithm, salt);
+    }
+
+    /**
+     * @return Key of an existing backup.  The algorithm comes from the header, not the one configured
+     */
+    FileKey readFileKey(byte[] header) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not an encrypted backup");
+        }
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported encrypted backup version " + version);
+        }
+        byte algorithmId = buffer.get();
+        if (algorithmId != 1 && algorithmId != 2) {
+            throw new IOException("Unknown encryption algorithm id " + algorithmId);
+        }
+        int blockSize = buffer.getInt();
+        if (blockSize != BLOCK_SIZE) {
+            throw new IOException("Unsupported encrypted block size " + blockSize);
+        }
+        byte[] salt = new byte[SALT_SIZE];
+        buffer.get(salt);
+        return new FileKey(header, algorithmId == 1 ? AES_GCM : CHACHA20_POLY1305, salt);
+    }
+
+    /**
+     * HKDF-SHA256 (RFC 5869) with a single output block.
+     */
+    private byte[] deriveKey(byte[] salt) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+            byte[] prk = mac.doFinal(this.masterKey);
+            mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            mac.update("simplebackup backup key".getBytes(StandardCharsets.US_ASCII));
+            mac.update((byte) 1);
+            return Arrays.copyOf(mac.doFinal(), KEY_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not derive backup key", e);
+        }
+    }
+}
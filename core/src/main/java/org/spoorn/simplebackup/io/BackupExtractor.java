@@ -0,0 +1,362 @@
+package org.spoorn.simplebackup.io;
+
+import lombok.extern.log4j.Log4j2;
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.model.FileHeader;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.spoorn.simplebackup.compressors.ZipCompressor;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+import org.spoorn.tarlz4java.util.concurrent.NamedThreadFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads single files and chunks out of a backup without extracting the rest of it, or extracts all of it.
+ *
+ * DIRECTORY and ZIP backups are read with random access, with region files spread over threads that each open the
+ * backup once, and only the bytes of a region file up to the last chunk needed are read.  .tar.lz4 and .tar.xz backups
+ * can only be read front to back, so they are read once, stopping as soon as everything needed was found.  Encrypted ZIP backups still have random access,
+ * as only the blocks holding the files that are read get decrypted.
+ *
+ * See https://minecraft.wiki/w/Region_file_format
+ */
+@Log4j2
+public class BackupExtractor {
+
+    private static final int SECTOR_SIZE = 4096;
+    private static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+    private static final int EXTERNAL_FLAG = 0x80;
+
+    /**
+     * @param compression Compression type of the chunk's NBT, i.e. 2 for zlib
+     * @param data Compressed chunk NBT
+     */
+    public record RegionChunk(int compression, byte[] data) {}
+
+    /**
+     * @param name Path of the file inside the backup, i.e. {@code world/playerdata/<uuid>.dat}
+     * @param encryption Key to read encrypted backups with, or null if there is none
+     * @return Contents of the file, or empty if it's not in the backup
+     */
+    public static Optional<byte[]> readFile(Path backup, String name, BackupEncryption encryption) throws IOException {
+        checkFullBackup(backup);
+        Map<String, byte[]> files = readFiles(backup, Set.of(name), encryption);
+        return Optional.ofNullable(files.get(name));
+    }
+
+    /**
+     * Extracts every file in a backup into a folder, keeping last modified times.
+     *
+     * @param destination Folder to extract to, i.e. the server folder to get {@code <destination>/world}
+     * @param encryption Key to read encrypted backups with, or null if there is none
+     * @return Number of files extracted
+     */
+    public static long extractAll(Path backup, Path destination, BackupEncryption encryption) throws IOException {
+        checkFullBackup(backup);
+        Path root = destination.toAbsolutePath().normalize();
+        long count = 0;
+        try (BackupReader reader = BackupReader.open(backup, encryption)) {
+            BackupReader.Entry entry;
+            while ((entry = reader.next()) != null) {
+                Path file = root.resolve(entry.name()).normalize();
+                if (!file.startsWith(root)) {
+                    throw new IOException("Backup " + backup + " has a file outside of its root: " + entry.name());
+                }
+                Files.createDirectories(file.getParent());
+                Files.copy(reader.stream(), file, StandardCopyOption.REPLACE_EXISTING);
+                Files.setLastModifiedTime(file, entry.lastModifiedTime());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param regionFolder Path of the region folder inside the backup, i.e. {@code world/DIM-1/region}
+     * @param chunks Absolute chunk coordinates of the chunks to read, as {@code {x, z}}
+     * @param encryption Key to read encrypted backups with, or null if there is none
+     * @return Chunks found in the backup by their coordinates as {@code x,z}.  Chunks that were never generated are left out
+     */
+    public static Map<String, RegionChunk> readChunks(Path backup, String regionFolder, List<int[]> chunks, int numThreads, BackupEncryption encryption) throws IOException {
+        checkFullBackup(backup);
+        // Chunk indices to read per region file
+        Map<String, Map<Integer, int[]>> byRegion = new HashMap<>();
+        for (int[] chunk : chunks) {
+            String regionFile = regionFolder + "/r." + (chunk[0] >> 5) + "." + (chunk[1] >> 5) + ".mca";
+            byRegion.computeIfAbsent(regionFile, k -> new HashMap<>()).put((chunk[0] & 31) + (chunk[1] & 31) * 32, chunk);
+        }
+
+        Map<String, RegionChunk> result = new HashMap<>();
+        if (isRandomAccess(backup)) {
+            // Each worker opens the backup once and reads region files until there are none left
+            Queue<Map.Entry<String, Map<Integer, int[]>>> regions = new ConcurrentLinkedQueue<>(byRegion.entrySet());
+            int numWorkers = Math.max(1, Math.min(numThreads, byRegion.size()));
+            ExecutorService executorService = Executors.newFixedThreadPool(numWorkers, new NamedThreadFactory("SimpleBackup-Extractor"));
+            try {
+                List<Future<Map<String, RegionChunk>>> futures = new ArrayList<>();
+                for (int i = 0; i < numWorkers; i++) {
+                    futures.add(executorService.submit(() -> {
+                        Map<String, RegionChunk> found = new HashMap<>();
+                        try (RandomAccess randomAccess = new RandomAccess(backup, encryption)) {
+                            Map.Entry<String, Map<Integer, int[]>> region;
+                            while ((region = regions.poll()) != null) {
+                                try (InputStream in = randomAccess.open(region.getKey())) {
+                                    if (in != null) {
+                                        found.putAll(readRegion(in, region.getValue()));
+                                    }
+                                }
+                            }
+                        }
+                        return found;
+                    }));
+                }
+                for (Future<Map<String, RegionChunk>> future : futures) {
+                    result.putAll(future.get());
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("Could not read chunks from backup " + backup, e);
+            } finally {
+                executorService.shutdownNow();
+            }
+        } else {
+            try (BackupReader reader = BackupReader.open(backup, encryption)) {
+                Set<String> remaining = new HashSet<>(byRegion.keySet());
+                BackupReader.Entry entry;
+                while (!remaining.isEmpty() && (entry = reader.next()) != null) {
+                    if (remaining.remove(entry.name())) {
+                        result.putAll(readRegion(reader.stream(), byRegion.get(entry.name())));
+                    }
+                }
+            }
+        }
+
+        // Chunks too big for their region file are in .mcc files next to it
+        Map<String, String> externalFiles = new HashMap<>();
+        for (Map.Entry<String, RegionChunk> chunk : result.entrySet()) {
+            if ((chunk.getValue().compression() & EXTERNAL_FLAG) != 0) {
+                String[] coordinates = chunk.getKey().split(",");
+                externalFiles.put(regionFolder + "/c." + coordinates[0] + "." + coordinates[1] + ".mcc", chunk.getKey());
+            }
+        }
+        if (!externalFiles.isEmpty()) {
+            Map<String, byte[]> files = readFiles(backup, externalFiles.keySet(), encryption);
+            for (Map.Entry<String, String> externalFile : externalFiles.entrySet()) {
+                String key = externalFile.getValue();
+                byte[] data = files.get(externalFile.getKey());
+                if (data != null) {
+                    result.put(key, new RegionChunk(result.get(key).compression() & ~EXTERNAL_FLAG, data));
+                } else {
+                    log.warn("Chunk {} is missing its external file {} in backup {}", key, externalFile.getKey(), backup);
+                    result.remove(key);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, byte[]> readFiles(Path backup, Set<String> names, BackupEncryption encryption) throws IOException {
+        Map<String, byte[]> files = new HashMap<>();
+        if (isRandomAccess(backup)) {
+            try (RandomAccess randomAccess = new RandomAccess(backup, encryption)) {
+                for (String name : names) {
+                    try (InputStream in = randomAccess.open(name)) {
+                        if (in != null) {
+                            files.put(name, in.readAllBytes());
+                        }
+                    }
+                }
+            }
+            return files;
+        }
+
+        try (BackupReader reader = BackupReader.open(backup, encryption)) {
+            BackupReader.Entry entry;
+            while (files.size() < names.size() && (entry = reader.next()) != null) {
+                if (names.contains(entry.name())) {
+                    files.put(entry.name(), reader.stream().readAllBytes());
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Incremental backups only have the files that changed, and can't be read as a world until they are merged into a
+     * full backup.
+     */
+    static void checkFullBackup(Path backup) throws IOException {
+        if (backup.getFileName().toString().endsWith(SimpleBackupUtil.DELTA_SUFFIX)) {
+            throw new IOException("Backup " + backup + " is an incremental backup that hasn't been merged into a full backup yet.  " +
+                    "It is merged in the background after the server starts");
+        }
+    }
+
+    static boolean isRandomAccess(Path backup) {
+        return Files.isDirectory(backup) || BackupEncryption.stripExtension(backup.getFileName().toString()).endsWith(ZipCompressor.ZIP_EXTENSION);
+    }
+
+    /**
+     * DIRECTORY or ZIP backup opened to read single files out of, encrypted or not.  The central directory of a ZIP is
+     * only read once, so a thread reading several files should open one of these and keep it.  Not thread safe, each
+     * thread opens its own so region files can be read in parallel.
+     */
+    static final class RandomAccess implements Closeable {
+
+        private final Path backup;
+        private final ZipFile zipFile;
+        private final Map<String, FileHeader> headers = new HashMap<>();
+        private final org.apache.commons.compress.archivers.zip.ZipFile encryptedZipFile;
+
+        RandomAccess(Path backup, BackupEncryption encryption) throws IOException {
+            this.backup = backup;
+            if (Files.isDirectory(backup)) {
+                this.zipFile = null;
+                this.encryptedZipFile = null;
+            } else if (BackupEncryption.isEncrypted(backup)) {
+                if (encryption == null) {
+                    throw new IOException("Backup " + backup + " is encrypted, the key file is needed to read it");
+                }
+                EncryptedFileChannel channel = new EncryptedFileChannel(backup, encryption);
+                try {
+                    this.encryptedZipFile = new org.apache.commons.compress.archivers.zip.ZipFile(channel);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+                this.zipFile = null;
+            } else {
+                this.zipFile = new ZipFile(backup.toFile());
+                this.encryptedZipFile = null;
+                try {
+                    for (FileHeader header : this.zipFile.getFileHeaders()) {
+                        this.headers.put(header.getFileName(), header);
+                    }
+                } catch (IOException e) {
+                    this.zipFile.close();
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * @return Stream of a single file, or null if the backup doesn't have it
+         */
+        InputStream open(String name) throws IOException {
+            if (this.zipFile != null) {
+                FileHeader header = this.headers.get(name);
+                return header != null ? this.zipFile.getInputStream(header) : null;
+            }
+            if (this.encryptedZipFile != null) {
+                ZipArchiveEntry entry = this.encryptedZipFile.getEntry(name);
+                return entry != null ? this.encryptedZipFile.getInputStream(entry) : null;
+            }
+            Path file = this.backup.resolve(name);
+            return Files.isRegularFile(file) ? Files.newInputStream(file) : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.zipFile != null) {
+                this.zipFile.close();
+            }
+            if (this.encryptedZipFile != null) {
+                // Also closes the channel
+                this.encryptedZipFile.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the requested chunks from a region file in the order they are stored, skipping everything else.
+     */
+    private static Map<String, RegionChunk> readRegion(InputStream in, Map<Integer, int[]> indices) throws IOException {
+        byte[] headerBytes = in.readNBytes(HEADER_SIZE);
+        if (headerBytes.length < HEADER_SIZE) {
+            return Map.of();
+        }
+        ByteBuffer header = ByteBuffer.wrap(headerBytes);
+        TreeMap<Long, Integer> byOffset = new TreeMap<>();
+        for (int index : indices.keySet()) {
+            int location = header.getInt(index * 4);
+            if (location != 0) {
+                byOffset.put((long) (location >>> 8) * SECTOR_SIZE, index);
+            }
+        }
+
+        Map<String, RegionChunk> chunks = new HashMap<>();
+        long position = HEADER_SIZE;
+        for (Map.Entry<Long, Integer> chunk : byOffset.entrySet()) {
+            long offset = chunk.getKey();
+            int index = chunk.getValue();
+            int[] coordinates = indices.get(index);
+            int sectors = header.getInt(index * 4) & 0xFF;
+            if (offset < position) {
+                log.warn("Chunk {},{} overlaps another chunk or the header in its region file, skipping it", coordinates[0], coordinates[1]);
+                continue;
+            }
+            position += skip(in, offset - position);
+            ByteBuffer prefix = ByteBuffer.wrap(in.readNBytes(5));
+            position += prefix.capacity();
+            if (position < offset + 5) {
+                // Every chunk left is stored further in
+                log.warn("Chunk {},{} is past the end of its region file, skipping it and the chunks after it", coordinates[0], coordinates[1]);
+                break;
+            }
+            int length = prefix.getInt();
+            int compression = prefix.get() & 0xFF;
+            if (length < 1 || length + 4 > sectors * SECTOR_SIZE) {
+                log.warn("Chunk {},{} is corrupt in its region file, skipping it", coordinates[0], coordinates[1]);
+                continue;
+            }
+            byte[] data = in.readNBytes(length - 1);
+            position += data.length;
+            if (data.length == length - 1) {
+                chunks.put(coordinates[0] + "," + coordinates[1], new RegionChunk(compression, data));
+            } else {
+                log.warn("Chunk {},{} is cut off at the end of its region file, skipping it", coordinates[0], coordinates[1]);
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Like {@link InputStream#skipNBytes(long)}, but stops at the end of the stream instead of throwing.
+     *
+     * @return How many bytes were skipped
+     */
+    private static long skip(InputStream in, long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            long step = in.skip(count - skipped);
+            if (step <= 0) {
+                // Some streams only skip buffered bytes, reading one tells whether this is the end
+                if (in.read() < 0) {
+                    break;
+                }
+                step = 1;
+            }
+            skipped += step;
+        }
+        return skipped;
+    }
+}
@@ -0,0 +1,76 @@
+package org.spoorn.simplebackup.io;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.spoorn.simplebackup.compressors.LZ4Compressor;
+import org.spoorn.simplebackup.compressors.Recompressor;
+import org.spoorn.simplebackup.compressors.ZipCompressor;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Reads the files in a backup of any format one after another, the reverse of {@link ArchiveWriter}.  Entry names
+ * are relative to the backup root with forward slashes, i.e. {@code world/region/r.0.0.mca}.
+ */
+public interface BackupReader extends Closeable {
+
+    /**
+     * @return The next file, or null if there are no more
+     */
+    Entry next() throws IOException;
+
+    /**
+     * @return Contents of the file last returned by {@link #next()}.  Only valid until the next call to next()
+     */
+    InputStream stream() throws IOException;
+
+    record Entry(String name, long size, FileTime lastModifiedTime) {}
+
+    /**
+     * Opens a backup based on its file extension.  Folders are DIRECTORY backups.
+     */
+    static BackupReader open(Path backup) throws IOException {
+        return open(backup, null);
+    }
+
+    /**
+     * @param encryption Key to read encrypted backups with, or null if there is none
+     */
+    static BackupReader open(Path backup, BackupEncryption encryption) throws IOException {
+        String fileName = backup.getFileName().toString();
+        if (Files.isDirectory(backup)) {
+            return new DirectoryBackupReader(backup);
+        } else if (BackupEncryption.isEncrypted(backup)) {
+            if (encryption == null) {
+                throw new IOException("Backup " + backup + " is encrypted, the key file is needed to read it");
+            }
+            String archiveName = BackupEncryption.stripExtension(fileName);
+            if (archiveName.endsWith(ZipCompressor.ZIP_EXTENSION)) {
+                return new ZipChannelBackupReader(new EncryptedFileChannel(backup, encryption));
+            } else if (archiveName.endsWith(LZ4Compressor.TAR_LZ4_EXTENSION) || archiveName.endsWith(Recompressor.TAR_XZ_EXTENSION)) {
+                InputStream in = Channels.newInputStream(new EncryptedFileChannel(backup, encryption));
+                return openTar(archiveName, new BufferedInputStream(in, BufferPool.MAX_BUFFER_SIZE));
+            }
+        } else if (fileName.endsWith(ZipCompressor.ZIP_EXTENSION)) {
+            return new ZipBackupReader(backup);
+        } else if (fileName.endsWith(LZ4Compressor.TAR_LZ4_EXTENSION) || fileName.endsWith(Recompressor.TAR_XZ_EXTENSION)) {
+            return openTar(fileName, new BufferedInputStream(Files.newInputStream(backup), BufferPool.MAX_BUFFER_SIZE));
+        }
+        throw new IOException("Unknown backup format for " + backup);
+    }
+
+    private static BackupReader openTar(String fileName, InputStream in) throws IOException {
+        if (fileName.endsWith(LZ4Compressor.TAR_LZ4_EXTENSION)) {
+            // Multi-threaded LZ4 backups are several concatenated frames, which LZ4FrameInputStream reads through
+            return new TarBackupReader(new LZ4FrameInputStream(in));
+        }
+        return new TarBackupReader(new XZCompressorInputStream(in));
+    }
+}
@@ -0,0 +1,107 @@
+package org.spoorn.simplebackup.io;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that a backup can be read back in full, without extracting it.
+ *
+ * Every file is read to the end, which checks the CRCs of ZIP entries and the checksums of .tar.xz backups, and its
+ * length is compared to the size recorded for it.  The header of each region file is also checked, as a chunk
+ * pointing past the end of its region file is what a truncated copy looks like.  Encrypted backups also have the
+ * tag of every block read checked, which catches any change to the file.
+ */
+@Log4j2
+public class BackupVerifier {
+
+    private static final int SECTOR_SIZE = 4096;
+    private static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+
+    /**
+     * @param problems One line per file that failed verification, empty if the backup is intact
+     */
+    public record Result(long files, long bytes, List<String> problems) {
+
+        public boolean isValid() {
+            return this.problems.isEmpty();
+        }
+    }
+
+    /**
+     * @param encryption Key to read encrypted backups with, or null if there is none
+     */
+    public static Result verify(Path backup, BackupEncryption encryption) throws IOException {
+        long files = 0;
+        long bytes = 0;
+        List<String> problems = new ArrayList<>();
+        byte[] buffer = new byte[BufferPool.MAX_BUFFER_SIZE];
+        try (BackupReader reader = BackupReader.open(backup, encryption)) {
+            BackupReader.Entry entry;
+            while ((entry = reader.next()) != null) {
+                files++;
+                try {
+                    InputStream in = reader.stream();
+                    long read = 0;
+                    ByteBuffer header = null;
+                    if (entry.name().endsWith(RegionSnapshot.REGION_EXTENSION)) {
+                        byte[] headerBytes = in.readNBytes(HEADER_SIZE);
+                        read = headerBytes.length;
+                        header = ByteBuffer.wrap(headerBytes);
+                    }
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        read += n;
+                    }
+                    bytes += read;
+
+                    if (read != entry.size()) {
+                        problems.add(entry.name() + ": expected " + entry.size() + " bytes, but read " + read);
+                    } else if (header != null) {
+                        checkRegionHeader(entry.name(), header, read, problems);
+                    }
+                } catch (IOException e) {
+                    problems.add(entry.name() + ": " + e.getMessage());
+                    if (!BackupExtractor.isRandomAccess(backup)) {
+                        // Tar based backups can't be read past a corrupt spot
+                        problems.add("Could not read the rest of the backup after " + entry.name());
+                        break;
+                    }
+                }
+            }
+        }
+        log.debug("Verified {} files and {} bytes in backup {}", files, bytes, backup);
+        return new Result(files, bytes, problems);
+    }
+
+    private static void checkRegionHeader(String name, ByteBuffer header, long size, List<String> problems) {
+        // Empty region files are fine, the game writes the header lazily
+        if (size == 0) {
+            return;
+        }
+        if (size < HEADER_SIZE) {
+            problems.add(name + ": region file is shorter than its header");
+            return;
+        }
+        int badChunks = 0;
+        for (int i = 0; i < SECTOR_SIZE / 4; i++) {
+            int location = header.getInt(i * 4);
+            if (location == 0) {
+                continue;
+            }
+            // The last chunk isn't always padded to a full sector, so only its start has to be in the file
+            long offset = location >>> 8;
+            if (offset < 2 || offset * SECTOR_SIZE >= size) {
+                badChunks++;
+            }
+        }
+        if (badChunks > 0) {
+            problems.add(name + ": " + badChunks + " chunks point outside of the region file");
+        }
+    }
+}
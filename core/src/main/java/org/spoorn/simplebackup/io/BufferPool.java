@@ -0,0 +1,134 @@
+package org.spoorn.simplebackup.io;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared pool of off-heap {@link ByteBuffer}s used by the backup I/O paths.
+ *
+ * Buffers are bucketed into power-of-two size classes between {@link #MIN_BUFFER_SIZE} and {@link #MAX_BUFFER_SIZE}.
+ * Worlds have hundreds of thousands of tiny NBT files and a smaller number of large region files, so allocating a
+ * fresh buffer per file churns the heap and causes GC pauses on the server.  Instead, buffers are borrowed with
+ * {@link #acquire(int)} and handed back with {@link #release(ByteBuffer)}.
+ *
+ * With pooling disabled, buffers are plain heap buffers, as allocating a direct buffer per file is slower than that and
+ * leaves the native memory until the GC gets to it.
+ */
+@Log4j2
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 4 * 1024;
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    // Non-region files (NBT, json, etc.) are small, so don't hand them anything bigger than this
+    private static final int MAX_SMALL_FILE_BUFFER_SIZE = 64 * 1024;
+    private static final int NUM_SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE) + 1;
+
+    private static volatile BufferPool INSTANCE = new BufferPool(32 * 1024 * 1024);
+
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> sizeClasses;
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder reuses = new LongAdder();
+    private final LongAdder discards = new LongAdder();
+
+    BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.sizeClasses = new ArrayList<>(NUM_SIZE_CLASSES);
+        for (int i = 0; i < NUM_SIZE_CLASSES; i++) {
+            this.sizeClasses.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * @param maxPooledBytes Maximum number of bytes of idle buffers kept around for reuse, or 0 to not pool
+     */
+    public static void init(long maxPooledBytes) {
+        INSTANCE = new BufferPool(Math.max(0, maxPooledBytes));
+    }
+
+    public static BufferPool get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Picks a buffer size for reading/writing a file.  Region files get large buffers as they are big and read
+     * sequentially, everything else gets a buffer just large enough to hold the file in one go.
+     */
+    public static int bufferSizeFor(Path file, long fileSize) {
+        String name = file.getFileName().toString();
+        int max = isRegionFile(name) ? MAX_BUFFER_SIZE : MAX_SMALL_FILE_BUFFER_SIZE;
+        return sizeOfClass(sizeClassOf((int) Math.min(max, Math.max(MIN_BUFFER_SIZE, fileSize))));
+    }
+
+    public static boolean isRegionFile(String fileName) {
+        return fileName.endsWith(".mca") || fileName.endsWith(".mcc");
+    }
+
+    /**
+     * Borrows a cleared buffer with capacity of at least {@code size}, capped at {@link #MAX_BUFFER_SIZE}.
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClassOf(size);
+        ByteBuffer buffer = this.maxPooledBytes > 0 ? this.sizeClasses.get(sizeClass).poll() : null;
+        if (buffer != null) {
+            this.pooledBytes.addAndGet(-buffer.capacity());
+            this.reuses.increment();
+            return buffer.clear();
+        }
+
+        int capacity = sizeOfClass(sizeClass);
+        this.allocations.increment();
+        this.allocatedBytes.add(capacity);
+        return this.maxPooledBytes > 0 ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Returns a buffer acquired from {@link #acquire(int)} back to the pool.  Buffers beyond the pool's limit are
+     * dropped and left for the GC.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClassOf(capacity);
+        if (sizeOfClass(sizeClass) != capacity || this.pooledBytes.addAndGet(capacity) > this.maxPooledBytes) {
+            if (sizeOfClass(sizeClass) == capacity) {
+                this.pooledBytes.addAndGet(-capacity);
+            }
+            this.discards.increment();
+            return;
+        }
+        this.sizeClasses.get(sizeClass).offer(buffer);
+    }
+
+    public void logStats() {
+        long numAllocations = this.allocations.sum();
+        long numReuses = this.reuses.sum();
+        long total = numAllocations + numReuses;
+        log.info(String.format("Buffer pool stats: %d buffers requested, %d allocated (%d bytes), %d reused (%.1f%% hit rate), " +
+                "%d discarded, %d bytes currently pooled", total, numAllocations, this.allocatedBytes.sum(), numReuses,
+                total == 0 ? 0 : (double) numReuses / total * 100, this.discards.sum(), this.pooledBytes.get()));
+    }
+
+    private static int sizeClassOf(int size) {
+        int clamped = Math.min(MAX_BUFFER_SIZE, Math.max(MIN_BUFFER_SIZE, size));
+        // Round up to the next power of two
+        int pow2 = Integer.highestOneBit(clamped - 1) << 1;
+        return Integer.numberOfTrailingZeros(pow2) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    private static int sizeOfClass(int sizeClass) {
+        return MIN_BUFFER_SIZE << sizeClass;
+    }
+}
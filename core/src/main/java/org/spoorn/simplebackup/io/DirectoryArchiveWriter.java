@@ -0,0 +1,57 @@
+package org.spoorn.simplebackup.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Writes files as-is under a folder, for DIRECTORY backups.
+ */
+public class DirectoryArchiveWriter implements ArchiveWriter {
+
+    private final Path root;
+    private Path currentPath;
+    private FileChannel current;
+    private FileTime currentLastModifiedTime;
+
+    public DirectoryArchiveWriter(Path root) {
+        this.root = root;
+    }
+
+    @Override
+    public void putFile(String name, long size, FileTime lastModifiedTime) throws IOException {
+        this.currentPath = this.root.resolve(name);
+        Files.createDirectories(this.currentPath.getParent());
+        this.current = FileChannel.open(this.currentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.currentLastModifiedTime = lastModifiedTime;
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            this.current.write(data);
+        }
+    }
+
+    @Override
+    public void closeFile() throws IOException {
+        this.current.close();
+        this.current = null;
+        Files.setLastModifiedTime(this.currentPath, this.currentLastModifiedTime);
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.current != null) {
+            this.current.close();
+        }
+    }
+}
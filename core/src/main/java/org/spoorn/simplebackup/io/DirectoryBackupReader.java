@@ -0,0 +1,61 @@
+package org.spoorn.simplebackup.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Reads DIRECTORY backups, in sorted order so it lines up with archives of the same world.
+ */
+public class DirectoryBackupReader implements BackupReader {
+
+    private final Path root;
+    private final Iterator<Path> files;
+    private Path current;
+    private InputStream currentStream;
+
+    public DirectoryBackupReader(Path root) throws IOException {
+        this.root = root;
+        try (Stream<Path> walk = Files.walk(root)) {
+            List<Path> files = walk.filter(Files::isRegularFile).sorted().toList();
+            this.files = files.iterator();
+        }
+    }
+
+    @Override
+    public Entry next() throws IOException {
+        closeCurrent();
+        if (!this.files.hasNext()) {
+            this.current = null;
+            return null;
+        }
+        this.current = this.files.next();
+        BasicFileAttributes attrs = Files.readAttributes(this.current, BasicFileAttributes.class);
+        return new Entry(DirectoryCopier.toRelativeString(this.root.relativize(this.current)), attrs.size(), attrs.lastModifiedTime());
+    }
+
+    @Override
+    public InputStream stream() throws IOException {
+        if (this.currentStream == null) {
+            this.currentStream = Files.newInputStream(this.current);
+        }
+        return this.currentStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeCurrent();
+    }
+
+    private void closeCurrent() throws IOException {
+        if (this.currentStream != null) {
+            this.currentStream.close();
+            this.currentStream = null;
+        }
+    }
+}
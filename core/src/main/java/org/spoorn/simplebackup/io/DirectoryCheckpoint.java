@@ -0,0 +1,123 @@
+package org.spoorn.simplebackup.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Append-only log of files that have been fully copied into a resumable DIRECTORY backup.  Each line is a path
+ * relative to the world folder.  Files are only recorded once their copied data is fsync'd, which is done in batches
+ * every sync interval, so after a crash we lose at most the files copied since the last sync, which simply get copied
+ * again on resume.
+ */
+public class DirectoryCheckpoint implements Closeable {
+
+    private final FileChannel channel;
+    private final Path destination;
+    private final Set<String> completed;
+    private final long syncIntervalMillis;
+    // Copied since the last sync, so neither their data nor their lines are durable yet
+    private final List<String> pending = new ArrayList<>();
+    private long lastSync = System.currentTimeMillis();
+
+    private DirectoryCheckpoint(FileChannel channel, Path destination, Set<String> completed, long syncIntervalMillis) {
+        this.channel = channel;
+        this.destination = destination;
+        this.completed = completed;
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    /**
+     * Opens the checkpoint file for appending, loading any files already recorded in it.
+     *
+     * @param destination Folder the recorded paths are copied into
+     */
+    public static DirectoryCheckpoint open(Path file, Path destination, long syncIntervalMillis) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Set<String> completed = new HashSet<>();
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            // Last line may be torn if we crashed while appending.  Drop it, so the next line doesn't get glued onto it
+            int end = bytes.length;
+            while (end > 0 && bytes[end - 1] != '\n') {
+                end--;
+            }
+            if (end < bytes.length) {
+                channel.truncate(end);
+            }
+            for (String line : new String(bytes, 0, end, StandardCharsets.UTF_8).split("\n")) {
+                if (!line.isEmpty()) {
+                    completed.add(line);
+                }
+            }
+            channel.position(end);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new DirectoryCheckpoint(channel, destination, Collections.unmodifiableSet(completed), syncIntervalMillis);
+    }
+
+    /**
+     * @return Files that were completed in a previous run
+     */
+    public Set<String> getCompleted() {
+        return this.completed;
+    }
+
+    /**
+     * Records a file as copied.  It's written to the log on the next sync, after its data.
+     */
+    public synchronized void markDone(String relativePath) throws IOException {
+        this.pending.add(relativePath);
+        long now = System.currentTimeMillis();
+        if (now - this.lastSync >= this.syncIntervalMillis) {
+            sync();
+            this.lastSync = now;
+        }
+    }
+
+    /**
+     * Fsyncs the data of every pending file, then records them and fsyncs the log.
+     */
+    private void sync() throws IOException {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (String relativePath : this.pending) {
+            try (FileChannel copied = FileChannel.open(this.destination.resolve(relativePath), StandardOpenOption.WRITE)) {
+                copied.force(false);
+            } catch (NoSuchFileException e) {
+                // Removed since, so it's not done after all
+                continue;
+            }
+            lines.append(relativePath).append('\n');
+        }
+        this.pending.clear();
+
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer);
+        }
+        this.channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try (this.channel) {
+            sync();
+        }
+    }
+}
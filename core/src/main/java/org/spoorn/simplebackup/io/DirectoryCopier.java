@@ -0,0 +1,304 @@
+package org.spoorn.simplebackup.io;
+
+import lombok.extern.log4j.Log4j2;
+import org.spoorn.simplebackup.util.HostCoordinator;
+import org.spoorn.simplebackup.util.StorageUtil;
+import org.spoorn.tarlz4java.util.concurrent.NamedThreadFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiPredicate;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Copies a directory tree with separate reader and writer concurrency, so the source and destination disks can each
+ * be driven the way they like.  Readers load whole files into pooled buffers and hand them to writers through a
+ * bounded queue.  Files too large to buffer are copied directly by the reader while holding a writer slot.
+ */
+@Log4j2
+public class DirectoryCopier {
+
+    // Caps memory held by buffered files waiting to be written, in KB
+    private static final int MAX_IN_FLIGHT_KB = 64 * 1024;
+    private static final long MAX_BUFFERED_FILE_SIZE = 16 * 1024 * 1024;
+    private static final WriteJob POISON = new WriteJob(null, null, null, 0, 0, null);
+
+    private final Path source;
+    private final Path destination;
+    private final BiPredicate<Path, BasicFileAttributes> fileFilter;
+    private final int readThreads;
+    private final int writeThreads;
+    private final boolean physicalOrder;
+    private final Set<String> completed;
+    private final HostCoordinator hostCoordinator;
+    private final ObjLongConsumer<String> onFileCopied;
+
+    private final Semaphore inFlightKb = new Semaphore(MAX_IN_FLIGHT_KB);
+    private final Semaphore writePermits;
+    private final AtomicReference<Exception> error = new AtomicReference<>();
+
+    /**
+     * @param source Directory to copy
+     * @param destination Directory to copy into
+     * @param fileFilter Returns true for files that should be copied
+     * @param readThreads Number of concurrent readers against the source
+     * @param writeThreads Number of concurrent writers against the destination
+     * @param physicalOrder True to read files in physical (inode) order, for rotational sources
+     * @param completed Relative paths already copied by a previous run we are resuming, or null if not resuming
+     * @param hostCoordinator Bandwidth budget to read the source within, or null for no limit
+     * @param onFileCopied Called with the relative path and size after each file is copied, from any thread
+     */
+    public DirectoryCopier(Path source, Path destination, BiPredicate<Path, BasicFileAttributes> fileFilter, int readThreads, int writeThreads,
+                           boolean physicalOrder, Set<String> completed, HostCoordinator hostCoordinator, ObjLongConsumer<String> onFileCopied) {
+        this.source = source;
+        this.destination = destination;
+        this.fileFilter = fileFilter;
+        this.readThreads = Math.max(1, readThreads);
+        this.writeThreads = Math.max(1, writeThreads);
+        this.physicalOrder = physicalOrder;
+        this.completed = completed;
+        this.hostCoordinator = hostCoordinator;
+        this.onFileCopied = onFileCopied;
+        this.writePermits = new Semaphore(this.writeThreads);
+    }
+
+    public void copy() throws Exception {
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(this.source, new SimpleFileVisitor<>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(destination.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (fileFilter.test(file, attrs)) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        if (this.physicalOrder) {
+            StorageUtil.sortByPhysicalOrder(files);
+        }
+
+        log.debug("Copying {} files with {} reader(s) and {} writer(s)", files.size(), this.readThreads, this.writeThreads);
+        BlockingQueue<WriteJob> queue = new ArrayBlockingQueue<>(this.writeThreads * 8);
+        AtomicInteger nextFile = new AtomicInteger();
+        ExecutorService readers = Executors.newFixedThreadPool(this.readThreads, new NamedThreadFactory("SimpleBackup-Reader"));
+        ExecutorService writers = Executors.newFixedThreadPool(this.writeThreads, new NamedThreadFactory("SimpleBackup-Writer"));
+        try {
+            List<Future<?>> writerFutures = new ArrayList<>();
+            for (int i = 0; i < this.writeThreads; i++) {
+                writerFutures.add(writers.submit(() -> writeLoop(queue)));
+            }
+
+            List<Future<?>> readerFutures = new ArrayList<>();
+            for (int i = 0; i < this.readThreads; i++) {
+                readerFutures.add(readers.submit(() -> readLoop(files, nextFile, queue)));
+            }
+            for (Future<?> future : readerFutures) {
+                future.get();
+            }
+
+            for (int i = 0; i < this.writeThreads; i++) {
+                queue.put(POISON);
+            }
+            for (Future<?> future : writerFutures) {
+                future.get();
+            }
+        } finally {
+            readers.shutdownNow();
+            writers.shutdownNow();
+            readers.awaitTermination(10, TimeUnit.SECONDS);
+            writers.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        if (this.error.get() != null) {
+            throw this.error.get();
+        }
+    }
+
+    private void readLoop(List<Path> files, AtomicInteger nextFile, BlockingQueue<WriteJob> queue) {
+        int i;
+        while (this.error.get() == null && (i = nextFile.getAndIncrement()) < files.size()) {
+            Path file = files.get(i);
+            String relativePath = toRelativeString(this.source.relativize(file));
+            Path dest = this.destination.resolve(this.source.relativize(file));
+            try {
+                if (this.completed != null) {
+                    if (this.completed.contains(relativePath)) {
+                        continue;
+                    }
+                    // Could be a partially written file from the interrupted run
+                    Files.deleteIfExists(dest);
+                } else if (Files.exists(dest)) {
+                    continue;
+                }
+
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                if (attrs.size() > MAX_BUFFERED_FILE_SIZE) {
+                    this.writePermits.acquire();
+                    try {
+                        copyFile(file, dest, attrs, this.hostCoordinator);
+                    } finally {
+                        this.writePermits.release();
+                    }
+                    this.onFileCopied.accept(relativePath, attrs.size());
+                    continue;
+                }
+
+                int kb = (int) Math.max(1, attrs.size() / 1024);
+                this.inFlightKb.acquire(kb);
+                List<ByteBuffer> buffers;
+                try {
+                    buffers = readFully(file, attrs.size(), this.hostCoordinator);
+                } catch (IOException e) {
+                    this.inFlightKb.release(kb);
+                    throw e;
+                }
+                queue.put(new WriteJob(dest, relativePath, buffers, attrs.size(), kb, attrs.lastModifiedTime()));
+            } catch (Exception e) {
+                this.error.compareAndSet(null, new IOException("Could not copy " + file + " to " + dest, e));
+            }
+        }
+    }
+
+    private void writeLoop(BlockingQueue<WriteJob> queue) {
+        BufferPool bufferPool = BufferPool.get();
+        while (true) {
+            WriteJob job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                this.error.compareAndSet(null, e);
+                return;
+            }
+            if (job == POISON) {
+                return;
+            }
+
+            try {
+                // Keep draining after a failure so readers never block on a full queue
+                if (this.error.get() == null) {
+                    this.writePermits.acquire();
+                    try (FileChannel out = FileChannel.open(job.destination, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                        for (ByteBuffer buffer : job.buffers) {
+                            while (buffer.hasRemaining()) {
+                                out.write(buffer);
+                            }
+                        }
+                    } finally {
+                        this.writePermits.release();
+                    }
+                    Files.setLastModifiedTime(job.destination, job.lastModifiedTime);
+                    this.onFileCopied.accept(job.relativePath, job.size);
+                }
+            } catch (Exception e) {
+                this.error.compareAndSet(null, new IOException("Could not write " + job.destination, e));
+            } finally {
+                job.buffers.forEach(bufferPool::release);
+                this.inFlightKb.release(job.kb);
+            }
+        }
+    }
+
+    /**
+     * @param hostCoordinator Bandwidth budget to read within, taken as each buffer is read, or null for no limit
+     */
+    private static List<ByteBuffer> readFully(Path file, long expectedSize, HostCoordinator hostCoordinator) throws IOException, InterruptedException {
+        BufferPool bufferPool = BufferPool.get();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = bufferPool.acquire(BufferPool.bufferSizeFor(file, expectedSize));
+            buffers.add(buffer);
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                acquireBandwidth(hostCoordinator, read);
+                if (!buffer.hasRemaining()) {
+                    buffer = bufferPool.acquire(BufferPool.bufferSizeFor(file, expectedSize));
+                    buffers.add(buffer);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            buffers.forEach(bufferPool::release);
+            throw e;
+        }
+        buffers.forEach(ByteBuffer::flip);
+        return buffers;
+    }
+
+    /**
+     * Copies a single file using a pooled direct buffer sized for the file, instead of letting {@link Files#copy}
+     * allocate a new buffer for every file.  Copies the last modified time over similar to COPY_ATTRIBUTES.
+     */
+    public static void copyFile(Path file, Path dest, BasicFileAttributes attrs) throws IOException {
+        try {
+            copyFile(file, dest, attrs, null);
+        } catch (InterruptedException e) {
+            // Only waits with a bandwidth budget
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param hostCoordinator Bandwidth budget to read within, taken as each buffer is read, or null for no limit
+     */
+    private static void copyFile(Path file, Path dest, BasicFileAttributes attrs, HostCoordinator hostCoordinator) throws IOException, InterruptedException {
+        BufferPool bufferPool = BufferPool.get();
+        ByteBuffer buffer = bufferPool.acquire(BufferPool.bufferSizeFor(file, attrs.size()));
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(dest, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                acquireBandwidth(hostCoordinator, read);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        Files.setLastModifiedTime(dest, attrs.lastModifiedTime());
+    }
+
+    private static void acquireBandwidth(HostCoordinator hostCoordinator, int bytes) throws IOException, InterruptedException {
+        if (hostCoordinator != null) {
+            hostCoordinator.acquireBandwidth(bytes);
+        }
+    }
+
+    /**
+     * Relative path with forward slashes regardless of OS, as recorded in checkpoints and archives.
+     */
+    public static String toRelativeString(Path relativePath) {
+        return relativePath.toString().replace('\\', '/');
+    }
+
+    private record WriteJob(Path destination, String relativePath, List<ByteBuffer> buffers, long size, int kb, FileTime lastModifiedTime) {}
+}
@@ -0,0 +1,140 @@
+package org.spoorn.simplebackup.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read only view of the archive inside an encrypted backup, see {@link BackupEncryption}.
+ *
+ * Seeking only decrypts the block at the new position, so archives that support random access, like ZIP, still do
+ * when encrypted.  The most recently read block is cached, which makes reading front to back decrypt each block once.
+ */
+public class EncryptedFileChannel implements SeekableByteChannel {
+
+    private final Path file;
+    private final FileChannel channel;
+    private final BackupEncryption.FileKey key;
+    private final long blockCount;
+    private final long size;
+    private long position = 0;
+    private long cachedIndex = -1;
+    private byte[] cachedBlock;
+
+    public EncryptedFileChannel(Path file, BackupEncryption encryption) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(BackupEncryption.HEADER_SIZE);
+            readFully(header, 0);
+            this.key = encryption.readFileKey(header.array());
+
+            // There is always a last block, even if it's empty
+            long encryptedSize = this.channel.size() - BackupEncryption.HEADER_SIZE;
+            this.blockCount = Math.max(1, (encryptedSize + BackupEncryption.ENCRYPTED_BLOCK_SIZE - 1) / BackupEncryption.ENCRYPTED_BLOCK_SIZE);
+            long lastBlockSize = encryptedSize - (this.blockCount - 1) * BackupEncryption.ENCRYPTED_BLOCK_SIZE;
+            if (lastBlockSize < BackupEncryption.TAG_SIZE) {
+                throw new IOException("Encrypted backup " + file + " is truncated");
+            }
+            this.size = (this.blockCount - 1) * BackupEncryption.BLOCK_SIZE + lastBlockSize - BackupEncryption.TAG_SIZE;
+            // Fails early on the wrong key, rather than on the first read
+            block(this.blockCount - 1);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (this.position >= this.size) {
+            return -1;
+        }
+        int read = 0;
+        while (dst.hasRemaining() && this.position < this.size) {
+            long index = this.position / BackupEncryption.BLOCK_SIZE;
+            int offset = (int) (this.position % BackupEncryption.BLOCK_SIZE);
+            byte[] block = block(index);
+            int n = Math.min(dst.remaining(), block.length - offset);
+            dst.put(block, offset, n);
+            this.position += n;
+            read += n;
+        }
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return this.position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position " + newPosition);
+        }
+        this.position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return this.size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    private byte[] block(long index) throws IOException {
+        if (index != this.cachedIndex) {
+            long offset = BackupEncryption.HEADER_SIZE + index * BackupEncryption.ENCRYPTED_BLOCK_SIZE;
+            int length = (int) Math.min(BackupEncryption.ENCRYPTED_BLOCK_SIZE, this.channel.size() - offset);
+            ByteBuffer encrypted = ByteBuffer.allocate(length);
+            readFully(encrypted, offset);
+            this.cachedBlock = this.key.decrypt(encrypted.array(), length, index, index == this.blockCount - 1);
+            this.cachedIndex = index;
+        }
+        return this.cachedBlock;
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = this.channel.read(buffer, offset + buffer.position());
+            if (n < 0) {
+                throw new IOException("Encrypted backup " + this.file + " is truncated");
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!this.channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.spoorn.simplebackup.io;
+
+import org.spoorn.tarlz4java.util.concurrent.NamedThreadFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Encrypts everything written to it in the format described in {@link BackupEncryption}.
+ *
+ * Blocks are encrypted on their own threads and written in order, with a few blocks per thread in flight so the
+ * compressor writing to this stream never waits on encryption.  The last block is only encrypted on {@link #close()},
+ * as it has to be marked as the last one.
+ */
+public class EncryptingOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final BackupEncryption.FileKey key;
+    private final ExecutorService executorService;
+    private final int maxInFlight;
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    private byte[] block = new byte[BackupEncryption.BLOCK_SIZE];
+    private int length = 0;
+    private long index = 0;
+    private boolean closed = false;
+
+    public EncryptingOutputStream(OutputStream out, BackupEncryption encryption, int numThreads) throws IOException {
+        this.out = out;
+        this.key = encryption.newFileKey();
+        int threads = Math.max(1, numThreads);
+        this.executorService = Executors.newFixedThreadPool(threads, new NamedThreadFactory("SimpleBackup-Encryption"));
+        this.maxInFlight = threads * 2;
+        this.out.write(this.key.header);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            // A full block is only sent once more data arrives, so we know it isn't the last one
+            if (this.length == this.block.length) {
+                submit(false);
+            }
+            int n = Math.min(len, this.block.length - this.length);
+            System.arraycopy(b, off, this.block, this.length, n);
+            this.length += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Writes out blocks that are already encrypted.  The block being filled stays buffered.
+     */
+    @Override
+    public void flush() throws IOException {
+        while (!this.inFlight.isEmpty() && this.inFlight.peekFirst().isDone()) {
+            writeNext();
+        }
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try (this.out) {
+            submit(true);
+            while (!this.inFlight.isEmpty()) {
+                writeNext();
+            }
+        } finally {
+            this.executorService.shutdownNow();
+        }
+    }
+
+    private void submit(boolean last) throws IOException {
+        byte[] plaintext = this.block;
+        int plaintextLength = this.length;
+        long blockIndex = this.index++;
+        this.inFlight.addLast(this.executorService.submit(() -> this.key.encrypt(plaintext, plaintextLength, blockIndex, last)));
+        this.block = new byte[BackupEncryption.BLOCK_SIZE];
+        this.length = 0;
+
+        while (this.inFlight.size() >= this.maxInFlight || (!this.inFlight.isEmpty() && this.inFlight.peekFirst().isDone())) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            this.out.write(this.inFlight.removeFirst().get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encrypting backup");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException("Could not encrypt backup", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package org.spoorn.simplebackup.io;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Append-only log of the small world files that change the most and get rolled back the most: player data,
+ * advancements, stats and level.dat.
+ *
+ * Each {@link #snapshot} appends only the files whose content changed since the last one, and each distinct content
+ * is stored once, so snapshotting every few minutes costs about as much as the players actually changed.  Records are
+ * checksummed and the log is only ever appended to, so a crash mid-write loses at most the snapshot being written.
+ * Only such a torn record at the end is ever dropped.  A complete record that fails its checksum is skipped, losing
+ * just that snapshot or content, and the log is never truncated after one.
+ * {@link #compact} drops snapshots past retention by rewriting the log, keeping the state at the cutoff as a base.
+ *
+ * Record layout: type (1 byte), payload length (4 bytes), payload, CRC32C of everything before it (4 bytes).
+ * Content payloads are the SHA-256 of the file followed by the deflated file.  Snapshot payloads are the time, the
+ * reason and the path and SHA-256 of each changed file.
+ */
+@Log4j2
+public class PlayerDataLog implements Closeable {
+
+    public static final String LOG_FOLDER = "player-data";
+    public static final String LOG_EXTENSION = ".log";
+    // Relative to the world folder
+    public static final String PLAYER_DATA_FOLDER = "playerdata";
+    private static final List<String> FOLDERS = List.of(PLAYER_DATA_FOLDER, "advancements", "stats");
+    private static final String LEVEL_DAT = "level.dat";
+    // Only <uuid>.dat and <uuid>.json, not the game's .dat_old backups or temporary files
+    private static final Pattern PLAYER_FILE = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}\\.(dat|json)");
+    private static final byte CONTENT = 1;
+    private static final byte SNAPSHOT = 2;
+    private static final int HEADER_SIZE = 5;
+    private static final int CRC_SIZE = 4;
+    private static final int HASH_SIZE = 32;
+    private static final String BASE_REASON = "base";
+    private static final HexFormat HEX = HexFormat.of();
+
+    /**
+     * @param timeMillis When the files were read
+     * @param reason What triggered it, i.e. {@code interval} or {@code logout}
+     * @param changes Path of each file that changed, relative to the world folder, to the SHA-256 of its new content
+     */
+    public record Snapshot(long timeMillis, String reason, Map<String, String> changes) {}
+
+    private record FileStat(long size, long lastModifiedMillis) {}
+
+    private final Path file;
+    private FileChannel channel;
+    // Offset of the record with each content, by SHA-256
+    private final Map<String, Long> contentOffsets = new HashMap<>();
+    // SHA-256 of the latest content of each file
+    private final Map<String, String> state = new HashMap<>();
+    private final List<Snapshot> snapshots = new ArrayList<>();
+    // Size and modified time when last hashed, so unchanged files aren't read again
+    private final Map<String, FileStat> fileStats = new HashMap<>();
+
+    private PlayerDataLog(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return Log of a world's player data in a backup folder's metadata folder
+     */
+    public static Path getLogPath(Path metadataPath, String worldFolderName) {
+        return metadataPath.resolve(LOG_FOLDER).resolve(worldFolderName + LOG_EXTENSION);
+    }
+
+    /**
+     * Opens a log, creating it if it doesn't exist.  Drops an incomplete record at the end left by a crash, and skips
+     * complete records that are corrupt.
+     *
+     * @throws IOException If a record's length is corrupt, so the records after it can't be found
+     */
+    public static PlayerDataLog open(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        PlayerDataLog playerDataLog = new PlayerDataLog(file);
+        playerDataLog.load();
+        return playerDataLog;
+    }
+
+    /**
+     * Appends every file that changed since the last snapshot.  Files that are deleted keep their last content in the
+     * log, as player data briefly disappears every time the game saves it.
+     *
+     * @param worldFolder World folder, the one with level.dat in it
+     * @return Number of files that changed, 0 if nothing was appended
+     */
+    public synchronized int snapshot(Path worldFolder, String reason) throws IOException {
+        Map<String, String> changes = new TreeMap<>();
+        for (Path source : listFiles(worldFolder)) {
+            String path = DirectoryCopier.toRelativeString(worldFolder.relativize(source));
+            byte[] data;
+            FileStat stat;
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+                stat = new FileStat(attributes.size(), attributes.lastModifiedTime().toMillis());
+                if (stat.equals(this.fileStats.get(path)) && this.state.containsKey(path)) {
+                    continue;
+                }
+                data = Files.readAllBytes(source);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+
+            String hash = hash(data);
+            this.fileStats.put(path, stat);
+            if (hash.equals(this.state.get(path))) {
+                continue;
+            }
+            if (!this.contentOffsets.containsKey(hash)) {
+                this.contentOffsets.put(hash, append(this.channel, CONTENT, encodeContent(hash, data)));
+            }
+            changes.put(path, hash);
+        }
+        if (changes.isEmpty()) {
+            return 0;
+        }
+
+        Snapshot snapshot = new Snapshot(System.currentTimeMillis(), reason, changes);
+        append(this.channel, SNAPSHOT, encodeSnapshot(snapshot));
+        this.channel.force(false);
+        apply(snapshot);
+        return changes.size();
+    }
+
+    /**
+     * @return Snapshots from oldest to newest.  The oldest may be a base snapshot with every file, left by {@link #compact}
+     */
+    public synchronized List<Snapshot> getSnapshots() {
+        return Collections.unmodifiableList(new ArrayList<>(this.snapshots));
+    }
+
+    /**
+     * @param path Path of the file relative to the world folder, i.e. {@code playerdata/<uuid>.dat}
+     * @return Content of the file as of the last snapshot at or before the time, or empty if it wasn't in the log yet
+     */
+    public synchronized Optional<byte[]> read(String path, long atMillis) throws IOException {
+        for (int i = this.snapshots.size() - 1; i >= 0; i--) {
+            Snapshot snapshot = this.snapshots.get(i);
+            String hash = snapshot.changes().get(path);
+            if (snapshot.timeMillis() <= atMillis && hash != null) {
+                return Optional.of(readContent(hash));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Writes every file as it was at the time into a folder, laid out as in the world folder.
+     *
+     * @return Number of files written
+     */
+    public synchronized int extract(Path destination, long atMillis) throws IOException {
+        Map<String, String> files = new TreeMap<>();
+        for (Snapshot snapshot : this.snapshots) {
+            if (snapshot.timeMillis() > atMillis) {
+                break;
+            }
+            files.putAll(snapshot.changes());
+        }
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            Path target = destination.resolve(entry.getKey()).normalize();
+            if (!target.startsWith(destination.normalize())) {
+                throw new IOException("Player data log has a file outside the world folder: " + entry.getKey());
+            }
+            Files.createDirectories(target.getParent());
+            Files.write(target, readContent(entry.getValue()));
+        }
+        return files.size();
+    }
+
+    /**
+     * Drops snapshots older than the cutoff, replacing them with a single base snapshot of every file as it was at the
+     * cutoff, and drops content no snapshot refers to anymore.  Rewrites the whole log, so call it sparingly.
+     *
+     * @return True if the log was rewritten
+     */
+    public synchronized boolean compact(long cutoffMillis) throws IOException {
+        int expired = 0;
+        while (expired < this.snapshots.size() && this.snapshots.get(expired).timeMillis() < cutoffMillis) {
+            expired++;
+        }
+        // The oldest snapshot is already the state at the cutoff
+        if (expired <= 1) {
+            return false;
+        }
+
+        Map<String, String> base = new TreeMap<>();
+        for (int i = 0; i < expired; i++) {
+            base.putAll(this.snapshots.get(i).changes());
+        }
+        List<Snapshot> kept = new ArrayList<>();
+        kept.add(new Snapshot(this.snapshots.get(expired - 1).timeMillis(), BASE_REASON, base));
+        kept.addAll(this.snapshots.subList(expired, this.snapshots.size()));
+
+        long sizeBefore = this.channel.size();
+        Path tmp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Set<String> written = new HashSet<>();
+            for (Snapshot snapshot : kept) {
+                for (String hash : snapshot.changes().values()) {
+                    if (written.add(hash)) {
+                        Long offset = this.contentOffsets.get(hash);
+                        byte[] payload = offset != null ? readPayload(offset, CONTENT) : null;
+                        if (payload == null) {
+                            throw new IOException("Player data log " + this.file + " is missing or has corrupt content " + hash
+                                    + ", so it can't be compacted without losing the snapshots that need it");
+                        }
+                        append(out, CONTENT, payload);
+                    }
+                }
+                append(out, SNAPSHOT, encodeSnapshot(snapshot));
+            }
+            out.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        this.channel.close();
+        Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        load();
+        log.info("Compacted player data log {} from {} to {} bytes, dropping {} snapshots past retention", this.file, sizeBefore,
+                this.channel.size(), expired - 1);
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.channel.close();
+    }
+
+    private void load() throws IOException {
+        this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.contentOffsets.clear();
+        this.state.clear();
+        this.snapshots.clear();
+
+        long size = this.channel.size();
+        long position = 0;
+        int corrupt = 0;
+        while (position < size) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            boolean complete = readFully(position, header);
+            byte type = header.get(0);
+            int length = header.getInt(1);
+            if (complete && length < 0) {
+                this.channel.close();
+                throw new IOException("Player data log " + this.file + " has a corrupt record length at " + position + ".  Move it away to start a new log");
+            }
+            if (!complete || position + HEADER_SIZE + length + CRC_SIZE > size) {
+                if (corrupt > 0) {
+                    // Likely a corrupt length rather than a torn write, and truncating would drop everything after it
+                    this.channel.close();
+                    throw new IOException("Player data log " + this.file + " has a record running past its end at " + position
+                            + " after " + corrupt + " corrupt records.  Move it away to start a new log");
+                }
+                log.warn("Player data log {} ends in an incomplete record at {} of {} bytes, likely from a crash.  Dropping it", this.file, position, size);
+                this.channel.truncate(position);
+                break;
+            }
+
+            byte[] payload = readPayload(position, type);
+            if (payload == null || (type != CONTENT && type != SNAPSHOT)) {
+                log.error("Player data log {} has a corrupt record at {}, skipping it.  Snapshots that need it can't be read", this.file, position);
+                corrupt++;
+            } else if (type == CONTENT) {
+                this.contentOffsets.put(HEX.formatHex(payload, 0, HASH_SIZE), position);
+            } else {
+                apply(decodeSnapshot(payload));
+            }
+            position += HEADER_SIZE + length + CRC_SIZE;
+        }
+    }
+
+    private void apply(Snapshot snapshot) {
+        this.snapshots.add(snapshot);
+        this.state.putAll(snapshot.changes());
+    }
+
+    /**
+     * @return Payload of the record at the offset, or null if it's incomplete, corrupt or not of the type
+     */
+    private byte[] readPayload(long offset, byte type) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(offset, header) || header.get(0) != type || header.getInt(1) < 0) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate(header.getInt(1) + CRC_SIZE);
+        if (!readFully(offset + HEADER_SIZE, body)) {
+            return null;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(header.array());
+        crc.update(body.array(), 0, body.capacity() - CRC_SIZE);
+        if ((int) crc.getValue() != body.getInt(body.capacity() - CRC_SIZE)) {
+            return null;
+        }
+        byte[] payload = new byte[body.capacity() - CRC_SIZE];
+        System.arraycopy(body.array(), 0, payload, 0, payload.length);
+        return payload;
+    }
+
+    private byte[] readContent(String hash) throws IOException {
+        Long offset = this.contentOffsets.get(hash);
+        byte[] payload = offset != null ? readPayload(offset, CONTENT) : null;
+        if (payload == null) {
+            throw new IOException("Player data log " + this.file + " is missing or has corrupt content " + hash);
+        }
+        byte[] data;
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(payload, HASH_SIZE, payload.length - HASH_SIZE))) {
+            data = in.readAllBytes();
+        }
+        if (!hash(data).equals(hash)) {
+            throw new IOException("Player data log " + this.file + " has corrupt content " + hash);
+        }
+        return data;
+    }
+
+    /**
+     * @return True if the buffer was filled, false if the end of the file was reached first
+     */
+    private boolean readFully(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Offset the record was written at
+     */
+    private static long append(FileChannel channel, byte type, byte[] payload) throws IOException {
+        long offset = channel.size();
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length + CRC_SIZE);
+        record.put(type).putInt(payload.length).put(payload);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue()).flip();
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        return offset;
+    }
+
+    private static List<Path> listFiles(Path worldFolder) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Path levelDat = worldFolder.resolve(LEVEL_DAT);
+        if (Files.isRegularFile(levelDat)) {
+            files.add(levelDat);
+        }
+        for (String folder : FOLDERS) {
+            Path path = worldFolder.resolve(folder);
+            if (!Files.isDirectory(path)) {
+                continue;
+            }
+            try (Stream<Path> list = Files.list(path)) {
+                list.filter(file -> PLAYER_FILE.matcher(file.getFileName().toString()).matches()).forEach(files::add);
+            }
+        }
+        return files;
+    }
+
+    private static byte[] encodeContent(String hash, byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2 + HASH_SIZE);
+        bytes.write(HEX.parseHex(hash));
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeSnapshot(Snapshot snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(snapshot.timeMillis());
+            out.writeUTF(snapshot.reason());
+            out.writeInt(snapshot.changes().size());
+            for (Map.Entry<String, String> change : snapshot.changes().entrySet()) {
+                out.writeUTF(change.getKey());
+                out.write(HEX.parseHex(change.getValue()));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Snapshot decodeSnapshot(byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            long timeMillis = in.readLong();
+            String reason = in.readUTF();
+            int count = in.readInt();
+            Map<String, String> changes = new TreeMap<>();
+            byte[] hash = new byte[HASH_SIZE];
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                in.readFully(hash);
+                changes.put(path, HEX.formatHex(hash));
+            }
+            return new Snapshot(timeMillis, reason, changes);
+        }
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            return HEX.formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.spoorn.simplebackup.io;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Chunks captured from server memory at backup time, already compressed in region file format, grouped by the region
+ * file they belong to.
+ *
+ * A region file with captured chunks is backed up by merging them into the region file on disk: captured chunks replace
+ * the ones on disk, and every other chunk is copied as-is.  So loaded areas are backed up as they are in memory, and
+ * unloaded areas as they were last saved, without forcing a save first.
+ *
+ * See https://minecraft.wiki/w/Region_file_format
+ */
+@Log4j2
+public class RegionSnapshot {
+
+    public static final String REGION_EXTENSION = ".mca";
+    // zlib, the same as the game writes
+    public static final byte COMPRESSION_ZLIB = 2;
+    private static final int SECTOR_SIZE = 4096;
+    private static final int CHUNKS_PER_REGION = 1024;
+    private static final int HEADER_SIZE = 2 * SECTOR_SIZE;
+    // Sector count is a single byte, bigger chunks are stored in separate .mcc files
+    private static final int MAX_SECTORS_PER_CHUNK = 255;
+
+    private final Map<Path, Map<Integer, byte[]>> chunksByRegion = new HashMap<>();
+    private final FileTime capturedTime;
+    private int chunkCount = 0;
+
+    public RegionSnapshot(long capturedMillis) {
+        this.capturedTime = FileTime.fromMillis(capturedMillis);
+    }
+
+    /**
+     * @param regionFolder Folder of the dimension's region files
+     * @param compressed Chunk NBT compressed with zlib
+     */
+    public synchronized void addChunk(Path regionFolder, int chunkX, int chunkZ, byte[] compressed) {
+        Path regionFile = regionFolder.resolve("r." + (chunkX >> 5) + "." + (chunkZ >> 5) + REGION_EXTENSION);
+        if (this.chunksByRegion.computeIfAbsent(regionFile, k -> new HashMap<>()).put((chunkX & 31) + (chunkZ & 31) * 32, compressed) == null) {
+            this.chunkCount++;
+        }
+    }
+
+    public synchronized int getChunkCount() {
+        return this.chunkCount;
+    }
+
+    /**
+     * @return Region files with captured chunks, some of which may not exist on disk yet
+     */
+    public synchronized Set<Path> getRegionFiles() {
+        return Set.copyOf(this.chunksByRegion.keySet());
+    }
+
+    public synchronized boolean contains(Path file) {
+        return this.chunksByRegion.containsKey(file);
+    }
+
+    public FileTime getCapturedTime() {
+        return this.capturedTime;
+    }
+
+    /**
+     * @return Contents of the region file with the captured chunks merged in
+     */
+    public byte[] read(Path regionFile) throws IOException {
+        Map<Integer, byte[]> chunks;
+        synchronized (this) {
+            chunks = this.chunksByRegion.get(regionFile);
+        }
+        if (chunks == null) {
+            throw new IOException("No chunks were captured for region file " + regionFile);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int timestamp = (int) (this.capturedTime.toMillis() / 1000);
+        try (FileChannel onDisk = Files.exists(regionFile) ? FileChannel.open(regionFile, StandardOpenOption.READ) : null) {
+            ByteBuffer diskHeader = onDisk != null ? readHeader(onDisk) : null;
+            for (int i = 0; i < CHUNKS_PER_REGION; i++) {
+                byte[] captured = chunks.get(i);
+                if (captured != null && sectorsFor(captured.length + 5) <= MAX_SECTORS_PER_CHUNK) {
+                    putChunk(header, data, i, timestamp, ByteBuffer.allocate(5 + captured.length)
+                            .putInt(captured.length + 1).put(COMPRESSION_ZLIB).put(captured).flip());
+                    continue;
+                }
+                if (captured != null) {
+                    log.debug("Chunk {} in {} is too big for the region file, keeping the copy saved on disk", i, regionFile);
+                }
+                ByteBuffer existing = diskHeader != null ? readChunk(onDisk, diskHeader, i, regionFile) : null;
+                if (existing != null) {
+                    putChunk(header, data, i, diskHeader.getInt(SECTOR_SIZE + i * 4), existing);
+                }
+            }
+        }
+
+        byte[] region = new byte[HEADER_SIZE + data.size()];
+        System.arraycopy(header.array(), 0, region, 0, HEADER_SIZE);
+        System.arraycopy(data.toByteArray(), 0, region, HEADER_SIZE, data.size());
+        return region;
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                break;
+            }
+        }
+        // A region file that was just created can be shorter than the header, missing entries are empty
+        return header.clear();
+    }
+
+    /**
+     * @return Length prefixed chunk as stored on disk, or null if there is no valid chunk at this index
+     */
+    private static ByteBuffer readChunk(FileChannel channel, ByteBuffer header, int index, Path regionFile) throws IOException {
+        int location = header.getInt(index * 4);
+        long offset = (long) (location >>> 8) * SECTOR_SIZE;
+        int sectors = location & 0xFF;
+        if (location == 0 || offset < HEADER_SIZE || offset + 5 > channel.size()) {
+            return null;
+        }
+
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        channel.read(lengthBuffer, offset);
+        int length = lengthBuffer.flip().getInt();
+        if (length <= 0 || length + 4 > sectors * SECTOR_SIZE || offset + 4 + length > channel.size()) {
+            log.warn("Chunk {} in region file {} is corrupt, leaving it out of the backup", index, regionFile);
+            return null;
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocate(4 + length);
+        while (chunk.hasRemaining()) {
+            if (channel.read(chunk, offset + chunk.position()) < 0) {
+                break;
+            }
+        }
+        // Chunks stored externally only hold their compression type here, their .mcc file is backed up like any other file
+        return chunk.hasRemaining() ? null : chunk.flip();
+    }
+
+    private static void putChunk(ByteBuffer header, ByteArrayOutputStream data, int index, int timestamp, ByteBuffer chunk) {
+        int length = chunk.remaining();
+        int sectors = sectorsFor(length);
+        int sectorOffset = (HEADER_SIZE + data.size()) / SECTOR_SIZE;
+        header.putInt(index * 4, (sectorOffset << 8) | sectors);
+        header.putInt(SECTOR_SIZE + index * 4, timestamp);
+        data.write(chunk.array(), chunk.arrayOffset() + chunk.position(), length);
+        // Pad to a whole sector
+        data.writeBytes(new byte[sectors * SECTOR_SIZE - length]);
+    }
+
+    private static int sectorsFor(int length) {
+        return (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+}
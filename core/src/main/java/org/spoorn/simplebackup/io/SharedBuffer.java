@@ -0,0 +1,36 @@
+package org.spoorn.simplebackup.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pooled buffer read once and handed to several consumers.  Each consumer reads through its own {@link #view()}
+ * and calls {@link #release()} when done, and the buffer goes back to the {@link BufferPool} after the last release.
+ */
+public class SharedBuffer {
+
+    private final ByteBuffer buffer;
+    private final AtomicInteger refs;
+
+    /**
+     * @param buffer Flipped buffer, ready for reading
+     * @param refs Number of consumers that will release this buffer
+     */
+    public SharedBuffer(ByteBuffer buffer, int refs) {
+        this.buffer = buffer;
+        this.refs = new AtomicInteger(refs);
+    }
+
+    /**
+     * @return Independent read-only view of the data, so consumers don't share positions
+     */
+    public ByteBuffer view() {
+        return this.buffer.asReadOnlyBuffer();
+    }
+
+    public void release() {
+        if (this.refs.decrementAndGet() == 0) {
+            BufferPool.get().release(this.buffer);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.spoorn.simplebackup.io;
+
+import org.spoorn.simplebackup.storage.StorageBackend;
+import org.spoorn.simplebackup.storage.StorageOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Writes DIRECTORY backups to a {@link StorageBackend} without a local folder, as one object per file under
+ * {@code <prefix>/}.  Object stores keep their own upload time, so file modified times are not preserved.  The
+ * {@link StorageBackend#COMPLETE_MARKER} is written once every file is, so the backup is only listed once complete.
+ */
+public class StorageDirectoryArchiveWriter extends StreamArchiveWriter {
+
+    private final StorageBackend backend;
+    private final String prefix;
+    private StorageOutputStream current;
+
+    public StorageDirectoryArchiveWriter(StorageBackend backend, String prefix) {
+        this.backend = backend;
+        this.prefix = prefix;
+    }
+
+    @Override
+    protected OutputStream entryStream() {
+        return this.current;
+    }
+
+    @Override
+    public void putFile(String name, long size, FileTime lastModifiedTime) throws IOException {
+        this.current = this.backend.openWrite(this.prefix + "/" + name);
+    }
+
+    @Override
+    public void closeFile() throws IOException {
+        StorageOutputStream out = this.current;
+        this.current = null;
+        out.close();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        this.backend.openWrite(this.prefix + "/" + StorageBackend.COMPLETE_MARKER).close();
+    }
+
+    @Override
+    public void close() {
+        if (this.current != null) {
+            this.current.abort();
+            this.current = null;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.spoorn.simplebackup.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Base for archive formats that are written as a single {@link OutputStream}.  Buffers from the pool are direct and
+ * have no backing array, so data is copied through a small scratch array owned by the writer.
+ */
+public abstract class StreamArchiveWriter implements ArchiveWriter {
+
+    private final byte[] scratch = new byte[64 * 1024];
+
+    protected abstract OutputStream entryStream();
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        OutputStream out = entryStream();
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+            return;
+        }
+        while (data.hasRemaining()) {
+            int length = Math.min(this.scratch.length, data.remaining());
+            data.get(this.scratch, 0, length);
+            out.write(this.scratch, 0, length);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.spoorn.simplebackup.io;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Reads tar backups from an already decompressing stream, such as .tar.lz4 and .tar.xz.
+ */
+public class TarBackupReader implements BackupReader {
+
+    private final TarArchiveInputStream tais;
+
+    public TarBackupReader(InputStream decompressed) {
+        this.tais = new TarArchiveInputStream(decompressed);
+    }
+
+    @Override
+    public Entry next() throws IOException {
+        TarArchiveEntry entry;
+        while ((entry = this.tais.getNextTarEntry()) != null) {
+            if (entry.isFile()) {
+                return new Entry(entry.getName(), entry.getSize(), FileTime.from(entry.getLastModifiedDate().toInstant()));
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public InputStream stream() {
+        // Reads up to the end of the current entry
+        return this.tais;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.tais.close();
+    }
+}
@@ -0,0 +1,61 @@
+package org.spoorn.simplebackup.io;
+
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Streams files into a .tar.lz4, compatible with the archives produced by
+ * {@link org.spoorn.simplebackup.compressors.LZ4Compressor}.
+ */
+public class TarLz4ArchiveWriter extends StreamArchiveWriter {
+
+    private final TarArchiveOutputStream taos;
+
+    /**
+     * @param compressionLevel 0 for LZ4's fast compressor, or the level of its high compressor from 1 to 17
+     */
+    public TarLz4ArchiveWriter(OutputStream out, int compressionLevel) throws IOException {
+        LZ4Factory factory = LZ4Factory.fastestInstance();
+        this.taos = new TarArchiveOutputStream(new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB, -1L,
+                compressionLevel > 0 ? factory.highCompressor(compressionLevel) : factory.fastCompressor(),
+                XXHashFactory.fastestInstance().hash32(), LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE));
+        this.taos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        this.taos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+    }
+
+    @Override
+    protected OutputStream entryStream() {
+        return this.taos;
+    }
+
+    @Override
+    public void putFile(String name, long size, FileTime lastModifiedTime) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(size);
+        entry.setModTime(lastModifiedTime.toMillis());
+        this.taos.putArchiveEntry(entry);
+    }
+
+    @Override
+    public void closeFile() throws IOException {
+        this.taos.closeArchiveEntry();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        this.taos.finish();
+        this.taos.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.taos.close();
+    }
+}
@@ -0,0 +1,62 @@
+package org.spoorn.simplebackup.io;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Streams files into a .tar.xz, for recompressing older backups with a much higher ratio than ZIP or LZ4.
+ */
+public class TarXzArchiveWriter extends StreamArchiveWriter {
+
+    private final XZCompressorOutputStream xz;
+    private final TarArchiveOutputStream taos;
+    private boolean finished = false;
+
+    /**
+     * @param preset XZ preset from 0 (fastest) to 9 (smallest)
+     */
+    public TarXzArchiveWriter(OutputStream out, int preset) throws IOException {
+        this.xz = new XZCompressorOutputStream(out, preset);
+        this.taos = new TarArchiveOutputStream(this.xz);
+        this.taos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        this.taos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+    }
+
+    @Override
+    protected OutputStream entryStream() {
+        return this.taos;
+    }
+
+    @Override
+    public void putFile(String name, long size, FileTime lastModifiedTime) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(size);
+        entry.setModTime(lastModifiedTime.toMillis());
+        this.taos.putArchiveEntry(entry);
+    }
+
+    @Override
+    public void closeFile() throws IOException {
+        this.taos.closeArchiveEntry();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        this.taos.finish();
+        this.taos.close();
+        this.finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Tar refuses to close an abandoned archive with an unclosed entry, so close the file underneath directly
+        if (!this.finished) {
+            this.xz.close();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.spoorn.simplebackup.io;
+
+import net.lingala.zip4j.io.outputstream.ZipOutputStream;
+import net.lingala.zip4j.model.ZipParameters;
+import net.lingala.zip4j.model.enums.CompressionLevel;
+import org.spoorn.simplebackup.compressors.ZipCompressor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Streams files into a .zip using DEFLATE, same as {@link org.spoorn.simplebackup.compressors.ZipCompressor}.
+ */
+public class ZipArchiveWriter extends StreamArchiveWriter {
+
+    private final ZipOutputStream zos;
+    private final CompressionLevel compressionLevel;
+
+    /**
+     * @param compressionLevel Deflate level from 1 to 9
+     */
+    public ZipArchiveWriter(OutputStream out, int compressionLevel) throws IOException {
+        this.zos = new ZipOutputStream(out);
+        this.compressionLevel = ZipCompressor.getCompressionLevel(compressionLevel);
+    }
+
+    @Override
+    protected OutputStream entryStream() {
+        return this.zos;
+    }
+
+    @Override
+    public void putFile(String name, long size, FileTime lastModifiedTime) throws IOException {
+        ZipParameters parameters = new ZipParameters();
+        parameters.setFileNameInZip(name);
+        parameters.setLastModifiedFileTime(lastModifiedTime.toMillis());
+        parameters.setEntrySize(size);
+        parameters.setCompressionLevel(this.compressionLevel);
+        this.zos.putNextEntry(parameters);
+    }
+
+    @Override
+    public void closeFile() throws IOException {
+        this.zos.closeEntry();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        // Writes the central directory
+        this.zos.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.zos.close();
+    }
+}
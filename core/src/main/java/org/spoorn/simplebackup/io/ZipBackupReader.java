@@ -0,0 +1,63 @@
+package org.spoorn.simplebackup.io;
+
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.util.Zip4jUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+
+/**
+ * Reads ZIP backups through the central directory, which unlike the local headers always has the file sizes.
+ */
+public class ZipBackupReader implements BackupReader {
+
+    private final ZipFile zipFile;
+    private final Iterator<FileHeader> headers;
+    private FileHeader current;
+    private InputStream currentStream;
+
+    public ZipBackupReader(Path zip) throws IOException {
+        this.zipFile = new ZipFile(zip.toFile());
+        this.headers = this.zipFile.getFileHeaders().iterator();
+    }
+
+    @Override
+    public Entry next() throws IOException {
+        closeCurrent();
+        while (this.headers.hasNext()) {
+            FileHeader header = this.headers.next();
+            if (!header.isDirectory()) {
+                this.current = header;
+                return new Entry(header.getFileName(), header.getUncompressedSize(),
+                        FileTime.fromMillis(Zip4jUtil.dosToExtendedEpochTme(header.getLastModifiedTime())));
+            }
+        }
+        this.current = null;
+        return null;
+    }
+
+    @Override
+    public InputStream stream() throws IOException {
+        if (this.currentStream == null) {
+            this.currentStream = this.zipFile.getInputStream(this.current);
+        }
+        return this.currentStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeCurrent();
+        this.zipFile.close();
+    }
+
+    private void closeCurrent() throws IOException {
+        if (this.currentStream != null) {
+            this.currentStream.close();
+            this.currentStream = null;
+        }
+    }
+}
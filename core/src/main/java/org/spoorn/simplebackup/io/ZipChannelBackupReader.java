@@ -0,0 +1,68 @@
+package org.spoorn.simplebackup.io;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.attribute.FileTime;
+import java.util.Enumeration;
+
+/**
+ * Reads ZIP backups that aren't plain files, like encrypted ones, through a {@link SeekableByteChannel}.  Like
+ * {@link ZipBackupReader}, entries come from the central directory.
+ */
+public class ZipChannelBackupReader implements BackupReader {
+
+    private final ZipFile zipFile;
+    private final Enumeration<ZipArchiveEntry> entries;
+    private ZipArchiveEntry current;
+    private InputStream currentStream;
+
+    public ZipChannelBackupReader(SeekableByteChannel channel) throws IOException {
+        try {
+            this.zipFile = new ZipFile(channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.entries = this.zipFile.getEntriesInPhysicalOrder();
+    }
+
+    @Override
+    public Entry next() throws IOException {
+        closeCurrent();
+        while (this.entries.hasMoreElements()) {
+            ZipArchiveEntry entry = this.entries.nextElement();
+            if (!entry.isDirectory()) {
+                this.current = entry;
+                return new Entry(entry.getName(), entry.getSize(), FileTime.fromMillis(entry.getTime()));
+            }
+        }
+        this.current = null;
+        return null;
+    }
+
+    @Override
+    public InputStream stream() throws IOException {
+        if (this.currentStream == null) {
+            this.currentStream = this.zipFile.getInputStream(this.current);
+        }
+        return this.currentStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeCurrent();
+        // Also closes the channel
+        this.zipFile.close();
+    }
+
+    private void closeCurrent() throws IOException {
+        if (this.currentStream != null) {
+            this.currentStream.close();
+            this.currentStream = null;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.spoorn.simplebackup.io;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Checkpoints for a ZIP archive that is built up in batches.
+ *
+ * When files are appended to an existing ZIP, the new entries are written over the old central directory and a new
+ * central directory is written at the end.  If the process dies mid-batch, the archive is left without a valid central
+ * directory.  A checkpoint saves the central directory offset and the tail of the archive from that offset, so the
+ * archive can be rolled back to the last completed batch by truncating it and re-appending the saved tail.
+ */
+public class ZipCheckpoint {
+
+    private static final int MAGIC = 0x53425a43; // "SBZC"
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int EOCD_MIN_LENGTH = 22;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+    /**
+     * Saves a checkpoint for a valid ZIP archive.  The checkpoint file is replaced atomically.
+     */
+    public static void save(Path zipFile, Path checkpoint) throws IOException {
+        Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        try (FileChannel zip = FileChannel.open(zipFile, StandardOpenOption.READ)) {
+            long cdOffset = centralDirectoryOffset(zip);
+            long tailLength = zip.size() - cdOffset;
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(20).putInt(MAGIC).putLong(cdOffset).putLong(tailLength).flip();
+                while (header.hasRemaining()) {
+                    out.write(header);
+                }
+                long transferred = 0;
+                while (transferred < tailLength) {
+                    transferred += zip.transferTo(cdOffset + transferred, tailLength - transferred, out);
+                }
+                out.force(false);
+            }
+        }
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Rolls a ZIP archive back to the state it was in when the checkpoint was saved.
+     *
+     * @return True if restored, false if the checkpoint or archive is unusable
+     */
+    public static boolean restore(Path zipFile, Path checkpoint) throws IOException {
+        try (InputStream is = Files.newInputStream(checkpoint);
+             DataInputStream in = new DataInputStream(is);
+             FileChannel zip = FileChannel.open(zipFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (in.readInt() != MAGIC) {
+                return false;
+            }
+            long cdOffset = in.readLong();
+            long tailLength = in.readLong();
+            if (zip.size() < cdOffset) {
+                return false;
+            }
+
+            byte[] tail = in.readNBytes((int) tailLength);
+            if (tail.length != tailLength) {
+                return false;
+            }
+            zip.truncate(cdOffset);
+            ByteBuffer buffer = ByteBuffer.wrap(tail);
+            long position = cdOffset;
+            while (buffer.hasRemaining()) {
+                position += zip.write(buffer, position);
+            }
+            zip.force(false);
+            return true;
+        }
+    }
+
+    /**
+     * Finds the offset of the central directory from the end of central directory record, including ZIP64 archives.
+     */
+    static long centralDirectoryOffset(FileChannel zip) throws IOException {
+        long size = zip.size();
+        int searchLength = (int) Math.min(size, EOCD_MIN_LENGTH + MAX_COMMENT_LENGTH);
+        ByteBuffer end = ByteBuffer.allocate(searchLength).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(zip, end, size - searchLength);
+
+        for (int i = searchLength - EOCD_MIN_LENGTH; i >= 0; i--) {
+            if (end.getInt(i) == EOCD_SIGNATURE) {
+                long cdOffset = Integer.toUnsignedLong(end.getInt(i + 16));
+                if (cdOffset != 0xFFFFFFFFL) {
+                    return cdOffset;
+                }
+
+                // ZIP64: locator sits right before the end of central directory record
+                long eocdPosition = size - searchLength + i;
+                ByteBuffer locator = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(zip, locator, eocdPosition - 20);
+                if (locator.getInt(0) != ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                    throw new IOException("Missing ZIP64 end of central directory locator");
+                }
+                ByteBuffer zip64Eocd = ByteBuffer.allocate(56).order(ByteOrder.LITTLE_ENDIAN);
+                readFully(zip, zip64Eocd, locator.getLong(8));
+                if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                    throw new IOException("Missing ZIP64 end of central directory record");
+                }
+                return zip64Eocd.getLong(48);
+            }
+        }
+        throw new IOException("Could not find end of central directory record");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.spoorn.simplebackup.progress;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Progress of a single running backup, published to by the threads doing the work and read by {@link ProgressBus}.
+ *
+ * Counters are {@link LongAdder}s, so any number of threads can add to them without contending or allocating.
+ * Nothing here calls back into subscribers, the bus samples these counters on its own thread instead.
+ */
+public class BackupProgress {
+
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    private final long id = NEXT_ID.incrementAndGet();
+    private final String name;
+    private final long startNanos = System.nanoTime();
+    private final LongAdder bytesDone = new LongAdder();
+    private final LongAdder filesDone = new LongAdder();
+    private volatile long totalBytes = -1;
+    private volatile long totalFiles = -1;
+    private volatile LongSupplier bytesDoneProbe;
+    private volatile Supplier<String> detail;
+    private volatile boolean succeeded = false;
+
+    BackupProgress(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @param totalBytes Bytes to back up, or -1 if unknown
+     * @param totalFiles Files to back up, or -1 if unknown
+     */
+    public void setTotals(long totalBytes, long totalFiles) {
+        this.totalBytes = totalBytes;
+        this.totalFiles = totalFiles;
+    }
+
+    public void addBytes(long bytes) {
+        this.bytesDone.add(bytes);
+    }
+
+    public void addFiles(long files) {
+        this.filesDone.add(files);
+    }
+
+    /**
+     * Reads bytes done from a library's own counter instead of {@link #addBytes(long)}, like zip4j's ProgressMonitor.
+     * The probe is only called from the bus thread.
+     */
+    public void trackBytes(LongSupplier bytesDone) {
+        this.bytesDoneProbe = bytesDone;
+    }
+
+    /**
+     * @param detail Extra text for subscribers, i.e. progress of each backup destination.  Only called from the bus thread
+     */
+    public void setDetail(Supplier<String> detail) {
+        this.detail = detail;
+    }
+
+    void succeeded() {
+        this.succeeded = true;
+    }
+
+    ProgressSnapshot snapshot() {
+        LongSupplier bytesProbe = this.bytesDoneProbe;
+        long total = this.totalBytes;
+        long bytes = bytesProbe != null ? bytesProbe.getAsLong() : this.bytesDone.sum();
+        if (total > 0) {
+            bytes = this.succeeded ? total : Math.min(bytes, total);
+        }
+        Supplier<String> detailSupplier = this.detail;
+        return new ProgressSnapshot(this.id, this.name, bytes, total, this.filesDone.sum(), this.totalFiles,
+                (System.nanoTime() - this.startNanos) / 1_000_000, detailSupplier != null ? detailSupplier.get() : null);
+    }
+}
@@ -0,0 +1,49 @@
+package org.spoorn.simplebackup.progress;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Logs backup progress every {@code intervalPercentageToLogBackupProgress} percent, with throughput and ETA.
+ */
+@Log4j2
+public class LogProgressListener implements ProgressListener {
+
+    // Often enough to not miss a step, the percent interval decides what actually gets logged
+    public static final long SAMPLE_INTERVAL_MILLIS = 1000;
+
+    private final int intervalPercent;
+    // Last step logged per backup.  Only touched on the bus thread
+    private final Map<Long, Integer> lastSteps = new HashMap<>();
+
+    /**
+     * @param intervalPercent Log every this many percent, 0 to not log progress
+     */
+    public LogProgressListener(int intervalPercent) {
+        this.intervalPercent = intervalPercent;
+    }
+
+    @Override
+    public void onProgress(ProgressSnapshot snapshot) {
+        int percent = snapshot.percent();
+        if (this.intervalPercent <= 0 || this.intervalPercent > 100 || percent < 0) {
+            return;
+        }
+        int step = percent / this.intervalPercent;
+        Integer lastStep = this.lastSteps.put(snapshot.id(), step);
+        if (lastStep == null ? step > 0 : step > lastStep) {
+            log.info("Backup progress [{}]: {}", snapshot.name(), snapshot.describe());
+        }
+    }
+
+    @Override
+    public void onFinish(ProgressSnapshot snapshot, boolean success) {
+        this.lastSteps.remove(snapshot.id());
+        if (success && this.intervalPercent > 0 && this.intervalPercent <= 100) {
+            log.info("Backup [{}] done: {} in {} s at {}/s", snapshot.name(), ProgressSnapshot.formatBytes(snapshot.bytesDone()),
+                    snapshot.elapsedMillis() / 1000, ProgressSnapshot.formatBytes((long) snapshot.bytesPerSecond()));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.spoorn.simplebackup.progress;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Single place every backup format reports progress to, and listeners subscribe to: the console log, the boss bar in
+ * game, and other mods through {@link #subscribe(ProgressListener, long)}.
+ *
+ * Backups only ever add to the counters of their {@link BackupProgress}.  A single bus thread samples the running
+ * backups a few times a second and hands snapshots to each listener at its own interval, so reporting costs the
+ * backup no locks or allocations per file, however many listeners there are or however slow they are.
+ *
+ * Example, from another mod:
+ * <pre>{@code
+ * ProgressBus.get().subscribe(snapshot -> LOGGER.info("{}: {}%", snapshot.name(), snapshot.percent()), 5000);
+ * }</pre>
+ */
+@Log4j2
+public class ProgressBus {
+
+    private static final long TICK_MILLIS = 250;
+    private static final ProgressBus INSTANCE = new ProgressBus();
+
+    private final List<BackupProgress> running = new CopyOnWriteArrayList<>();
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService executorService;
+
+    /**
+     * Handle to stop receiving progress.
+     */
+    public class Subscription implements AutoCloseable {
+        private final ProgressListener listener;
+        private final long intervalMillis;
+        // Only touched on the bus thread
+        private long nextNotifyMillis = 0;
+
+        private Subscription(ProgressListener listener, long intervalMillis) {
+            this.listener = listener;
+            this.intervalMillis = intervalMillis;
+        }
+
+        @Override
+        public void close() {
+            subscriptions.remove(this);
+        }
+    }
+
+    private ProgressBus() {
+        this.executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SimpleBackup-Progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executorService.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public static ProgressBus get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param intervalMillis Least time between two {@link ProgressListener#onProgress} calls, rounded up to the bus'
+     *                       sampling interval of 250 ms.  Start and finish are always delivered
+     */
+    public Subscription subscribe(ProgressListener listener, long intervalMillis) {
+        Subscription subscription = new Subscription(listener, intervalMillis);
+        this.subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Registers a new backup.  Every call must be followed by {@link #finish(BackupProgress, boolean)}.
+     *
+     * @param name What is being backed up, i.e. the world folder name
+     */
+    public BackupProgress start(String name) {
+        BackupProgress progress = new BackupProgress(name);
+        // Only sampled by ticks once listeners heard it started
+        this.executorService.execute(() -> {
+            ProgressSnapshot snapshot = progress.snapshot();
+            publish(listener -> listener.onStart(snapshot));
+            this.running.add(progress);
+        });
+        return progress;
+    }
+
+    public void finish(BackupProgress progress, boolean success) {
+        if (success) {
+            progress.succeeded();
+        }
+        // On the bus thread like start, so this is always the last thing listeners hear about this backup
+        this.executorService.execute(() -> {
+            this.running.remove(progress);
+            ProgressSnapshot snapshot = progress.snapshot();
+            publish(listener -> listener.onFinish(snapshot, success));
+        });
+    }
+
+    private void tick() {
+        if (this.running.isEmpty() || this.subscriptions.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<ProgressSnapshot> snapshots = null;
+        for (Subscription subscription : this.subscriptions) {
+            if (now < subscription.nextNotifyMillis) {
+                continue;
+            }
+            subscription.nextNotifyMillis = now + subscription.intervalMillis;
+            if (snapshots == null) {
+                snapshots = this.running.stream().map(BackupProgress::snapshot).toList();
+            }
+            for (ProgressSnapshot snapshot : snapshots) {
+                deliver(subscription, listener -> listener.onProgress(snapshot));
+            }
+        }
+    }
+
+    private void publish(Consumer<ProgressListener> event) {
+        for (Subscription subscription : this.subscriptions) {
+            deliver(subscription, event);
+        }
+    }
+
+    private static void deliver(Subscription subscription, Consumer<ProgressListener> event) {
+        try {
+            event.accept(subscription.listener);
+        } catch (Exception e) {
+            log.error("Backup progress listener " + subscription.listener + " failed", e);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.spoorn.simplebackup.progress;
+
+/**
+ * Subscriber to backup progress, see {@link ProgressBus#subscribe(ProgressListener, long)}.  Always called from the
+ * bus thread, never from the threads doing the backup, so a slow listener can't slow down backups.  It does hold up
+ * other listeners though, so hand anything expensive off to another thread.
+ */
+public interface ProgressListener {
+
+    /**
+     * Called at most once per subscription interval for each running backup.
+     */
+    void onProgress(ProgressSnapshot snapshot);
+
+    default void onStart(ProgressSnapshot snapshot) {
+    }
+
+    /**
+     * @param success False if the backup failed
+     */
+    default void onFinish(ProgressSnapshot snapshot, boolean success) {
+    }
+}
@@ -0,0 +1,90 @@
+package org.spoorn.simplebackup.progress;
+
+/**
+ * Progress of a backup at one point in time, as handed to {@link ProgressListener}s.
+ *
+ * @param id Unique per backup, to tell apart backups running at the same time
+ * @param name What is being backed up, i.e. the world folder name
+ * @param totalBytes -1 if not known (yet)
+ * @param totalFiles -1 if not known
+ * @param detail Extra text from the backup format, or null
+ */
+public record ProgressSnapshot(long id, String name, long bytesDone, long totalBytes, long filesDone, long totalFiles,
+                               long elapsedMillis, String detail) {
+
+    /**
+     * @return Percent done from 0 to 100, or -1 if the total isn't known
+     */
+    public int percent() {
+        if (this.totalBytes <= 0) {
+            return -1;
+        }
+        return (int) Math.min(100, this.bytesDone * 100 / this.totalBytes);
+    }
+
+    /**
+     * @return Average throughput since the backup started
+     */
+    public double bytesPerSecond() {
+        return this.elapsedMillis > 0 ? this.bytesDone * 1000.0 / this.elapsedMillis : 0;
+    }
+
+    /**
+     * @return Estimated milliseconds left at the average throughput so far, or -1 if it can't be estimated yet
+     */
+    public long etaMillis() {
+        double rate = bytesPerSecond();
+        if (this.totalBytes <= 0 || rate <= 0) {
+            return -1;
+        }
+        return (long) (Math.max(0, this.totalBytes - this.bytesDone) * 1000 / rate);
+    }
+
+    /**
+     * @return i.e. {@code 42% (1.2 GB of 2.9 GB, 85.3 MB/s, ETA 0:21)}
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        int percent = percent();
+        if (percent >= 0) {
+            sb.append(percent).append("% (").append(formatBytes(this.bytesDone)).append(" of ").append(formatBytes(this.totalBytes));
+        } else {
+            sb.append("(").append(formatBytes(this.bytesDone));
+        }
+        sb.append(", ").append(formatBytes((long) bytesPerSecond())).append("/s");
+        long eta = etaMillis();
+        if (eta >= 0) {
+            sb.append(", ETA ").append(formatDuration(eta));
+        }
+        sb.append(")");
+        if (this.detail != null) {
+            sb.append(" ").append(this.detail);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return i.e. {@code 1:05} or {@code 1:02:05}
+     */
+    public static String formatDuration(long millis) {
+        long seconds = millis / 1000;
+        if (seconds >= 3600) {
+            return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        }
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+
+    public static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+}
@@ -0,0 +1,124 @@
+package org.spoorn.simplebackup.storage;
+
+import lombok.extern.log4j.Log4j2;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Backups in a folder on the local filesystem.  Writes go to a .tmp file that is renamed on close.
+ */
+@Log4j2
+public class LocalStorageBackend implements StorageBackend {
+
+    private final Path folder;
+
+    public LocalStorageBackend(Path folder) {
+        this.folder = folder;
+    }
+
+    @Override
+    public String getName() {
+        return this.folder.toString();
+    }
+
+    @Override
+    public Optional<Path> getLocalFolder() {
+        return Optional.of(this.folder);
+    }
+
+    @Override
+    public StorageOutputStream openWrite(String name) throws IOException {
+        Path destination = this.folder.resolve(name);
+        Path tmp = destination.resolveSibling(destination.getFileName() + ".tmp");
+        Files.createDirectories(destination.getParent());
+        return new LocalOutputStream(tmp, destination);
+    }
+
+    @Override
+    public List<BackupEntry> list() throws IOException {
+        List<BackupEntry> entries = new ArrayList<>();
+        File[] backupFiles = this.folder.toFile().listFiles(file -> SimpleBackupUtil.isBackupName(file.getName()));
+        if (backupFiles != null) {
+            for (File file : backupFiles) {
+                // Backups that were recompressed are newer files than their name says
+                long created = SimpleBackupUtil.getBackupTime(file.getName())
+                        .orElse(Files.readAttributes(file.toPath(), BasicFileAttributes.class).creationTime().toMillis());
+                entries.add(new BackupEntry(file.getName(), created));
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public void delete(String name) throws IOException {
+        Path path = this.folder.resolve(name);
+        if (Files.isDirectory(path)) {
+            SimpleBackupUtil.deleteRecursively(path);
+        } else {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static class LocalOutputStream extends StorageOutputStream {
+        private final Path tmp;
+        private final Path destination;
+        private final java.io.OutputStream out;
+        private boolean closed = false;
+
+        LocalOutputStream(Path tmp, Path destination) throws IOException {
+            this.tmp = tmp;
+            this.destination = destination;
+            this.out = Files.newOutputStream(tmp);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            try {
+                this.out.close();
+                Files.move(this.tmp, this.destination, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.deleteIfExists(this.tmp);
+                throw e;
+            }
+        }
+
+        @Override
+        public void abort() {
+            this.closed = true;
+            try {
+                this.out.close();
+                Files.deleteIfExists(this.tmp);
+            } catch (IOException e) {
+                log.error("Could not clean up " + this.tmp, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package org.spoorn.simplebackup.storage;
+
+import lombok.extern.log4j.Log4j2;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+import org.spoorn.tarlz4java.util.concurrent.NamedThreadFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Backups in an S3 compatible bucket, such as AWS S3, MinIO or Backblaze B2.
+ *
+ * Writes are streamed straight into a multipart upload.  Every time a part fills up, it is handed to an upload thread
+ * while the caller keeps compressing into the next part, so at most {@code maxConcurrentUploads + 1} parts are held in
+ * memory and nothing is staged on disk.  Objects smaller than one part are sent with a single PUT.  Requests are
+ * signed with AWS Signature Version 4 using path style addressing, which all S3 compatible servers support.
+ */
+@Log4j2
+public class S3StorageBackend implements StorageBackend {
+
+    // S3 rejects parts smaller than this, except for the last one
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final int MAX_PARTS = 10000;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final String SERVICE = "s3";
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SIGNED_HEADERS = "host;x-amz-content-sha256;x-amz-date";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    private final URI endpoint;
+    private final String region;
+    private final String bucket;
+    private final String prefix;
+    private final String accessKey;
+    private final String secretKey;
+    private final int partSize;
+    private final int maxConcurrentUploads;
+    private final HttpClient client;
+
+    /**
+     * @param endpoint Base URL of the server, for example {@code https://s3.us-east-1.amazonaws.com} or {@code http://localhost:9000}
+     * @param prefix Folder inside the bucket to keep backups in, or empty for the root of the bucket
+     */
+    public S3StorageBackend(String endpoint, String region, String bucket, String prefix, String accessKey, String secretKey,
+                            int partSize, int maxConcurrentUploads) {
+        this.endpoint = URI.create(endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint);
+        this.region = region;
+        this.bucket = bucket;
+        String trimmed = prefix.replace('\\', '/').replaceAll("^/+|/+$", "");
+        this.prefix = trimmed.isEmpty() ? "" : trimmed + "/";
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.partSize = Math.max(MIN_PART_SIZE, partSize);
+        this.maxConcurrentUploads = Math.max(1, maxConcurrentUploads);
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(30)).build();
+    }
+
+    @Override
+    public String getName() {
+        return "s3://" + this.bucket + "/" + this.prefix;
+    }
+
+    @Override
+    public Optional<Path> getLocalFolder() {
+        return Optional.empty();
+    }
+
+    @Override
+    public StorageOutputStream openWrite(String name) {
+        return new S3OutputStream(this.prefix + name);
+    }
+
+    @Override
+    public List<BackupEntry> list() throws IOException {
+        List<BackupEntry> entries = new ArrayList<>();
+        String continuationToken = null;
+        do {
+            Map<String, String> query = new TreeMap<>();
+            query.put("list-type", "2");
+            query.put("prefix", this.prefix);
+            query.put("delimiter", "/");
+            if (continuationToken != null) {
+                query.put("continuation-token", continuationToken);
+            }
+            Document result = parseXml(send("GET", "", query, new byte[0], 0));
+
+            // Archives are single objects
+            NodeList contents = result.getElementsByTagName("Contents");
+            for (int i = 0; i < contents.getLength(); i++) {
+                Element content = (Element) contents.item(i);
+                String name = textOf(content, "Key").substring(this.prefix.length());
+                if (SimpleBackupUtil.isBackupName(name)) {
+                    // Backups that were recompressed or uploaded later are newer objects than their name says
+                    entries.add(new BackupEntry(name, SimpleBackupUtil.getBackupTime(name)
+                            .orElse(Instant.parse(textOf(content, "LastModified")).toEpochMilli())));
+                }
+            }
+
+            // DIRECTORY backups show up as common prefixes, and are only complete once they have the marker
+            NodeList commonPrefixes = result.getElementsByTagName("CommonPrefixes");
+            for (int i = 0; i < commonPrefixes.getLength(); i++) {
+                String folder = textOf((Element) commonPrefixes.item(i), "Prefix");
+                String name = folder.substring(this.prefix.length(), folder.length() - 1);
+                if (SimpleBackupUtil.isBackupName(name)) {
+                    OptionalLong completed = completedMillis(folder);
+                    if (completed.isPresent()) {
+                        entries.add(new BackupEntry(name, SimpleBackupUtil.getBackupTime(name).orElse(completed.getAsLong())));
+                    }
+                }
+            }
+
+            continuationToken = "true".equals(textOf(result.getDocumentElement(), "IsTruncated"))
+                    ? textOf(result.getDocumentElement(), "NextContinuationToken") : null;
+        } while (continuationToken != null);
+        return entries;
+    }
+
+    @Override
+    public void delete(String name) throws IOException {
+        // DIRECTORY backups are every object under the name.  The marker goes first, so a backup that is only partly
+        // deleted isn't listed as complete
+        String folder = this.prefix + name + "/";
+        List<String> keys = listKeys(folder);
+        if (keys.remove(folder + COMPLETE_MARKER)) {
+            send("DELETE", folder + COMPLETE_MARKER, Map.of(), new byte[0], 0);
+        }
+        for (String key : keys) {
+            send("DELETE", key, Map.of(), new byte[0], 0);
+        }
+        send("DELETE", this.prefix + name, Map.of(), new byte[0], 0);
+    }
+
+    /**
+     * @return When a DIRECTORY backup's {@link #COMPLETE_MARKER} was written, or empty if it's not complete
+     */
+    private OptionalLong completedMillis(String folder) throws IOException {
+        Map<String, String> query = new TreeMap<>();
+        query.put("list-type", "2");
+        query.put("prefix", folder + COMPLETE_MARKER);
+        query.put("max-keys", "1");
+        Document result = parseXml(send("GET", "", query, new byte[0], 0));
+        NodeList modified = result.getElementsByTagName("LastModified");
+        return modified.getLength() > 0 ? OptionalLong.of(Instant.parse(modified.item(0).getTextContent()).toEpochMilli()) : OptionalLong.empty();
+    }
+
+    private List<String> listKeys(String folder) throws IOException {
+        List<String> keys = new ArrayList<>();
+        String continuationToken = null;
+        do {
+            Map<String, String> query = new TreeMap<>();
+            query.put("list-type", "2");
+            query.put("prefix", folder);
+            if (continuationToken != null) {
+                query.put("continuation-token", continuationToken);
+            }
+            Document result = parseXml(send("GET", "", query, new byte[0], 0));
+            NodeList keyNodes = result.getElementsByTagName("Key");
+            for (int i = 0; i < keyNodes.getLength(); i++) {
+                keys.add(keyNodes.item(i).getTextContent());
+            }
+            continuationToken = "true".equals(textOf(result.getDocumentElement(), "IsTruncated"))
+                    ? textOf(result.getDocumentElement(), "NextContinuationToken") : null;
+        } while (continuationToken != null);
+        return keys;
+    }
+
+    /**
+     * Sends a signed request, retrying server errors and dropped connections.
+     *
+     * @param key Object key, or empty for a request on the bucket itself
+     * @return Response body
+     */
+    private byte[] send(String method, String key, Map<String, String> query, byte[] body, int length) throws IOException {
+        IOException lastError = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                HttpResponse<byte[]> response = this.client.send(sign(method, key, query, body, length), HttpResponse.BodyHandlers.ofByteArray());
+                int status = response.statusCode();
+                // CompleteMultipartUpload can fail with a 200 and an error body
+                boolean errorBody = status == 200 && "POST".equals(method) && new String(response.body(), StandardCharsets.UTF_8).contains("<Error>");
+                if (status / 100 == 2 && !errorBody) {
+                    if ("PUT".equals(method)) {
+                        // Callers need the ETag of uploaded parts
+                        return response.headers().firstValue("ETag").orElse("").getBytes(StandardCharsets.UTF_8);
+                    }
+                    return response.body();
+                }
+                lastError = new IOException(String.format("%s %s/%s failed with status %d: %s", method, this.bucket, key, status,
+                        new String(response.body(), StandardCharsets.UTF_8)));
+                if (status / 100 == 4) {
+                    throw lastError;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted during " + method + " " + key);
+            } catch (IOException e) {
+                if (e == lastError) {
+                    throw e;
+                }
+                lastError = e;
+            }
+
+            if (attempt < MAX_ATTEMPTS) {
+                log.warn("Request {} {}/{} failed, retrying: {}", method, this.bucket, key, lastError.getMessage());
+                try {
+                    Thread.sleep(1000L * attempt);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted during " + method + " " + key);
+                }
+            }
+        }
+        throw lastError;
+    }
+
+    private HttpRequest sign(String method, String key, Map<String, String> query, byte[] body, int length) throws IOException {
+        String path = (this.endpoint.getRawPath() == null ? "" : this.endpoint.getRawPath()) + "/" + this.bucket + (key.isEmpty() ? "" : "/" + encode(key, false));
+        StringBuilder canonicalQuery = new StringBuilder();
+        for (Map.Entry<String, String> entry : new TreeMap<>(query).entrySet()) {
+            if (!canonicalQuery.isEmpty()) {
+                canonicalQuery.append('&');
+            }
+            canonicalQuery.append(encode(entry.getKey(), true)).append('=').append(encode(entry.getValue(), true));
+        }
+        URI uri = URI.create(this.endpoint.getScheme() + "://" + this.endpoint.getRawAuthority() + path
+                + (canonicalQuery.isEmpty() ? "" : "?" + canonicalQuery));
+
+        String amzDate = AMZ_DATE.format(Instant.now());
+        String date = amzDate.substring(0, 8);
+        String payloadHash = sha256Hex(body, length);
+        String canonicalHeaders = "host:" + uri.getRawAuthority() + "\n"
+                + "x-amz-content-sha256:" + payloadHash + "\n"
+                + "x-amz-date:" + amzDate + "\n";
+        String canonicalRequest = method + "\n" + path + "\n" + canonicalQuery + "\n" + canonicalHeaders + "\n" + SIGNED_HEADERS + "\n" + payloadHash;
+
+        String scope = date + "/" + this.region + "/" + SERVICE + "/aws4_request";
+        String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" + sha256Hex(canonicalRequest.getBytes(StandardCharsets.UTF_8), -1);
+        byte[] signingKey = hmac(("AWS4" + this.secretKey).getBytes(StandardCharsets.UTF_8), date);
+        signingKey = hmac(signingKey, this.region);
+        signingKey = hmac(signingKey, SERVICE);
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature = HexFormat.of().formatHex(hmac(signingKey, stringToSign));
+
+        return HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMinutes(5))
+                .header("x-amz-content-sha256", payloadHash)
+                .header("x-amz-date", amzDate)
+                .header("Authorization", ALGORITHM + " Credential=" + this.accessKey + "/" + scope
+                        + ", SignedHeaders=" + SIGNED_HEADERS + ", Signature=" + signature)
+                .method(method, "GET".equals(method) || "DELETE".equals(method)
+                        ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body, 0, length))
+                .build();
+    }
+
+    /**
+     * URI encodes as required by Signature Version 4.  Slashes are kept in object keys.
+     */
+    private static String encode(String value, boolean encodeSlash) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(String.format("%02X", b & 0xFF));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static String sha256Hex(byte[] data, int length) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, 0, length < 0 ? data.length : length);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IOException("Could not sign S3 request", e);
+        }
+    }
+
+    private static Document parseXml(byte[] xml) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        } catch (Exception e) {
+            throw new IOException("Could not parse S3 response", e);
+        }
+    }
+
+    private static String textOf(Element element, String tag) {
+        NodeList nodes = element.getElementsByTagName(tag);
+        return nodes.getLength() == 0 ? "" : nodes.item(0).getTextContent();
+    }
+
+    private class S3OutputStream extends StorageOutputStream {
+        private final String key;
+        private final Semaphore uploadSlots = new Semaphore(maxConcurrentUploads);
+        private final List<Future<String>> parts = new ArrayList<>();
+        private ExecutorService uploader;
+        private String uploadId;
+        private byte[] buffer;
+        private int count;
+        private boolean closed = false;
+        private boolean committed = false;
+
+        S3OutputStream(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (this.closed) {
+                throw new IOException("Stream to " + this.key + " is closed");
+            }
+            while (len > 0) {
+                if (this.buffer == null) {
+                    this.buffer = new byte[partSize];
+                }
+                int length = Math.min(len, partSize - this.count);
+                System.arraycopy(b, off, this.buffer, this.count, length);
+                this.count += length;
+                off += length;
+                len -= length;
+                if (this.count == partSize) {
+                    uploadPart();
+                }
+            }
+        }
+
+        /**
+         * Hands the current part to an upload thread, blocking if all upload slots are busy.
+         */
+        private void uploadPart() throws IOException {
+            if (this.uploadId == null) {
+                Document result = parseXml(send("POST", this.key, Map.of("uploads", ""), new byte[0], 0));
+                this.uploadId = textOf(result.getDocumentElement(), "UploadId");
+                this.uploader = Executors.newFixedThreadPool(maxConcurrentUploads, new NamedThreadFactory("SimpleBackup-Upload"));
+            }
+            if (this.parts.size() >= MAX_PARTS) {
+                throw new IOException("Backup is too large for " + MAX_PARTS + " parts of " + partSize + " bytes.  Increase partSizeInMB");
+            }
+            for (Future<String> part : this.parts) {
+                if (part.isDone()) {
+                    awaitPart(part);
+                }
+            }
+
+            try {
+                this.uploadSlots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to upload " + this.key);
+            }
+            byte[] data = this.buffer;
+            int length = this.count;
+            String partNumber = String.valueOf(this.parts.size() + 1);
+            Map<String, String> query = Map.of("partNumber", partNumber, "uploadId", this.uploadId);
+            this.buffer = null;
+            this.count = 0;
+            this.parts.add(this.uploader.submit(() -> {
+                try {
+                    return new String(send("PUT", this.key, query, data, length), StandardCharsets.UTF_8);
+                } finally {
+                    this.uploadSlots.release();
+                }
+            }));
+        }
+
+        private String awaitPart(Future<String> part) throws IOException {
+            try {
+                return part.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while uploading " + this.key);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            try {
+                if (this.uploadId == null) {
+                    send("PUT", this.key, Map.of(), this.buffer == null ? new byte[0] : this.buffer, this.count);
+                } else {
+                    if (this.count > 0) {
+                        uploadPart();
+                    }
+                    StringBuilder complete = new StringBuilder("<CompleteMultipartUpload>");
+                    for (int i = 0; i < this.parts.size(); i++) {
+                        complete.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                                .append(awaitPart(this.parts.get(i))).append("</ETag></Part>");
+                    }
+                    complete.append("</CompleteMultipartUpload>");
+                    byte[] body = complete.toString().getBytes(StandardCharsets.UTF_8);
+                    send("POST", this.key, Map.of("uploadId", this.uploadId), body, body.length);
+                    this.uploader.shutdown();
+                }
+                this.committed = true;
+                this.buffer = null;
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        @Override
+        public void abort() {
+            this.closed = true;
+            this.buffer = null;
+            if (this.committed || this.uploadId == null) {
+                return;
+            }
+            this.parts.forEach(part -> part.cancel(true));
+            this.uploader.shutdownNow();
+            try {
+                send("DELETE", this.key, Map.of("uploadId", this.uploadId), new byte[0], 0);
+            } catch (IOException e) {
+                log.error("Could not abort multipart upload for " + this.key + ".  Configure a lifecycle rule on the bucket to clean it up", e);
+            }
+            this.uploadId = null;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.spoorn.simplebackup.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Somewhere backups can be streamed to.  Backups are identified by their top level name, such as
+ * {@code 2022-05-04_05-04-13.zip} for archives or {@code 2022-05-04_05-04-13} for DIRECTORY backups, which hold
+ * files under {@code <name>/}.
+ */
+public interface StorageBackend {
+
+    /**
+     * Written last into DIRECTORY backups on backends without a local folder, where there is no folder to rename once
+     * done.  DIRECTORY backups without it are still being written, or failed, and aren't listed.
+     */
+    String COMPLETE_MARKER = ".simplebackup-complete";
+
+    /**
+     * @return Human readable location for logs
+     */
+    String getName();
+
+    /**
+     * @return Folder on the local filesystem, if this backend is backed by one
+     */
+    Optional<Path> getLocalFolder();
+
+    /**
+     * Opens a stream to write a file or object.  It only becomes visible under its name once the stream is closed
+     * successfully, and is discarded if {@link StorageOutputStream#abort()} is called instead.
+     *
+     * @param name Path of the file relative to the backend, with forward slashes
+     */
+    StorageOutputStream openWrite(String name) throws IOException;
+
+    /**
+     * @return Completed backups at the top level of this backend
+     */
+    List<BackupEntry> list() throws IOException;
+
+    /**
+     * Deletes a top level backup, including everything under it for DIRECTORY backups.
+     */
+    void delete(String name) throws IOException;
+
+    /**
+     * @param name Top level name of the backup
+     * @param createdMillis When the backup was created, used to find the oldest backups
+     */
+    record BackupEntry(String name, long createdMillis) {}
+}
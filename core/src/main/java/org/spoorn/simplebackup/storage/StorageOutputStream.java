@@ -0,0 +1,14 @@
+package org.spoorn.simplebackup.storage;
+
+import java.io.OutputStream;
+
+/**
+ * Output to a {@link StorageBackend}.  {@link #close()} commits the write, {@link #abort()} discards it.
+ */
+public abstract class StorageOutputStream extends OutputStream {
+
+    /**
+     * Discards everything written so far.  Safe to call after a failed {@link #close()}.
+     */
+    public abstract void abort();
+}
@@ -0,0 +1,248 @@
+package org.spoorn.simplebackup.util;
+
+import lombok.extern.log4j.Log4j2;
+import org.spoorn.simplebackup.config.BackupSettings;
+import org.spoorn.simplebackup.storage.LocalStorageBackend;
+import org.spoorn.simplebackup.storage.StorageBackend;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Decides whether a backup will fit on disk before any of it is written, so a full disk doesn't cost a whole backup's
+ * worth of I/O before failing.
+ *
+ * The size of the next backup is predicted from the current world size, how much the world has grown per backup and
+ * the compression ratio each format got in past backups.  Backups that retention would delete right after this one
+ * count as free space, and are deleted up front if that's what it takes to fit.  If the backup still doesn't fit, a
+ * format that has compressed smaller in the past can be used instead, otherwise the backup is refused.
+ */
+@Log4j2
+public class BackupSpacePlanner {
+
+    private static final String HISTORY_FILE = "backup-history.properties";
+    // Headroom for archive overhead and files growing during the backup
+    private static final double SAFETY_MARGIN = 1.05;
+
+    /**
+     * @param backupFormat Format to back up in, which may differ from the one asked for
+     * @param sourceBytes Size of the world when planned
+     * @param predictedBytes Expected size of the backup
+     * @param pruneFirst Oldest backups to delete before starting, as retention would delete them afterwards anyway
+     */
+    public record Plan(String backupFormat, long sourceBytes, long predictedBytes, List<String> pruneFirst) {}
+
+    /**
+     * Plans a full backup.
+     *
+     * @param allowCheaperFormat True to fall back to a format that has compressed smaller if this one doesn't fit
+     * @return Plan to follow, or empty if the backup can't fit and should not be started
+     */
+    public static Optional<Plan> plan(BackupSettings settings, Path source, String worldFolderName, Path backupFolder, String backupFormat,
+                                      int maxBackupsToKeep, boolean allowCheaperFormat) {
+        long sourceBytes;
+        try {
+            sourceBytes = SimpleBackupUtil.getDirectorySize(source);
+        } catch (IOException e) {
+            log.error("Could not plan disk space for backup of " + source + " to " + backupFolder, e);
+            return Optional.empty();
+        }
+        return plan(settings, sourceBytes, worldFolderName, backupFolder, backupFormat, maxBackupsToKeep, allowCheaperFormat);
+    }
+
+    /**
+     * Plans a full backup of a world whose size is already known.
+     *
+     * @param sourceBytes Size of the world
+     */
+    public static Optional<Plan> plan(BackupSettings settings, long sourceBytes, String worldFolderName, Path backupFolder, String backupFormat,
+                                      int maxBackupsToKeep, boolean allowCheaperFormat) {
+        try {
+            Properties history = loadHistory(settings);
+            double growth = Math.max(0, getDouble(history, worldFolderName + ".growth", 0));
+            long predictedSource = (long) (sourceBytes * (1 + growth));
+
+            List<String> formats = new ArrayList<>();
+            formats.add(backupFormat);
+            if (allowCheaperFormat) {
+                // Only formats we have seen compress before, smallest first
+                double ratio = getDouble(history, backupFormat + ".ratio", 1);
+                for (String format : List.of(SimpleBackupUtil.ZIP_FORMAT, SimpleBackupUtil.LZ4_FORMAT, SimpleBackupUtil.DIRECTORY_FORMAT)) {
+                    if (!format.equals(backupFormat) && history.containsKey(format + ".ratio") && getDouble(history, format + ".ratio", 1) < ratio) {
+                        formats.add(format);
+                    }
+                }
+                formats.subList(1, formats.size()).sort(Comparator.comparingDouble(format -> getDouble(history, format + ".ratio", 1)));
+            }
+
+            for (int i = 0; i < formats.size(); i++) {
+                String format = formats.get(i);
+                long predicted = (long) (predictedSource * getDouble(history, format + ".ratio", 1) * SAFETY_MARGIN);
+                Optional<Plan> plan = fit(settings, new Plan(format, sourceBytes, predicted, List.of()), backupFolder, maxBackupsToKeep, i == formats.size() - 1);
+                if (plan.isPresent()) {
+                    if (!format.equals(backupFormat)) {
+                        log.warn("Backup in format {} would not fit in {}.  Backing up as {} instead, which is predicted to be {} bytes",
+                                backupFormat, backupFolder, format, predicted);
+                    }
+                    return plan;
+                }
+            }
+            return Optional.empty();
+        } catch (IOException e) {
+            log.error("Could not plan disk space for backup of " + worldFolderName + " to " + backupFolder, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Plans an incremental backup, using the fraction of the world that changed between past backups.
+     */
+    public static Optional<Plan> planDelta(BackupSettings settings, Path source, String worldFolderName, Path backupFolder) {
+        try {
+            long sourceBytes = SimpleBackupUtil.getDirectorySize(source);
+            double changed = getDouble(loadHistory(settings), worldFolderName + ".deltaFraction", 1);
+            long predicted = (long) (sourceBytes * Math.min(1, changed) * SAFETY_MARGIN);
+            // Deltas and the backup they are based on are kept until merged into a full backup, so there's nothing to reclaim now
+            return fit(settings, new Plan(SimpleBackupUtil.DIRECTORY_FORMAT, sourceBytes, predicted, List.of()), backupFolder, Integer.MAX_VALUE, true);
+        } catch (IOException e) {
+            log.error("Could not plan disk space for incremental backup of " + source + " to " + backupFolder, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Deletes the backups a plan needs pruned before it starts.
+     *
+     * @return True if all of them were deleted
+     */
+    public static boolean pruneFirst(Plan plan, Path backupFolder) {
+        StorageBackend backend = new LocalStorageBackend(backupFolder);
+        for (String name : plan.pruneFirst()) {
+            try {
+                log.info("Deleting backup [{}] in [{}] before backing up to make space, as it would be deleted after the backup anyway", name, backupFolder);
+                backend.delete(name);
+            } catch (IOException e) {
+                log.error("Could not delete backup " + name + " to make space", e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the outcome of a successful full backup for future predictions.
+     */
+    public static synchronized void recordBackup(BackupSettings settings, String worldFolderName, String backupFormat, long sourceBytes, Path backup) {
+        if (sourceBytes <= 0) {
+            return;
+        }
+        Properties history = loadHistory(settings);
+        try {
+            long backupBytes = Files.isDirectory(backup) ? SimpleBackupUtil.getDirectorySize(backup) : Files.size(backup);
+            average(history, backupFormat + ".ratio", (double) backupBytes / sourceBytes);
+        } catch (IOException e) {
+            log.error("Could not read size of backup " + backup, e);
+        }
+
+        String lastSourceKey = worldFolderName + ".sourceBytes";
+        long lastSourceBytes = (long) getDouble(history, lastSourceKey, 0);
+        if (lastSourceBytes > 0) {
+            average(history, worldFolderName + ".growth", (double) (sourceBytes - lastSourceBytes) / lastSourceBytes);
+        }
+        history.setProperty(lastSourceKey, String.valueOf(sourceBytes));
+        saveHistory(settings, history);
+    }
+
+    /**
+     * Records the outcome of a successful incremental backup for future predictions.
+     */
+    public static synchronized void recordDelta(BackupSettings settings, String worldFolderName, long sourceBytes, Path delta) {
+        if (sourceBytes <= 0) {
+            return;
+        }
+        Properties history = loadHistory(settings);
+        try {
+            average(history, worldFolderName + ".deltaFraction", (double) SimpleBackupUtil.getDirectorySize(delta) / sourceBytes);
+            saveHistory(settings, history);
+        } catch (IOException e) {
+            log.error("Could not read size of incremental backup " + delta, e);
+        }
+    }
+
+    /**
+     * Checks a plan against the free space, counting the backups retention will delete after this one.
+     *
+     * @param logFailure True to log why the plan doesn't fit, false if there are other formats left to try
+     */
+    private static Optional<Plan> fit(BackupSettings settings, Plan plan, Path backupFolder, int maxBackupsToKeep, boolean logFailure) throws IOException {
+        Files.createDirectories(backupFolder);
+        FileStore store = Files.getFileStore(backupFolder);
+        long total = store.getTotalSpace();
+        long usable = store.getUsableSpace();
+
+        List<String> toPrune = new ArrayList<>();
+        long reclaimable = 0;
+        List<StorageBackend.BackupEntry> backups = new ArrayList<>(new LocalStorageBackend(backupFolder).list());
+        backups.sort(Comparator.comparingLong(StorageBackend.BackupEntry::createdMillis).thenComparing(StorageBackend.BackupEntry::name));
+        Set<String> pinned = SimpleBackupUtil.getPinnedBackups(backupFolder);
+        // This backup makes one more
+        int toDelete = backups.size() + 1 - maxBackupsToKeep;
+        for (int i = 0; i < backups.size() && toPrune.size() < toDelete; i++) {
+            String name = backups.get(i).name();
+            if (pinned.contains(name)) {
+                continue;
+            }
+            Path backup = backupFolder.resolve(name);
+            toPrune.add(name);
+            reclaimable += Files.isDirectory(backup) ? SimpleBackupUtil.getDirectorySize(backup) : Files.size(backup);
+        }
+
+        double availableDiskSpace = ((double) usable) / total * 100;
+        double availableAfterPruning = ((double) usable + reclaimable) / total * 100;
+        int requirement = settings.percentageAvailableDiskSpaceRequirement;
+        if (availableAfterPruning < requirement) {
+            if (logFailure) {
+                log.error(String.format("Not enough available disk space to create backup! Disk space available: %.2f%%, or %.2f%% after deleting " +
+                        "backups over maxBackupsToKeep.  Config's percentageAvailableDiskSpaceRequirement: %d", availableDiskSpace, availableAfterPruning, requirement));
+            }
+            return Optional.empty();
+        }
+        if (plan.predictedBytes() > usable + reclaimable) {
+            if (logFailure) {
+                log.error(String.format("%s backup is predicted to be %d bytes, but only %d bytes are available in %s, including %d bytes from " +
+                        "backups over maxBackupsToKeep.  Please clear out your disk space before generating another backup.",
+                        plan.backupFormat(), plan.predictedBytes(), usable + reclaimable, backupFolder, reclaimable));
+            }
+            return Optional.empty();
+        }
+        if (plan.predictedBytes() <= usable && availableDiskSpace >= requirement) {
+            return Optional.of(plan);
+        }
+        return Optional.of(new Plan(plan.backupFormat(), plan.sourceBytes(), plan.predictedBytes(), toPrune));
+    }
+
+    private static void average(Properties history, String key, double sample) {
+        history.setProperty(key, String.valueOf(SimpleBackupUtil.movingAverage(history, key, sample)));
+    }
+
+    private static double getDouble(Properties history, String key, double defaultValue) {
+        return SimpleBackupUtil.getDouble(history, key, defaultValue);
+    }
+
+    private static Properties loadHistory(BackupSettings settings) {
+        return SimpleBackupUtil.loadMetadataProperties(settings.backupPath, HISTORY_FILE);
+    }
+
+    private static void saveHistory(BackupSettings settings, Properties history) {
+        SimpleBackupUtil.saveMetadataProperties(settings.backupPath, HISTORY_FILE, history,
+                "Compression ratios per format, and growth and change rates per world, from past backups");
+    }
+}
@@ -0,0 +1,309 @@
+package org.spoorn.simplebackup.util;
+
+import lombok.extern.log4j.Log4j2;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import org.spoorn.simplebackup.config.BackupSettings;
+import org.spoorn.simplebackup.io.BufferPool;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.Properties;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/**
+ * Picks the compression level, thread count and buffer size of backups so they finish within
+ * {@link BackupSettings#autotuneTimeBudgetInSeconds} without taking more CPU than the host can spare.
+ *
+ * {@link #calibrate} compresses a sample of the world in memory at each candidate level and records how fast and how
+ * small each level was on this host.  Before each backup, {@link #tune} picks the level that compresses smallest among
+ * those predicted to finish within the budget, using the threads the CPU can spare right now.  After each backup,
+ * {@link #recordBackup} compares how long it actually took with the prediction, so later predictions account for the
+ * disks and everything else calibration doesn't see.
+ */
+@Log4j2
+public class CompressionTuner {
+
+    private static final String CALIBRATION_FILE = "compression-calibration.properties";
+    private static final long SAMPLE_BYTES = 16 * 1024 * 1024;
+    private static final int SAMPLE_CHUNK_SIZE = 1024 * 1024;
+    private static final int[] ZIP_LEVELS = {1, 3, 5, 7, 9};
+    // 0 is LZ4's fast compressor, the rest levels of its high compressor
+    private static final int[] LZ4_LEVELS = {0, 3, 6, 9};
+    // Tar-lz4-java reads a slice of the world per thread, so spinning disks want fewer, bigger reads
+    private static final int SSD_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Measures each candidate level on a sample of the world, spread over its files by size.  Takes a few seconds of a
+     * single thread, so run it off the server thread.
+     */
+    public static synchronized void calibrate(BackupSettings settings, Path source) throws IOException {
+        List<byte[]> sample = readSample(source);
+        long sampleBytes = sample.stream().mapToLong(chunk -> chunk.length).sum();
+        if (sampleBytes == 0) {
+            log.info("World [{}] is empty, skipping compression calibration", source);
+            return;
+        }
+
+        // Keep corrections learned from past backups, they still apply
+        Properties calibration = loadCalibration(settings);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] deflated = new byte[SAMPLE_CHUNK_SIZE * 2];
+        try {
+            for (int level : ZIP_LEVELS) {
+                deflater.setLevel(level);
+                measure(calibration, SimpleBackupUtil.ZIP_FORMAT, level, sample, sampleBytes, chunk -> {
+                    deflater.reset();
+                    deflater.setInput(chunk);
+                    deflater.finish();
+                    int length = 0;
+                    while (!deflater.finished()) {
+                        length += deflater.deflate(deflated);
+                    }
+                    return length;
+                });
+            }
+        } finally {
+            deflater.end();
+        }
+
+        LZ4Factory factory = LZ4Factory.fastestInstance();
+        for (int level : LZ4_LEVELS) {
+            LZ4Compressor compressor = level > 0 ? factory.highCompressor(level) : factory.fastCompressor();
+            byte[] compressed = new byte[compressor.maxCompressedLength(SAMPLE_CHUNK_SIZE)];
+            measure(calibration, SimpleBackupUtil.LZ4_FORMAT, level, sample, sampleBytes,
+                    chunk -> compressor.compress(chunk, 0, chunk.length, compressed, 0, compressed.length));
+        }
+
+        calibration.setProperty("calibratedMillis", String.valueOf(System.currentTimeMillis()));
+        saveCalibration(settings, calibration);
+        log.info("Calibrated compression levels on {} bytes of world [{}]", sampleBytes, source);
+    }
+
+    /**
+     * @return Epoch millis of the last calibration, if there was one
+     */
+    public static OptionalLong getCalibrationTime(BackupSettings settings) {
+        long calibrated = (long) getDouble(loadCalibration(settings), "calibratedMillis", 0);
+        return calibrated > 0 ? OptionalLong.of(calibrated) : OptionalLong.empty();
+    }
+
+    /**
+     * Sets the thread count, buffer size and compression level of the settings for the next backup.  Leaves the
+     * compression level alone if it was never calibrated.
+     *
+     * @param sourceBytes Size of the world to back up
+     */
+    public static synchronized void tune(BackupSettings settings, Path source, String backupFormat, long sourceBytes) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        double headroom = getCpuHeadroom();
+        double share = Math.min(Math.max(1, settings.autotuneMaxCpuPercent) / 100.0, headroom);
+        settings.numThreads = Math.max(1, Math.min(cores, (int) (cores * share)));
+
+        boolean rotational = StorageUtil.isRotational(source, settings.sourceStorageType)
+                || StorageUtil.isRotational(settings.backupPath, settings.backupStorageType);
+        settings.multiThreadBufferSize = rotational ? BufferPool.MAX_BUFFER_SIZE : SSD_BUFFER_SIZE;
+
+        Properties calibration = loadCalibration(settings);
+        int[] levels = getLevels(backupFormat);
+        if (levels.length == 0 || !calibration.containsKey(key(backupFormat, levels[0], "bytesPerSecond"))) {
+            log.info("Autotuned {} backup to {} threads with {} byte buffers, at {}% free CPU", backupFormat,
+                    settings.numThreads, settings.multiThreadBufferSize, Math.round(headroom * 100));
+            return;
+        }
+
+        long budgetMillis = settings.autotuneTimeBudgetInSeconds * 1000L;
+        int best = -1;
+        int fastest = -1;
+        double bestRatio = Double.MAX_VALUE;
+        double fastestRate = 0;
+        for (int level : levels) {
+            double rate = predictRate(calibration, backupFormat, level, settings.numThreads, rotational);
+            double ratio = getDouble(calibration, key(backupFormat, level, "ratio"), 1);
+            if (rate > fastestRate) {
+                fastest = level;
+                fastestRate = rate;
+            }
+            // Levels that compress about the same aren't worth being slower for
+            if (rate > 0 && sourceBytes * 1000 / rate <= budgetMillis && ratio < bestRatio - 0.005) {
+                best = level;
+                bestRatio = ratio;
+            }
+        }
+        int level = best >= 0 ? best : fastest;
+        if (best < 0) {
+            log.warn("No compression level is predicted to back up {} bytes within {} s, using the fastest", sourceBytes, settings.autotuneTimeBudgetInSeconds);
+        }
+        if (SimpleBackupUtil.ZIP_FORMAT.equals(backupFormat)) {
+            settings.zipCompressionLevel = level;
+        } else {
+            settings.lz4CompressionLevel = level;
+        }
+        double rate = predictRate(calibration, backupFormat, level, settings.numThreads, rotational);
+        log.info("Autotuned {} backup to level {} with {} threads and {} byte buffers, at {}% free CPU.  Predicted to take {} s of the {} s budget",
+                backupFormat, level, settings.numThreads, settings.multiThreadBufferSize, Math.round(headroom * 100),
+                rate > 0 ? Math.round(sourceBytes / rate) : "?", settings.autotuneTimeBudgetInSeconds);
+    }
+
+    /**
+     * Corrects the calibrated speed of a format with how long a backup made with the settings from {@link #tune}
+     * actually took.
+     */
+    public static synchronized void recordBackup(BackupSettings settings, Path source, String backupFormat, long sourceBytes, long elapsedMillis) {
+        int[] levels = getLevels(backupFormat);
+        // Too short to tell anything apart from noise
+        if (levels.length == 0 || sourceBytes <= 0 || elapsedMillis < 1000) {
+            return;
+        }
+        Properties calibration = loadCalibration(settings);
+        int level = SimpleBackupUtil.ZIP_FORMAT.equals(backupFormat) ? settings.zipCompressionLevel : settings.lz4CompressionLevel;
+        if (!calibration.containsKey(key(backupFormat, level, "bytesPerSecond"))) {
+            return;
+        }
+
+        boolean rotational = StorageUtil.isRotational(source, settings.sourceStorageType)
+                || StorageUtil.isRotational(settings.backupPath, settings.backupStorageType);
+        double predicted = predictRate(calibration, backupFormat, level, settings.numThreads, rotational);
+        String factorKey = backupFormat + ".speedFactor";
+        double factor = getDouble(calibration, factorKey, 1);
+        // How far off the uncorrected prediction was
+        double sample = sourceBytes * 1000.0 / elapsedMillis / (predicted / factor);
+        factor = SimpleBackupUtil.movingAverage(calibration, factorKey, sample);
+        calibration.setProperty(factorKey, String.valueOf(Math.max(0.01, Math.min(10, factor))));
+        saveCalibration(settings, calibration);
+    }
+
+    /**
+     * @return Bytes of the world per second a backup is predicted to go through
+     */
+    private static double predictRate(Properties calibration, String backupFormat, int level, int numThreads, boolean rotational) {
+        double rate = getDouble(calibration, key(backupFormat, level, "bytesPerSecond"), 0);
+        // Only tar-lz4-java's fast compressor splits the work between threads, zip4j and LZ4's high compressor stream
+        // on a single one
+        int parallelism = SimpleBackupUtil.LZ4_FORMAT.equals(backupFormat) && level == 0 && !rotational ? numThreads : 1;
+        return rate * parallelism * getDouble(calibration, backupFormat + ".speedFactor", 1);
+    }
+
+    private static void measure(Properties calibration, String format, int level, List<byte[]> sample, long sampleBytes,
+                                ToIntFunction<byte[]> compressor) {
+        // Warm up so the JIT doesn't count against the first levels
+        for (int i = 0; i < Math.min(4, sample.size()); i++) {
+            compressor.applyAsInt(sample.get(i));
+        }
+        long compressedBytes = 0;
+        long start = System.nanoTime();
+        for (byte[] chunk : sample) {
+            compressedBytes += compressor.applyAsInt(chunk);
+        }
+        long elapsedNanos = Math.max(1, System.nanoTime() - start);
+        calibration.setProperty(key(format, level, "bytesPerSecond"), String.valueOf(sampleBytes * 1e9 / elapsedNanos));
+        calibration.setProperty(key(format, level, "ratio"), String.valueOf((double) compressedBytes / sampleBytes));
+    }
+
+    /**
+     * Systematic sample proportional to file size, so big region files count as much as they weigh in the backup.
+     */
+    private static List<byte[]> readSample(Path source) throws IOException {
+        List<Path> files = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        long totalBytes = 0;
+        try (Stream<Path> walk = Files.walk(source)) {
+            for (Path file : (Iterable<Path>) walk::iterator) {
+                if (Files.isRegularFile(file) && !SimpleBackupUtil.FILES_TO_SKIP_COPY.contains(file.getFileName().toString())) {
+                    long size = Files.size(file);
+                    files.add(file);
+                    sizes.add(size);
+                    totalBytes += size;
+                }
+            }
+        }
+
+        List<byte[]> sample = new ArrayList<>();
+        long stride = Math.max(SAMPLE_CHUNK_SIZE, totalBytes / (SAMPLE_BYTES / SAMPLE_CHUNK_SIZE));
+        long next = 0;
+        long offset = 0;
+        for (int i = 0; i < files.size(); i++) {
+            long size = sizes.get(i);
+            long end = offset + size;
+            if (next < end) {
+                try (FileChannel in = FileChannel.open(files.get(i), StandardOpenOption.READ)) {
+                    while (next < end) {
+                        long position = next - offset;
+                        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(SAMPLE_CHUNK_SIZE, size - position));
+                        int read;
+                        do {
+                            read = in.read(chunk, position + chunk.position());
+                        } while (read >= 0 && chunk.hasRemaining());
+                        if (chunk.position() > 0) {
+                            byte[] bytes = new byte[chunk.position()];
+                            chunk.flip().get(bytes);
+                            sample.add(bytes);
+                        }
+                        next += stride;
+                    }
+                } catch (IOException e) {
+                    // Files can vanish while the world is running, the sample doesn't need every one
+                    log.debug("Could not sample " + files.get(i), e);
+                    next = Math.max(next, end);
+                }
+            }
+            offset = end;
+        }
+        return sample;
+    }
+
+    /**
+     * @return Fraction of the host's CPU not in use, averaged since this was last asked if the JVM can tell
+     */
+    private static double getCpuHeadroom() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean sunOs) {
+            double load = sunOs.getCpuLoad();
+            if (load >= 0 && !Double.isNaN(load)) {
+                return Math.max(0, 1 - load);
+            }
+        }
+        double loadAverage = os.getSystemLoadAverage();
+        if (loadAverage >= 0) {
+            return Math.max(0, 1 - loadAverage / os.getAvailableProcessors());
+        }
+        return 1;
+    }
+
+    private static int[] getLevels(String backupFormat) {
+        if (SimpleBackupUtil.ZIP_FORMAT.equals(backupFormat)) {
+            return ZIP_LEVELS;
+        } else if (SimpleBackupUtil.LZ4_FORMAT.equals(backupFormat)) {
+            return LZ4_LEVELS;
+        }
+        return new int[0];
+    }
+
+    private static String key(String format, int level, String name) {
+        return format + "." + level + "." + name;
+    }
+
+    private static double getDouble(Properties calibration, String key, double defaultValue) {
+        return SimpleBackupUtil.getDouble(calibration, key, defaultValue);
+    }
+
+    private static Properties loadCalibration(BackupSettings settings) {
+        return SimpleBackupUtil.loadMetadataProperties(settings.backupPath, CALIBRATION_FILE);
+    }
+
+    private static void saveCalibration(BackupSettings settings, Properties calibration) {
+        SimpleBackupUtil.saveMetadataProperties(settings.backupPath, CALIBRATION_FILE, calibration,
+                "Compression speed and ratio per format and level on this host, and corrections from past backups");
+    }
+}
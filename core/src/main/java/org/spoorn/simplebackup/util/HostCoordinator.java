@@ -0,0 +1,344 @@
+package org.spoorn.simplebackup.util;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * Coordinates backups between every server on a host through files in a shared folder, so backups from many JVMs
+ * don't all hit the same disks at once.
+ *
+ * At most maxConcurrentBackups backups run at a time.  Each holds a lock on one of the {@code slot-<n>.lease} files,
+ * which also records who holds it.  The OS drops the lock if the process dies, so a crashed server never keeps its
+ * slot.  Backups waiting for a slot hold a lock on a ticket in the {@code queue} folder and get in oldest ticket first.
+ * Scheduled backups first wait a random jitter, so servers started together spread out instead of backing up at the
+ * same moment every interval.
+ *
+ * Bytes read by backups are limited host-wide by a token bucket in {@code bandwidth.bucket}, which every process
+ * updates under a file lock.  Tokens are borrowed from it in batches and handed out from a local allowance, so the
+ * file is locked every 100 ms of bandwidth or so rather than for every buffer read.
+ *
+ * File locks belong to the whole JVM, so they can't tell its threads apart, and closing any channel to a locked file
+ * may release them.  Files are only touched under one JVM-wide lock, and files this JVM holds are never reopened.
+ */
+@Log4j2
+public class HostCoordinator {
+
+    private static final String SLOT_PREFIX = "slot-";
+    private static final String SLOT_EXTENSION = ".lease";
+    private static final String QUEUE_FOLDER = "queue";
+    private static final String TICKET_EXTENSION = ".ticket";
+    private static final String BUCKET_FILE = "bandwidth.bucket";
+    // Smallest batch of tokens borrowed from the bucket at once, in bytes and in time worth of bandwidth
+    private static final long MIN_BORROW_BYTES = 1024 * 1024;
+    private static final long MIN_BORROW_MILLIS = 100;
+    private static final long POLL_INTERVAL_MILLIS = 2000;
+    private static final long LOG_WAITING_INTERVAL_MILLIS = 60 * 1000;
+    // Unlocked tickets younger than this may be about to be locked by whoever is creating them
+    private static final long STALE_TICKET_MILLIS = 10 * 1000;
+    // Lock a byte past the end of each file, so leases stay readable where locks are mandatory, i.e. Windows
+    private static final long LOCK_POSITION = Long.MAX_VALUE - 1;
+    private static final Object JVM_LOCK = new Object();
+    // Slots and tickets locked by this JVM
+    private static final Set<Path> HELD = new HashSet<>();
+
+    private final Path folder;
+    private final int maxConcurrentBackups;
+    private final long bytesPerSecond;
+    private final int startJitterInSeconds;
+    private final Object bandwidthLock = new Object();
+    // Tokens borrowed from the bucket but not used yet, and when the bucket will have paid for them
+    private long allowance;
+    private long allowanceReadyMillis;
+
+    /**
+     * @param folder Folder shared by every server on the host
+     * @param maxConcurrentBackups Backups that may run at the same time host-wide
+     * @param bytesPerSecond Bytes backups may read per second host-wide, or 0 for no limit
+     * @param startJitterInSeconds Most seconds to randomly delay each backup by
+     */
+    public HostCoordinator(Path folder, int maxConcurrentBackups, long bytesPerSecond, int startJitterInSeconds) {
+        this.folder = folder;
+        this.maxConcurrentBackups = Math.max(1, maxConcurrentBackups);
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.startJitterInSeconds = Math.max(0, startJitterInSeconds);
+    }
+
+    public boolean isBandwidthLimited() {
+        return this.bytesPerSecond > 0;
+    }
+
+    /**
+     * Waits a random jitter, then for a free slot, oldest waiting backup first.
+     *
+     * @param owner Who the slot is for, recorded in its lease for other servers' logs
+     * @return Slot to close once the backup is done
+     */
+    public Slot acquireSlot(String owner) throws IOException, InterruptedException {
+        return acquireSlot(owner, true, 0);
+    }
+
+    /**
+     * Waits for a free slot, oldest waiting backup first.
+     *
+     * @param owner Who the slot is for, recorded in its lease for other servers' logs
+     * @param jitter True to first wait a random jitter, for scheduled backups.  Backups someone is waiting on skip it
+     * @param maxWaitMillis Most time to wait for a slot, or 0 to wait as long as it takes
+     * @return Slot to close once the backup is done, or null if there was none within maxWaitMillis
+     */
+    public Slot acquireSlot(String owner, boolean jitter, long maxWaitMillis) throws IOException, InterruptedException {
+        Path queue = this.folder.resolve(QUEUE_FOLDER);
+        Files.createDirectories(queue);
+        if (jitter && this.startJitterInSeconds > 0) {
+            long jitterMillis = ThreadLocalRandom.current().nextLong(this.startJitterInSeconds * 1000L);
+            log.info("Waiting {} ms before backing up {}, to spread out backups of the servers on this host", jitterMillis, owner);
+            Thread.sleep(jitterMillis);
+        }
+
+        String lease = owner + " (pid " + ProcessHandle.current().pid() + ") since " + Instant.now();
+        long waitStart = System.currentTimeMillis();
+        long lastLogMillis = 0;
+        Ticket ticket = takeTicket(queue);
+        try {
+            while (true) {
+                Slot slot;
+                int ahead;
+                List<String> leases;
+                synchronized (JVM_LOCK) {
+                    ahead = countTicketsAhead(queue, ticket.path());
+                    slot = ahead < this.maxConcurrentBackups ? tryAcquireSlot(lease) : null;
+                    leases = slot == null && System.currentTimeMillis() - lastLogMillis >= LOG_WAITING_INTERVAL_MILLIS ? readLeases() : null;
+                }
+                if (slot != null) {
+                    if (lastLogMillis > 0) {
+                        log.info("Backup of {} got its turn on the host after waiting {} s", owner, (System.currentTimeMillis() - waitStart) / 1000);
+                    }
+                    return slot;
+                }
+                long waitedMillis = System.currentTimeMillis() - waitStart;
+                if (maxWaitMillis > 0 && waitedMillis >= maxWaitMillis) {
+                    log.warn("Backup of {} got no turn on the host within {} s, with {} backups queued ahead", owner, waitedMillis / 1000, ahead);
+                    return null;
+                }
+                if (leases != null) {
+                    log.info("Backup of {} is waiting for one of {} backup slots on the host, with {} backups queued ahead.  Running: {}",
+                            owner, this.maxConcurrentBackups, ahead, leases);
+                    lastLogMillis = System.currentTimeMillis();
+                }
+                long sleepMillis = POLL_INTERVAL_MILLIS + ThreadLocalRandom.current().nextLong(POLL_INTERVAL_MILLIS / 2);
+                Thread.sleep(maxWaitMillis > 0 ? Math.max(1, Math.min(sleepMillis, maxWaitMillis - waitedMillis)) : sleepMillis);
+            }
+        } finally {
+            release(ticket.path(), ticket.channel(), true);
+        }
+    }
+
+    /**
+     * Takes bytes from the host-wide bandwidth budget, and sleeps until the budget allows them.  Bytes are taken up
+     * front and paid back over time, so requests larger than the bucket work too.
+     */
+    public void acquireBandwidth(long bytes) throws IOException, InterruptedException {
+        if (this.bytesPerSecond <= 0 || bytes <= 0) {
+            return;
+        }
+        long readyMillis;
+        synchronized (this.bandwidthLock) {
+            if (this.allowance < bytes) {
+                long borrow = Math.max(bytes - this.allowance, Math.max(MIN_BORROW_BYTES, this.bytesPerSecond * MIN_BORROW_MILLIS / 1000));
+                long waitMillis = borrowTokens(borrow);
+                this.allowance += borrow;
+                this.allowanceReadyMillis = System.currentTimeMillis() + waitMillis;
+            }
+            this.allowance -= bytes;
+            readyMillis = this.allowanceReadyMillis;
+        }
+        long waitMillis = readyMillis - System.currentTimeMillis();
+        if (waitMillis > 0) {
+            Thread.sleep(waitMillis);
+        }
+    }
+
+    /**
+     * @return Milliseconds until the bucket has paid for the tokens
+     */
+    private long borrowTokens(long bytes) throws IOException {
+        synchronized (JVM_LOCK) {
+            Files.createDirectories(this.folder);
+            // Closing the channel releases the lock
+            try (FileChannel channel = FileChannel.open(this.folder.resolve(BUCKET_FILE), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                channel.lock(LOCK_POSITION, 1, false);
+                long now = System.currentTimeMillis();
+                // Full bucket on first use, which holds one second of bandwidth
+                long tokens = this.bytesPerSecond;
+                ByteBuffer state = ByteBuffer.allocate(2 * Long.BYTES);
+                if (channel.read(state, 0) == state.capacity()) {
+                    // Not capped, so a bucket in debt from a large borrow is paid back for all the time since
+                    long elapsed = Math.max(0, now - state.getLong(Long.BYTES));
+                    long previous = state.getLong(0);
+                    long refill = elapsed > Long.MAX_VALUE / this.bytesPerSecond ? Long.MAX_VALUE : elapsed * this.bytesPerSecond / 1000;
+                    tokens = previous + Math.min(refill, this.bytesPerSecond - previous);
+                }
+                tokens -= bytes;
+                state.clear();
+                state.putLong(tokens).putLong(now).flip();
+                channel.write(state, 0);
+                return tokens < 0 ? -tokens * 1000 / this.bytesPerSecond : 0;
+            }
+        }
+    }
+
+    private Ticket takeTicket(Path queue) throws IOException {
+        synchronized (JVM_LOCK) {
+            // Names sort by creation time
+            Path path = queue.resolve(String.format("%013d-%d-%08x%s", System.currentTimeMillis(), ProcessHandle.current().pid(),
+                    ThreadLocalRandom.current().nextInt(), TICKET_EXTENSION));
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            channel.lock(LOCK_POSITION, 1, false);
+            HELD.add(path);
+            return new Ticket(path, channel);
+        }
+    }
+
+    /**
+     * @return Number of live tickets older than ours.  Tickets of processes that died are deleted
+     */
+    private static int countTicketsAhead(Path queue, Path ticket) throws IOException {
+        List<Path> tickets;
+        try (Stream<Path> list = Files.list(queue)) {
+            tickets = list.filter(path -> path.getFileName().toString().endsWith(TICKET_EXTENSION)).sorted().toList();
+        }
+        int ahead = 0;
+        for (Path other : tickets) {
+            if (other.equals(ticket)) {
+                break;
+            }
+            if (HELD.contains(other) || isLocked(other)) {
+                ahead++;
+            } else {
+                try {
+                    if (System.currentTimeMillis() - Files.getLastModifiedTime(other).toMillis() < STALE_TICKET_MILLIS) {
+                        ahead++;
+                    } else {
+                        Files.deleteIfExists(other);
+                    }
+                } catch (NoSuchFileException e) {
+                    // Its backup just got a slot
+                }
+            }
+        }
+        return ahead;
+    }
+
+    private Slot tryAcquireSlot(String lease) throws IOException {
+        for (int i = 0; i < this.maxConcurrentBackups; i++) {
+            Path path = this.folder.resolve(SLOT_PREFIX + i + SLOT_EXTENSION);
+            if (HELD.contains(path)) {
+                continue;
+            }
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                if (channel.tryLock(LOCK_POSITION, 1, false) == null) {
+                    channel.close();
+                    continue;
+                }
+                channel.truncate(0);
+                channel.write(ByteBuffer.wrap(lease.getBytes(StandardCharsets.UTF_8)), 0);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            HELD.add(path);
+            return new Slot(path, channel);
+        }
+        return null;
+    }
+
+    /**
+     * @return Who holds each slot held by other processes
+     */
+    private List<String> readLeases() throws IOException {
+        List<String> leases = new ArrayList<>();
+        for (int i = 0; i < this.maxConcurrentBackups; i++) {
+            Path path = this.folder.resolve(SLOT_PREFIX + i + SLOT_EXTENSION);
+            if (HELD.contains(path)) {
+                leases.add("this server");
+            } else if (isLocked(path)) {
+                leases.add(Files.readString(path, StandardCharsets.UTF_8));
+            }
+        }
+        return leases;
+    }
+
+    /**
+     * @return True if another process holds a lock on the file
+     */
+    private static boolean isLocked(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock(LOCK_POSITION, 1, false);
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            return false;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return true;
+        }
+    }
+
+    private static void release(Path path, FileChannel channel, boolean delete) {
+        synchronized (JVM_LOCK) {
+            // Closing the channel releases the lock
+            try (channel) {
+                if (delete) {
+                    Files.deleteIfExists(path);
+                } else {
+                    channel.truncate(0);
+                }
+            } catch (IOException e) {
+                log.error("Could not release " + path, e);
+            } finally {
+                HELD.remove(path);
+            }
+        }
+    }
+
+    private record Ticket(Path path, FileChannel channel) {}
+
+    /**
+     * A backup's turn on the host.  Close it once the backup is done.
+     */
+    public static class Slot implements AutoCloseable {
+
+        private final Path path;
+        private final FileChannel channel;
+
+        private Slot(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+
+        @Override
+        public void close() {
+            release(this.path, this.channel, false);
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package org.spoorn.simplebackup.util;
+
+import lombok.extern.log4j.Log4j2;
+import org.spoorn.simplebackup.storage.LocalStorageBackend;
+import org.spoorn.simplebackup.storage.StorageBackend;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+@Log4j2
+public class SimpleBackupUtil {
+    
+    public static final String ZIP_FORMAT = "ZIP";
+    public static final String DIRECTORY_FORMAT = "DIRECTORY";
+    public static final String LZ4_FORMAT = "LZ4";
+    public static final String FULL_MODE = "FULL";
+    public static final String INCREMENTAL_MODE = "INCREMENTAL";
+    public static final String LOCAL_STORAGE = "LOCAL";
+    public static final String S3_STORAGE = "S3";
+    public static final String PARTIAL_EXTENSION = ".partial";
+    public static final String CHECKPOINT_EXTENSION = ".checkpoint";
+    // Folder a backup to several destinations is written to before it's renamed, which is never resumed
+    public static final String STAGING_EXTENSION = ".staging";
+    public static final Set<String> FILES_TO_SKIP_COPY = Set.of(
+            "session.lock"
+    );
+    public static final String DELTA_SUFFIX = "-delta";
+    public static final String DELTA_MANIFEST = "delta-manifest.txt";
+    // Manifest line with the time string of the backup a delta is based on
+    public static final String DELTA_BASE_PREFIX = "#base=";
+    // Backups are named after the time they were started, i.e. 2022-05-04_05-04-13
+    public static final DateTimeFormatter BACKUP_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+    // Hidden folder in the backup path for state that isn't a backup itself
+    public static final String METADATA_FOLDER = ".simplebackup";
+    // Weight of the newest sample in the moving averages kept in the metadata folder
+    public static final double SMOOTHING = 0.3;
+    
+    public static void createDirectoryFailSafe(Path path) {
+        try {
+            Files.createDirectories(path);
+        } catch (IOException e) {
+            log.error(String.format("Failed to create %s folder", path), e);
+        }
+    }
+    
+    /**
+     * @return Hidden folder in a backup folder for state that isn't a backup itself
+     */
+    public static Path getMetadataPath(Path backupFolder) {
+        return backupFolder.resolve(METADATA_FOLDER);
+    }
+
+    /**
+     * @return Properties file in a backup folder's metadata folder, or empty properties if it doesn't exist or can't be read
+     */
+    public static Properties loadMetadataProperties(Path backupFolder, String fileName) {
+        Path file = getMetadataPath(backupFolder).resolve(fileName);
+        Properties properties = new Properties();
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file)) {
+                properties.load(reader);
+            } catch (Exception e) {
+                log.error("Could not read " + file, e);
+            }
+        }
+        return properties;
+    }
+    
+    /**
+     * Saves a properties file in a backup folder's metadata folder through a temporary file, so a crash never leaves it
+     * half written.
+     */
+    public static void saveMetadataProperties(Path backupFolder, String fileName, Properties properties, String comment) {
+        Path folder = getMetadataPath(backupFolder);
+        Path file = folder.resolve(fileName);
+        Path tmp = folder.resolve(fileName + ".tmp");
+        try {
+            Files.createDirectories(folder);
+            try (Writer writer = Files.newBufferedWriter(tmp)) {
+                properties.store(writer, comment);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Could not save " + file, e);
+        }
+    }
+    
+    /**
+     * @return Value of the property, or the default if it's missing or not a number
+     */
+    public static double getDouble(Properties properties, String key, double defaultValue) {
+        try {
+            String value = properties.getProperty(key);
+            return value != null ? Double.parseDouble(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * @return Moving average of the property with a new sample, weighted by {@link #SMOOTHING}, or the sample if the
+     *      property has no value yet
+     */
+    public static double movingAverage(Properties properties, String key, double sample) {
+        return properties.containsKey(key) ? SMOOTHING * sample + (1 - SMOOTHING) * getDouble(properties, key, sample) : sample;
+    }
+    
+    /**
+     * @return When a backup was started, from its name
+     */
+    public static OptionalLong getBackupTime(String backupName) {
+        if (backupName.length() < 19) {
+            return OptionalLong.empty();
+        }
+        try {
+            return OptionalLong.of(LocalDateTime.parse(backupName.substring(0, 19), BACKUP_TIME_FORMAT)
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        } catch (DateTimeParseException e) {
+            return OptionalLong.empty();
+        }
+    }
+    
+    /**
+     * @return Time in {@link #BACKUP_TIME_FORMAT}, the inverse of {@link #getBackupTime}
+     */
+    public static String formatBackupTime(long millis) {
+        return BACKUP_TIME_FORMAT.format(Instant.ofEpochMilli(millis).atZone(ZoneId.systemDefault()));
+    }
+    
+    /**
+     * @return Number of files under the path that backups copy, so not counting {@link #FILES_TO_SKIP_COPY}
+     */
+    public static long fileCount(Path path) throws IOException {
+        try (Stream<Path> walk = Files.walk(path)) {
+            return walk.filter(p -> !p.toFile().isDirectory() && !FILES_TO_SKIP_COPY.contains(p.getFileName().toString()))
+                    .count();
+        }
+    }
+    
+    public static long getDirectorySize(Path path) throws IOException {
+        AtomicLong size = new AtomicLong();
+
+        // Ignores failed files, should be fine for our use case
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                size.addAndGet(attrs.size());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        
+        return size.get();
+    }
+
+    /**
+     * Scans through a directory and finds the file count intervals, meaning the file number while walking through the
+     * path, that split all the files evenly by size.  For balancing multi-threaded processing of a directory recursively. 
+     * 
+     * @param path Path to process
+     * @param numIntervals Number of intervals
+     * @return long[] that holds the file number indexes to split at
+     * @throws IOException If processing files fail
+     */
+    public static long[] getFileCountIntervalsFromSize(Path path, int numIntervals) throws IOException {
+        long[] res = new long[numIntervals];
+        // index of res, file count, current size, previous size
+        long[] state = {1, 0, 0, 0};
+        long sliceLength = getDirectorySize(path) / numIntervals;
+        
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (state[0] < res.length) {
+                    state[2] += attrs.size();
+                    if (state[3] / sliceLength < state[2] / sliceLength) {
+                        res[(int) state[0]] = state[1];
+                        state[0]++;
+                    }
+                    state[3] = state[2];
+                    state[1]++;
+                    return FileVisitResult.CONTINUE;
+                } else {
+                    return FileVisitResult.TERMINATE;   
+                }
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                state[1]++;
+                return super.visitFileFailed(file, exc);
+            }
+        });
+        return res;
+    }
+    
+    /**
+     * Deletes the oldest backups over maxBackupsTokeep, except those incremental backups still need, see
+     * {@link #getPinnedBackups}.
+     */
+    public static boolean deleteStaleBackupFiles(Path backupFolder, int maxBackupsTokeep) {
+        return deleteStaleBackupFiles(new LocalStorageBackend(backupFolder), maxBackupsTokeep, getPinnedBackups(backupFolder));
+    }
+    
+    public static boolean deleteStaleBackupFiles(StorageBackend backend, int maxBackupsTokeep) {
+        return deleteStaleBackupFiles(backend, maxBackupsTokeep, Set.of());
+    }
+    
+    /**
+     * @param pinned Backups to keep regardless of age.  They still count towards maxBackupsTokeep
+     */
+    public static boolean deleteStaleBackupFiles(StorageBackend backend, int maxBackupsTokeep, Set<String> pinned) {
+        List<StorageBackend.BackupEntry> backups;
+        try {
+            backups = new ArrayList<>(backend.list());
+        } catch (IOException e) {
+            log.error("Error while listing backups in " + backend.getName(), e);
+            return false;
+        }
+        
+        backups.sort(Comparator.comparingLong(StorageBackend.BackupEntry::createdMillis).thenComparing(StorageBackend.BackupEntry::name));
+        int numBackupFiles = backups.size();
+        for (int i = 0; i < backups.size() && numBackupFiles > maxBackupsTokeep; i++) {
+            String toDelete = backups.get(i).name();
+            if (pinned.contains(toDelete)) {
+                continue;
+            }
+            try {
+                log.info("Deleting backup [{}] in [{}] as we have more backups than maxBackupsToKeep={}", toDelete, backend.getName(), maxBackupsTokeep);
+                backend.delete(toDelete);
+                numBackupFiles--;
+            } catch (Exception e) {
+                log.error("Could not check if number of backup files exceeds the maxBackupsToKeep", e);
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return Backups that incremental backups not yet merged into full backups depend on: the deltas themselves, and
+     *      the backups they were taken against.  Retention must not delete these
+     */
+    public static Set<String> getPinnedBackups(Path backupFolder) {
+        String[] names = backupFolder.toFile().list((dir, name) -> isBackupName(name));
+        Set<String> pinned = new HashSet<>();
+        if (names == null) {
+            return pinned;
+        }
+        for (String name : names) {
+            if (name.endsWith(DELTA_SUFFIX)) {
+                pinned.add(name);
+                getDeltaBaseTimeStr(backupFolder.resolve(name)).flatMap(base -> findBackup(backupFolder, base)).ifPresent(pinned::add);
+            }
+        }
+        return pinned;
+    }
+    
+    /**
+     * @return Time string of the backup an incremental backup was taken against, from its manifest.  This may be
+     *      another delta if that one wasn't merged yet
+     */
+    public static Optional<String> getDeltaBaseTimeStr(Path delta) {
+        try (Stream<String> lines = Files.lines(delta.resolve(DELTA_MANIFEST))) {
+            return lines.filter(line -> line.startsWith(DELTA_BASE_PREFIX)).findFirst().map(line -> line.substring(DELTA_BASE_PREFIX.length()));
+        } catch (IOException | UncheckedIOException e) {
+            log.error("Could not read the manifest of incremental backup " + delta, e);
+            return Optional.empty();
+        }
+    }
+    
+    /**
+     * @return Name of the backup named after the time string, in whichever format it's in now.  Prefers a full backup
+     *      over a delta of the same time, which is left over from a merge that was cut off
+     */
+    public static Optional<String> findBackup(Path backupFolder, String timeStr) {
+        String[] names = backupFolder.toFile().list((dir, name) -> isBackupName(name) && name.startsWith(timeStr)
+                && (name.length() == timeStr.length() || name.charAt(timeStr.length()) == '.' || name.equals(timeStr + DELTA_SUFFIX)));
+        if (names == null || names.length == 0) {
+            return Optional.empty();
+        }
+        for (String name : names) {
+            if (!name.endsWith(DELTA_SUFFIX)) {
+                return Optional.of(name);
+            }
+        }
+        return Optional.of(names[0]);
+    }
+    
+    /**
+     * @return True if a file or folder in a backup folder is a finished backup, rather than one in progress or metadata
+     */
+    public static boolean isBackupName(String name) {
+        return !name.startsWith(".") && !name.endsWith(".tmp") && !name.endsWith(PARTIAL_EXTENSION) && !name.endsWith(CHECKPOINT_EXTENSION)
+                && !name.endsWith(STAGING_EXTENSION);
+    }
+    
+    public static void deleteRecursively(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+    
+    public static void cleanupFailedBackup(Path backupPath) {
+        try {
+            log.info("Attempting to cleanup interrupted backup at {}", backupPath);
+            if (Files.isDirectory(backupPath)) {
+                deleteRecursively(backupPath);
+            } else {
+                Files.deleteIfExists(backupPath);
+            }
+        } catch (Exception e) {
+            log.error("Could not cleanup interrupted backup process", e);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.spoorn.simplebackup.util;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Detects what kind of storage a path lives on so backups can pick I/O ordering and concurrency per side.
+ * Spinning disks fall apart under parallel random I/O, while SSDs need parallel requests to reach full throughput.
+ */
+@Log4j2
+public class StorageUtil {
+
+    public static final String AUTO = "AUTO";
+    public static final String HDD = "HDD";
+    public static final String SSD = "SSD";
+    private static final Path SYS_BLOCK = Paths.get("/sys/block");
+    private static final Path SYS_CLASS_BLOCK = Paths.get("/sys/class/block");
+    private static final Map<String, Boolean> ROTATIONAL_BY_DEVICE = new ConcurrentHashMap<>();
+
+    /**
+     * @return True if the storage type is AUTO, HDD or SSD
+     */
+    public static boolean isValidStorageType(String storageType) {
+        return AUTO.equals(storageType) || HDD.equals(storageType) || SSD.equals(storageType);
+    }
+
+    /**
+     * @param path Path to check
+     * @param override "HDD" or "SSD" to skip detection, anything else to auto-detect
+     * @return True if the path is on rotational (spinning) media.  Defaults to false if it can't be detected
+     */
+    public static boolean isRotational(Path path, String override) {
+        if (HDD.equalsIgnoreCase(override)) {
+            return true;
+        } else if (SSD.equalsIgnoreCase(override)) {
+            return false;
+        }
+
+        try {
+            Path existing = path.toAbsolutePath();
+            while (existing != null && !Files.exists(existing)) {
+                existing = existing.getParent();
+            }
+            if (existing == null) {
+                return false;
+            }
+
+            FileStore store = Files.getFileStore(existing);
+            // On Linux, the file store name is the mounted device, i.e. /dev/sda1
+            String device = store.name();
+            return ROTATIONAL_BY_DEVICE.computeIfAbsent(device, StorageUtil::isDeviceRotational);
+        } catch (Exception e) {
+            log.debug("Could not detect storage type for " + path, e);
+            return false;
+        }
+    }
+
+    /**
+     * Number of concurrent readers or writers to use against storage.  Rotational media get a single sequential
+     * stream, SSDs get the full thread count.
+     */
+    public static int concurrencyFor(boolean rotational, int numThreads) {
+        return rotational ? 1 : Math.max(1, numThreads);
+    }
+
+    /**
+     * Sorts files by inode number, which on most Linux filesystems roughly follows the physical layout on disk.
+     * Files are left in walk order if inodes are not available.
+     */
+    public static void sortByPhysicalOrder(List<Path> files) {
+        try {
+            if (!files.isEmpty() && Files.getFileStore(files.get(0)).supportsFileAttributeView("unix")) {
+                Map<Path, Long> inodes = new HashMap<>();
+                for (Path file : files) {
+                    inodes.put(file, getInode(file));
+                }
+                files.sort(Comparator.comparingLong(inodes::get));
+            }
+        } catch (IOException e) {
+            log.debug("Could not sort files by inode", e);
+        }
+    }
+
+    private static long getInode(Path file) {
+        try {
+            return (long) Files.getAttribute(file, "unix:ino");
+        } catch (Exception e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static boolean isDeviceRotational(String device) {
+        try {
+            if (!device.startsWith("/dev/")) {
+                return false;
+            }
+            // Resolve symlinks such as /dev/mapper/vg-root -> /dev/dm-0
+            String name = Paths.get(device).toRealPath().getFileName().toString();
+            Path rotational = SYS_BLOCK.resolve(name).resolve("queue/rotational");
+            if (!Files.exists(rotational)) {
+                // Partitions don't have a queue, but /sys/class/block/sda1 links into /sys/devices/.../sda/sda1
+                Path partition = SYS_CLASS_BLOCK.resolve(name).toRealPath();
+                rotational = partition.getParent().resolve("queue/rotational");
+            }
+
+            if (Files.exists(rotational)) {
+                boolean res = "1".equals(Files.readString(rotational).trim());
+                log.info("Detected device {} as {}", device, res ? HDD : SSD);
+                return res;
+            }
+        } catch (Exception e) {
+            log.debug("Could not read rotational flag for device " + device, e);
+        }
+        return false;
+    }
+}
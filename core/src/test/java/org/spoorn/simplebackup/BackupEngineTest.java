@@ -0,0 +1,94 @@
+package org.spoorn.simplebackup;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.spoorn.simplebackup.config.BackupSettings;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackupEngineTest {
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void mergeDeltaRebuildsWorldAtDelta() throws IOException {
+        Path world = this.folder.resolve("world");
+        BackupEngine engine = new BackupEngine(new BackupSettings(this.folder.resolve("backups")));
+        long baseMillis = System.currentTimeMillis() - HOUR_MILLIS;
+        String base = backupBase(engine, world, baseMillis);
+
+        write(world, "level.dat", "level v2", System.currentTimeMillis());
+        write(world, "region/r.1.0.mca", "new region", System.currentTimeMillis());
+        Files.delete(world.resolve("removed.txt"));
+        String delta = SimpleBackupUtil.formatBackupTime(System.currentTimeMillis());
+        assertTrue(engine.backupDelta(world, "world", delta, baseMillis, base));
+
+        Path merged = engine.mergeDelta(delta + SimpleBackupUtil.DELTA_SUFFIX);
+        try {
+            assertEquals(this.folder.resolve("backups").resolve(delta + SimpleBackupUtil.STAGING_EXTENSION).resolve("world"), merged);
+            assertEquals(Map.of(
+                    "level.dat", "level v2",
+                    "region/r.0.0.mca", "old region",
+                    "region/r.1.0.mca", "new region"), readAll(merged));
+        } finally {
+            SimpleBackupUtil.deleteRecursively(merged.getParent());
+        }
+    }
+
+    @Test
+    void mergeDeltaFailsWhenBaseIsGone() throws IOException {
+        Path world = this.folder.resolve("world");
+        BackupEngine engine = new BackupEngine(new BackupSettings(this.folder.resolve("backups")));
+        long baseMillis = System.currentTimeMillis() - HOUR_MILLIS;
+        String base = backupBase(engine, world, baseMillis);
+        String delta = SimpleBackupUtil.formatBackupTime(System.currentTimeMillis());
+        assertTrue(engine.backupDelta(world, "world", delta, baseMillis, base));
+
+        SimpleBackupUtil.deleteRecursively(this.folder.resolve("backups").resolve(base));
+        assertThrows(IOException.class, () -> engine.mergeDelta(delta + SimpleBackupUtil.DELTA_SUFFIX));
+    }
+
+    /**
+     * @return Time string of a DIRECTORY backup of a world last changed before the time
+     */
+    private static String backupBase(BackupEngine engine, Path world, long baseMillis) throws IOException {
+        long modifiedMillis = baseMillis - HOUR_MILLIS;
+        write(world, "level.dat", "level v1", modifiedMillis);
+        write(world, "region/r.0.0.mca", "old region", modifiedMillis);
+        write(world, "removed.txt", "removed", modifiedMillis);
+        String base = SimpleBackupUtil.formatBackupTime(baseMillis);
+        assertTrue(engine.backup(world, "world", base, SimpleBackupUtil.DIRECTORY_FORMAT));
+        return base;
+    }
+
+    private static void write(Path world, String relativePath, String content, long modifiedMillis) throws IOException {
+        Path path = world.resolve(relativePath);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, content);
+        Files.setLastModifiedTime(path, FileTime.fromMillis(modifiedMillis));
+    }
+
+    private static Map<String, String> readAll(Path folder) throws IOException {
+        Map<String, String> files = new TreeMap<>();
+        try (Stream<Path> walk = Files.walk(folder)) {
+            for (Path file : walk.filter(Files::isRegularFile).toList()) {
+                files.put(folder.relativize(file).toString().replace('\\', '/'), Files.readString(file));
+            }
+        }
+        return files;
+    }
+}
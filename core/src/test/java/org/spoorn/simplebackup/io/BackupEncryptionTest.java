@@ -0,0 +1,138 @@
+package org.spoorn.simplebackup.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Round trips through {@link EncryptingOutputStream} and {@link EncryptedFileChannel}.
+ */
+class BackupEncryptionTest {
+
+    private static final int BLOCK = BackupEncryption.BLOCK_SIZE;
+    private static final int[] SIZES = {0, 1, BLOCK - 1, BLOCK, BLOCK + 1, 2 * BLOCK, 2 * BLOCK + 17};
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void roundTripsAtBlockBoundaries() throws IOException {
+        for (String algorithm : new String[] {BackupEncryption.AES_GCM, BackupEncryption.CHACHA20_POLY1305}) {
+            BackupEncryption encryption = new BackupEncryption(key(1), algorithm);
+            for (int size : SIZES) {
+                byte[] data = data(size);
+                Path file = encrypt(encryption, data);
+                assertEquals(BackupEncryption.HEADER_SIZE + size + blocks(size) * BackupEncryption.TAG_SIZE, Files.size(file),
+                        algorithm + " size " + size);
+                try (EncryptedFileChannel channel = new EncryptedFileChannel(file, encryption)) {
+                    assertEquals(size, channel.size());
+                    assertArrayEquals(data, readAll(channel, 1000), algorithm + " size " + size);
+                }
+            }
+        }
+    }
+
+    @Test
+    void seeksAcrossBlocks() throws IOException {
+        BackupEncryption encryption = new BackupEncryption(key(1), BackupEncryption.AES_GCM);
+        byte[] data = data(2 * BLOCK + 17);
+        Path file = encrypt(encryption, data);
+        try (EncryptedFileChannel channel = new EncryptedFileChannel(file, encryption)) {
+            for (long position : new long[] {2 * BLOCK + 10, BLOCK - 3, 0, 2 * BLOCK - 1}) {
+                ByteBuffer buffer = ByteBuffer.allocate(6);
+                channel.position(position);
+                int read = channel.read(buffer);
+                int expected = (int) Math.min(6, data.length - position);
+                assertEquals(expected, read);
+                assertArrayEquals(Arrays.copyOfRange(data, (int) position, (int) position + expected), Arrays.copyOf(buffer.array(), read));
+            }
+            channel.position(data.length);
+            assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+        }
+    }
+
+    @Test
+    void failsWhenTruncatedAtBlockBoundary() throws IOException {
+        BackupEncryption encryption = new BackupEncryption(key(1), BackupEncryption.AES_GCM);
+        Path file = encrypt(encryption, data(2 * BLOCK + 17));
+        // Dropping the last block leaves whole blocks, but the new last one isn't marked as the last
+        truncate(file, BackupEncryption.HEADER_SIZE + 2L * BackupEncryption.ENCRYPTED_BLOCK_SIZE);
+        assertThrows(IOException.class, () -> new EncryptedFileChannel(file, encryption).close());
+    }
+
+    @Test
+    void failsWhenTruncatedMidBlock() throws IOException {
+        BackupEncryption encryption = new BackupEncryption(key(1), BackupEncryption.AES_GCM);
+        Path file = encrypt(encryption, data(2 * BLOCK));
+        truncate(file, Files.size(file) - 5);
+        assertThrows(IOException.class, () -> new EncryptedFileChannel(file, encryption).close());
+
+        // Less than a tag left of the last block
+        truncate(file, BackupEncryption.HEADER_SIZE + BackupEncryption.ENCRYPTED_BLOCK_SIZE + BackupEncryption.TAG_SIZE - 1);
+        assertThrows(IOException.class, () -> new EncryptedFileChannel(file, encryption).close());
+    }
+
+    @Test
+    void failsWithDifferentKey() throws IOException {
+        Path file = encrypt(new BackupEncryption(key(1), BackupEncryption.AES_GCM), data(BLOCK + 1));
+        BackupEncryption other = new BackupEncryption(key(2), BackupEncryption.AES_GCM);
+        assertThrows(IOException.class, () -> new EncryptedFileChannel(file, other).close());
+    }
+
+    /**
+     * Writes in odd sized pieces, so they straddle block boundaries.
+     */
+    private Path encrypt(BackupEncryption encryption, byte[] data) throws IOException {
+        Path file = this.folder.resolve("backup.zip" + BackupEncryption.ENCRYPTED_EXTENSION);
+        try (OutputStream out = new EncryptingOutputStream(Files.newOutputStream(file), encryption, 2)) {
+            for (int offset = 0; offset < data.length; offset += 100_003) {
+                out.write(data, offset, Math.min(100_003, data.length - offset));
+            }
+        }
+        return file;
+    }
+
+    private static byte[] readAll(EncryptedFileChannel channel, int bufferSize) throws IOException {
+        ByteBuffer result = ByteBuffer.allocate((int) channel.size());
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        while (channel.read(buffer.clear()) >= 0) {
+            result.put(buffer.flip());
+        }
+        return result.array();
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private static long blocks(int size) {
+        return Math.max(1, (size + BLOCK - 1) / BLOCK);
+    }
+
+    private static byte[] key(int seed) {
+        byte[] key = new byte[32];
+        new Random(seed).nextBytes(key);
+        return key;
+    }
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
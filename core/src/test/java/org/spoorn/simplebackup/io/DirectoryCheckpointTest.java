@@ -0,0 +1,90 @@
+package org.spoorn.simplebackup.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class DirectoryCheckpointTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void resumesWithRecordedFiles() throws IOException {
+        Path file = this.folder.resolve("checkpoint");
+        Path destination = createDestination("a.txt", "region/r.0.0.mca");
+        try (DirectoryCheckpoint checkpoint = DirectoryCheckpoint.open(file, destination, 0)) {
+            assertEquals(Set.of(), checkpoint.getCompleted());
+            checkpoint.markDone("a.txt");
+            checkpoint.markDone("region/r.0.0.mca");
+        }
+
+        try (DirectoryCheckpoint checkpoint = DirectoryCheckpoint.open(file, destination, 0)) {
+            assertEquals(Set.of("a.txt", "region/r.0.0.mca"), checkpoint.getCompleted());
+        }
+    }
+
+    @Test
+    void recordsPendingFilesOnClose() throws IOException {
+        Path file = this.folder.resolve("checkpoint");
+        Path destination = createDestination("a.txt");
+        try (DirectoryCheckpoint checkpoint = DirectoryCheckpoint.open(file, destination, Long.MAX_VALUE)) {
+            checkpoint.markDone("a.txt");
+            assertEquals(0, Files.size(file));
+        }
+
+        try (DirectoryCheckpoint checkpoint = DirectoryCheckpoint.open(file, destination, 0)) {
+            assertEquals(Set.of("a.txt"), checkpoint.getCompleted());
+        }
+    }
+
+    @Test
+    void dropsTornLastLine() throws IOException {
+        Path file = this.folder.resolve("checkpoint");
+        Path destination = createDestination("a.txt", "b.txt", "c.txt");
+        Files.writeString(file, "a.txt\nb.txt\nc.t", StandardCharsets.UTF_8);
+
+        try (DirectoryCheckpoint checkpoint = DirectoryCheckpoint.open(file, destination, 0)) {
+            assertEquals(Set.of("a.txt", "b.txt"), checkpoint.getCompleted());
+            checkpoint.markDone("c.txt");
+        }
+
+        // The new line isn't glued onto the torn one
+        assertEquals("a.txt\nb.txt\nc.txt\n", Files.readString(file, StandardCharsets.UTF_8));
+        try (DirectoryCheckpoint checkpoint = DirectoryCheckpoint.open(file, destination, 0)) {
+            assertEquals(Set.of("a.txt", "b.txt", "c.txt"), checkpoint.getCompleted());
+        }
+    }
+
+    @Test
+    void skipsFilesRemovedBeforeSync() throws IOException {
+        Path file = this.folder.resolve("checkpoint");
+        Path destination = createDestination("a.txt", "b.txt");
+        try (DirectoryCheckpoint checkpoint = DirectoryCheckpoint.open(file, destination, Long.MAX_VALUE)) {
+            checkpoint.markDone("a.txt");
+            checkpoint.markDone("b.txt");
+            Files.delete(destination.resolve("b.txt"));
+        }
+
+        try (DirectoryCheckpoint checkpoint = DirectoryCheckpoint.open(file, destination, 0)) {
+            assertEquals(Set.of("a.txt"), checkpoint.getCompleted());
+        }
+    }
+
+    private Path createDestination(String... files) throws IOException {
+        Path destination = this.folder.resolve("destination");
+        for (String relativePath : files) {
+            Path path = destination.resolve(relativePath);
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, relativePath);
+        }
+        return destination;
+    }
+}
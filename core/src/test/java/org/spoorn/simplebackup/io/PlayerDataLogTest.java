@@ -0,0 +1,197 @@
+package org.spoorn.simplebackup.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlayerDataLogTest {
+
+    private static final String PLAYER = "playerdata/0f8fad5b-d9cb-469f-a165-70867728950e.dat";
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void readsSnapshotsAfterReopening() throws IOException {
+        Path world = createWorld();
+        Path file = this.folder.resolve("world.log");
+        try (PlayerDataLog log = PlayerDataLog.open(file)) {
+            assertEquals(2, log.snapshot(world, "interval"));
+            assertEquals(0, log.snapshot(world, "interval"));
+            // So the snapshots are apart in time
+            sleep();
+            write(world, PLAYER, "player v22");
+            assertEquals(1, log.snapshot(world, "logout"));
+        }
+
+        try (PlayerDataLog log = PlayerDataLog.open(file)) {
+            List<PlayerDataLog.Snapshot> snapshots = log.getSnapshots();
+            assertEquals(2, snapshots.size());
+            assertEquals("logout", snapshots.get(1).reason());
+            assertEquals(Set.of(PLAYER), snapshots.get(1).changes().keySet());
+            assertEquals("player v22", read(log, PLAYER, Long.MAX_VALUE).orElseThrow());
+            assertEquals("player v1", read(log, PLAYER, snapshots.get(0).timeMillis()).orElseThrow());
+            assertEquals(Optional.empty(), read(log, PLAYER, snapshots.get(0).timeMillis() - 1));
+        }
+    }
+
+    @Test
+    void dropsTornTail() throws IOException {
+        Path world = createWorld();
+        Path file = this.folder.resolve("world.log");
+        try (PlayerDataLog log = PlayerDataLog.open(file)) {
+            log.snapshot(world, "interval");
+        }
+        long size = Files.size(file);
+        // A snapshot record cut off after its type and part of its length
+        try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.APPEND)) {
+            out.write(new byte[] {2, 0, 0});
+        }
+
+        try (PlayerDataLog log = PlayerDataLog.open(file)) {
+            assertEquals(size, Files.size(file));
+            assertEquals(1, log.getSnapshots().size());
+            write(world, PLAYER, "player v22");
+            assertEquals(1, log.snapshot(world, "interval"));
+        }
+        try (PlayerDataLog log = PlayerDataLog.open(file)) {
+            assertEquals(2, log.getSnapshots().size());
+            assertEquals("player v22", read(log, PLAYER, Long.MAX_VALUE).orElseThrow());
+        }
+    }
+
+    @Test
+    void skipsCorruptRecordWithoutTruncating() throws IOException {
+        Path world = createWorld();
+        Path file = this.folder.resolve("world.log");
+        try (PlayerDataLog log = PlayerDataLog.open(file)) {
+            log.snapshot(world, "interval");
+        }
+        // First record is the content of level.dat, flip a byte of its hash
+        long size = Files.size(file);
+        corrupt(file, 10);
+
+        try (PlayerDataLog log = PlayerDataLog.open(file)) {
+            assertEquals(size, Files.size(file));
+            assertEquals(1, log.getSnapshots().size());
+            assertEquals("player v1", read(log, PLAYER, Long.MAX_VALUE).orElseThrow());
+            assertThrows(IOException.class, () -> log.read("level.dat", Long.MAX_VALUE));
+        }
+    }
+
+    @Test
+    void refusesRecordRunningPastEndAfterCorruptOne() throws IOException {
+        Path world = createWorld();
+        Path file = this.folder.resolve("world.log");
+        try (PlayerDataLog log = PlayerDataLog.open(file)) {
+            log.snapshot(world, "interval");
+        }
+        corrupt(file, 10);
+        try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.APPEND)) {
+            out.write(new byte[] {2, 0, 0, 1, 0});
+        }
+        long size = Files.size(file);
+
+        assertThrows(IOException.class, () -> PlayerDataLog.open(file));
+        assertEquals(size, Files.size(file));
+    }
+
+    @Test
+    void compactKeepsStateAtCutoff() throws IOException {
+        Path world = createWorld();
+        Path file = this.folder.resolve("world.log");
+        try (PlayerDataLog log = PlayerDataLog.open(file)) {
+            log.snapshot(world, "interval");
+            write(world, PLAYER, "player v22");
+            log.snapshot(world, "interval");
+            write(world, PLAYER, "player v333");
+            log.snapshot(world, "interval");
+            long size = Files.size(file);
+
+            assertTrue(log.compact(Long.MAX_VALUE));
+            assertTrue(Files.size(file) < size);
+            assertEquals(1, log.getSnapshots().size());
+            assertEquals(Set.of("level.dat", PLAYER), log.getSnapshots().get(0).changes().keySet());
+            assertEquals("player v333", read(log, PLAYER, Long.MAX_VALUE).orElseThrow());
+            assertFalse(log.compact(Long.MAX_VALUE));
+        }
+
+        try (PlayerDataLog log = PlayerDataLog.open(file)) {
+            assertEquals(1, log.getSnapshots().size());
+            assertEquals("level", read(log, "level.dat", Long.MAX_VALUE).orElseThrow());
+        }
+    }
+
+    @Test
+    void compactFailsOnCorruptContent() throws IOException {
+        Path world = createWorld();
+        Path file = this.folder.resolve("world.log");
+        try (PlayerDataLog log = PlayerDataLog.open(file)) {
+            log.snapshot(world, "interval");
+            write(world, PLAYER, "player v22");
+            log.snapshot(world, "interval");
+        }
+        corrupt(file, 10);
+        byte[] before = Files.readAllBytes(file);
+
+        try (PlayerDataLog log = PlayerDataLog.open(file)) {
+            assertThrows(IOException.class, () -> log.compact(Long.MAX_VALUE));
+            assertEquals(2, log.getSnapshots().size());
+        }
+        assertArrayEquals(before, Files.readAllBytes(file));
+        assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+    }
+
+    private Path createWorld() throws IOException {
+        Path world = this.folder.resolve("world");
+        write(world, "level.dat", "level");
+        write(world, PLAYER, "player v1");
+        // Not a player file
+        write(world, PLAYER + "_old", "old");
+        return world;
+    }
+
+    private static void write(Path world, String relativePath, String content) throws IOException {
+        Path path = world.resolve(relativePath);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, content, StandardCharsets.UTF_8);
+    }
+
+    private static Optional<String> read(PlayerDataLog log, String path, long atMillis) throws IOException {
+        return log.read(path, atMillis).map(data -> new String(data, StandardCharsets.UTF_8));
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void corrupt(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            channel.read(buffer, position);
+            buffer.put(0, (byte) ~buffer.get(0));
+            channel.write(buffer.rewind(), position);
+        }
+    }
+}
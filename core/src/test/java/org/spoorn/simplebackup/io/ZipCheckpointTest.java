@@ -0,0 +1,106 @@
+package org.spoorn.simplebackup.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ZipCheckpointTest {
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void restoresArchiveCutOffMidBatch() throws IOException {
+        Path zip = createZip("level.dat", "region/r.0.0.mca");
+        Path checkpoint = this.folder.resolve("backup.zip.checkpoint");
+        ZipCheckpoint.save(zip, checkpoint);
+        byte[] saved = Files.readAllBytes(zip);
+
+        // The next batch overwrites the central directory, then the process dies
+        long cdOffset;
+        try (FileChannel channel = FileChannel.open(zip, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            cdOffset = ZipCheckpoint.centralDirectoryOffset(channel);
+            channel.truncate(cdOffset);
+        }
+        try (OutputStream out = Files.newOutputStream(zip, StandardOpenOption.APPEND)) {
+            out.write(new byte[3000]);
+        }
+
+        assertTrue(ZipCheckpoint.restore(zip, checkpoint));
+        assertArrayEquals(saved, Files.readAllBytes(zip));
+        try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+            assertEquals(2, zipFile.size());
+            assertEquals("region/r.0.0.mca", new String(zipFile.getInputStream(zipFile.getEntry("region/r.0.0.mca")).readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void refusesCheckpointWithBadMagic() throws IOException {
+        Path zip = createZip("level.dat");
+        Path checkpoint = this.folder.resolve("backup.zip.checkpoint");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(checkpoint))) {
+            out.writeInt(0);
+            out.writeLong(0);
+            out.writeLong(0);
+        }
+        byte[] before = Files.readAllBytes(zip);
+
+        assertFalse(ZipCheckpoint.restore(zip, checkpoint));
+        assertArrayEquals(before, Files.readAllBytes(zip));
+    }
+
+    @Test
+    void refusesTruncatedCheckpoint() throws IOException {
+        Path zip = createZip("level.dat");
+        Path checkpoint = this.folder.resolve("backup.zip.checkpoint");
+        ZipCheckpoint.save(zip, checkpoint);
+        try (FileChannel channel = FileChannel.open(checkpoint, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        byte[] before = Files.readAllBytes(zip);
+
+        assertFalse(ZipCheckpoint.restore(zip, checkpoint));
+        assertArrayEquals(before, Files.readAllBytes(zip));
+    }
+
+    @Test
+    void refusesArchiveShorterThanCheckpoint() throws IOException {
+        Path zip = createZip("level.dat", "region/r.0.0.mca");
+        Path checkpoint = this.folder.resolve("backup.zip.checkpoint");
+        ZipCheckpoint.save(zip, checkpoint);
+        try (FileChannel channel = FileChannel.open(zip, StandardOpenOption.WRITE)) {
+            channel.truncate(10);
+        }
+
+        assertFalse(ZipCheckpoint.restore(zip, checkpoint));
+        assertEquals(10, Files.size(zip));
+    }
+
+    private Path createZip(String... entries) throws IOException {
+        Path zip = this.folder.resolve("backup.zip");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            for (String entry : entries) {
+                out.putNextEntry(new ZipEntry(entry));
+                out.write(entry.getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        return zip;
+    }
+}
@@ -0,0 +1,82 @@
+package org.spoorn.simplebackup.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Token bucket behind {@link HostCoordinator#acquireBandwidth(long)}.  Timings have generous margins, as they depend
+ * on how busy the machine running the tests is.
+ */
+class HostCoordinatorTest {
+
+    private static final long BYTES_PER_SECOND = 10 * 1024 * 1024;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void fullBucketDoesNotWait() throws Exception {
+        HostCoordinator coordinator = new HostCoordinator(this.folder, 1, BYTES_PER_SECOND, 0);
+        assertTrue(coordinator.isBandwidthLimited());
+        long millis = time(() -> coordinator.acquireBandwidth(BYTES_PER_SECOND));
+        assertTrue(millis < 300, "Waited " + millis + " ms");
+        assertTrue(Files.exists(this.folder.resolve("bandwidth.bucket")));
+    }
+
+    @Test
+    void emptyBucketWaitsForRefill() throws Exception {
+        HostCoordinator coordinator = new HostCoordinator(this.folder, 1, BYTES_PER_SECOND, 0);
+        coordinator.acquireBandwidth(BYTES_PER_SECOND);
+        long millis = time(() -> coordinator.acquireBandwidth(BYTES_PER_SECOND / 2));
+        assertTrue(millis >= 400 && millis < 1500, "Waited " + millis + " ms");
+    }
+
+    @Test
+    void largeBorrowIsPaidBackOverTime() throws Exception {
+        HostCoordinator coordinator = new HostCoordinator(this.folder, 1, BYTES_PER_SECOND, 0);
+        // Twice the bucket, so it's a second in debt
+        long millis = time(() -> coordinator.acquireBandwidth(2 * BYTES_PER_SECOND));
+        assertTrue(millis >= 900 && millis < 2000, "Waited " + millis + " ms");
+        // Paid back and refilled by now
+        Thread.sleep(1200);
+        millis = time(() -> coordinator.acquireBandwidth(BYTES_PER_SECOND / 2));
+        assertTrue(millis < 300, "Waited " + millis + " ms");
+    }
+
+    @Test
+    void bucketIsSharedBetweenCoordinators() throws Exception {
+        HostCoordinator first = new HostCoordinator(this.folder, 1, BYTES_PER_SECOND, 0);
+        HostCoordinator second = new HostCoordinator(this.folder, 1, BYTES_PER_SECOND, 0);
+        first.acquireBandwidth(BYTES_PER_SECOND);
+        long millis = time(() -> second.acquireBandwidth(BYTES_PER_SECOND / 2));
+        assertTrue(millis >= 400 && millis < 1500, "Waited " + millis + " ms");
+    }
+
+    @Test
+    void unlimitedNeverWaits() throws Exception {
+        HostCoordinator coordinator = new HostCoordinator(this.folder, 1, 0, 0);
+        assertFalse(coordinator.isBandwidthLimited());
+        long millis = time(() -> {
+            coordinator.acquireBandwidth(Long.MAX_VALUE);
+            coordinator.acquireBandwidth(Long.MAX_VALUE);
+        });
+        assertTrue(millis < 300, "Waited " + millis + " ms");
+        assertFalse(Files.exists(this.folder.resolve("bandwidth.bucket")));
+    }
+
+    private interface Acquire {
+        void run() throws Exception;
+    }
+
+    private static long time(Acquire acquire) throws Exception {
+        long start = System.nanoTime();
+        acquire.run();
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+}
@@ -0,0 +1,291 @@
+package org.spoorn.simplebackup;
+
+import com.mojang.authlib.GameProfile;
+import com.mojang.serialization.Codec;
+import lombok.extern.log4j.Log4j2;
+import net.minecraft.SharedConstants;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.chunk.PalettedContainer;
+import net.minecraft.world.chunk.WorldChunk;
+import net.minecraft.world.dimension.DimensionType;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.io.BackupExtractor;
+import org.spoorn.simplebackup.io.DirectoryCopier;
+import org.spoorn.simplebackup.io.PlayerDataLog;
+import org.spoorn.simplebackup.mixin.MinecraftServerAccessor;
+import org.spoorn.simplebackup.util.ModUtil;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+import org.spoorn.tarlz4java.util.concurrent.NamedThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Restores chunks or a player's data from a backup into the running server, without stopping it.
+ *
+ * Chunks are read and decompressed from the backup off the server thread.  They are then applied one chunk per server
+ * task, so the server keeps ticking in between: every block that differs from the backup is set back, block entities
+ * get their backed up data, and players see the changes right away.  Chunks that aren't loaded are loaded to do so.
+ * Entities and biomes are left as they are.
+ *
+ * Player data can also be restored from the more frequent player data backups, see {@link PlayerDataBackupTask}.
+ * Player data can't be swapped while the player is online, so it is staged next to their data file and moved into
+ * place when they next log in, see {@link #applyPendingPlayerRestore}.
+ */
+@Log4j2
+public class BackupRestorer {
+
+    // 64x64 chunks, so a typo in the coordinates can't lock up the server for minutes
+    public static final int MAX_CHUNKS_PER_RESTORE = 4096;
+    private static final String PENDING_RESTORE_EXTENSION = ".dat.restore";
+    private static final Codec<PalettedContainer<BlockState>> BLOCK_STATE_CODEC = PalettedContainer.createPalettedContainerCodec(
+            Block.STATE_IDS, BlockState.CODEC, PalettedContainer.PaletteProvider.BLOCK_STATE, Blocks.AIR.getDefaultState());
+
+    /**
+     * @param sections Block states of each section in the backup by section Y.  Sections that are missing are air
+     */
+    private record RestoredChunk(ChunkPos pos, Map<Integer, PalettedContainer<BlockState>> sections, List<NbtCompound> blockEntities) {}
+
+    /**
+     * @return Path of a backup in backupPath, or null if there is no such backup
+     */
+    public static Path resolveBackup(String backupName) {
+        Path backupPath = ModUtil.getBackupPath();
+        Path backup = backupPath.resolve(backupName).normalize();
+        if (!backup.getParent().equals(backupPath.normalize()) || !SimpleBackupUtil.isBackupName(backupName) || !Files.exists(backup)) {
+            return null;
+        }
+        return backup;
+    }
+
+    /**
+     * Restores all chunks between two chunk positions, inclusive.  Blocks until done, so call off the server thread.
+     *
+     * @return Number of chunks restored
+     */
+    public static int restoreChunks(MinecraftServer server, ServerWorld world, Path backup, ChunkPos from, ChunkPos to) throws IOException {
+        List<int[]> positions = new ArrayList<>();
+        for (int x = Math.min(from.x, to.x); x <= Math.max(from.x, to.x); x++) {
+            for (int z = Math.min(from.z, to.z); z <= Math.max(from.z, to.z); z++) {
+                positions.add(new int[]{x, z});
+            }
+        }
+        if (positions.size() > MAX_CHUNKS_PER_RESTORE) {
+            throw new IOException("Can't restore " + positions.size() + " chunks at once, the most is " + MAX_CHUNKS_PER_RESTORE);
+        }
+
+        MinecraftServerAccessor accessor = (MinecraftServerAccessor) server;
+        Path worldSavePath = accessor.getSession().getDirectory(WorldSavePath.ROOT).getParent();
+        String regionFolder = DirectoryCopier.toRelativeString(worldSavePath.getParent().relativize(
+                DimensionType.getSaveDirectory(world.getRegistryKey(), worldSavePath).resolve("region")));
+
+        long startMillis = System.currentTimeMillis();
+        int numThreads = Math.max(1, ModConfig.get().numThreads);
+        Map<String, BackupExtractor.RegionChunk> chunks = BackupExtractor.readChunks(backup, regionFolder, positions, numThreads, ModUtil.getEncryption());
+
+        // Decompressing and decoding is the slow part, and doesn't touch the world
+        List<RestoredChunk> restored = new ArrayList<>();
+        ExecutorService executorService = Executors.newFixedThreadPool(numThreads, new NamedThreadFactory("SimpleBackup-Restore"));
+        try {
+            List<Future<RestoredChunk>> futures = new ArrayList<>();
+            for (Map.Entry<String, BackupExtractor.RegionChunk> chunk : chunks.entrySet()) {
+                String[] coordinates = chunk.getKey().split(",");
+                ChunkPos pos = new ChunkPos(Integer.parseInt(coordinates[0]), Integer.parseInt(coordinates[1]));
+                futures.add(executorService.submit(() -> decode(pos, chunk.getValue())));
+            }
+            for (Future<RestoredChunk> future : futures) {
+                restored.add(future.get());
+            }
+        } catch (Exception e) {
+            throw new IOException("Could not read chunks from backup " + backup, e);
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        int changedBlocks = 0;
+        for (RestoredChunk chunk : restored) {
+            changedBlocks += server.submit(() -> apply(world, chunk)).join();
+        }
+        log.info("Restored {} chunks in {} from backup {}, changing {} blocks, in {} ms.  {} chunks were not in the backup",
+                restored.size(), world.getRegistryKey().getValue(), backup, changedBlocks, System.currentTimeMillis() - startMillis,
+                positions.size() - restored.size());
+        return restored.size();
+    }
+
+    /**
+     * Stages a player's data from a backup, to be swapped in the next time they log in, or right away if they are offline.
+     *
+     * @return True if restored right away, false if the player is online and it will be restored when they next log in
+     */
+    public static boolean restorePlayer(MinecraftServer server, Path backup, GameProfile profile) throws IOException {
+        MinecraftServerAccessor accessor = (MinecraftServerAccessor) server;
+        String name = accessor.getSession().getDirectoryName() + "/playerdata/" + profile.getId() + ".dat";
+        byte[] data = BackupExtractor.readFile(backup, name, ModUtil.getEncryption())
+                .orElseThrow(() -> new IOException("Backup " + backup + " has no data for player " + profile.getName()));
+        return stagePlayerData(server, profile, data, "backup " + backup);
+    }
+
+    /**
+     * Same as {@link #restorePlayer}, from player data backups as they were at a point in time.
+     *
+     * @return True if restored right away, false if the player is online and it will be restored when they next log in
+     */
+    public static boolean restorePlayerAt(MinecraftServer server, PlayerDataLog playerDataLog, long atMillis, GameProfile profile) throws IOException {
+        byte[] data = playerDataLog.read(PlayerDataLog.PLAYER_DATA_FOLDER + "/" + profile.getId() + ".dat", atMillis)
+                .orElseThrow(() -> new IOException("No player data backups of player " + profile.getName() + " at or before "
+                        + SimpleBackupUtil.formatBackupTime(atMillis)));
+        return stagePlayerData(server, profile, data, "player data backups at " + SimpleBackupUtil.formatBackupTime(atMillis));
+    }
+
+    private static boolean stagePlayerData(MinecraftServer server, GameProfile profile, byte[] data, String source) throws IOException {
+        // Make sure it's readable before it replaces anything
+        NbtIo.readCompressed(new ByteArrayInputStream(data));
+
+        Path playerDataFolder = server.getSavePath(WorldSavePath.PLAYERDATA);
+        Path pending = playerDataFolder.resolve(profile.getId() + PENDING_RESTORE_EXTENSION);
+        Path tmp = playerDataFolder.resolve(profile.getId() + PENDING_RESTORE_EXTENSION + ".tmp");
+        Files.write(tmp, data);
+        Files.move(tmp, pending, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Restoring data of player {} from {}", profile.getName(), source);
+
+        // Logins are handled on the server thread, so the player can't log in halfway through
+        return server.submit(() -> {
+            if (server.getPlayerManager().getPlayer(profile.getId()) != null) {
+                return false;
+            }
+            applyPendingPlayerRestore(server, profile.getId());
+            return true;
+        }).join();
+    }
+
+    /**
+     * Moves a player's staged data from {@link #restorePlayer} or {@link #restorePlayerAt} into place, keeping their current data as the game's own
+     * .dat_old backup.  Called before the game loads a player's data when they log in.
+     */
+    public static void applyPendingPlayerRestore(MinecraftServer server, UUID uuid) {
+        Path playerDataFolder = server.getSavePath(WorldSavePath.PLAYERDATA);
+        Path pending = playerDataFolder.resolve(uuid + PENDING_RESTORE_EXTENSION);
+        if (!Files.exists(pending)) {
+            return;
+        }
+        try {
+            Path current = playerDataFolder.resolve(uuid + ".dat");
+            if (Files.exists(current)) {
+                Files.move(current, playerDataFolder.resolve(uuid + ".dat_old"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(pending, current, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Restored data of player {} from backup", uuid);
+        } catch (IOException e) {
+            log.error("Could not restore data of player " + uuid + " from backup", e);
+        }
+    }
+
+    private static RestoredChunk decode(ChunkPos pos, BackupExtractor.RegionChunk chunk) throws IOException {
+        NbtCompound nbt;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(decompress(chunk)))) {
+            nbt = NbtIo.read(in);
+        }
+        int dataVersion = nbt.getInt("DataVersion");
+        if (dataVersion != SharedConstants.getGameVersion().getSaveVersion().getId()) {
+            throw new IOException("Chunk " + pos + " in the backup is from a different Minecraft version (data version " + dataVersion + ")");
+        }
+
+        Map<Integer, PalettedContainer<BlockState>> sections = new HashMap<>();
+        NbtList sectionList = nbt.getList("sections", NbtElement.COMPOUND_TYPE);
+        for (int i = 0; i < sectionList.size(); i++) {
+            NbtCompound section = sectionList.getCompound(i);
+            if (section.contains("block_states", NbtElement.COMPOUND_TYPE)) {
+                sections.put((int) section.getByte("Y"), BLOCK_STATE_CODEC.parse(NbtOps.INSTANCE, section.getCompound("block_states"))
+                        .getOrThrow(false, error -> log.error("Could not read blocks of chunk {} in backup: {}", pos, error)));
+            }
+        }
+
+        List<NbtCompound> blockEntities = new ArrayList<>();
+        NbtList blockEntityList = nbt.getList("block_entities", NbtElement.COMPOUND_TYPE);
+        for (int i = 0; i < blockEntityList.size(); i++) {
+            blockEntities.add(blockEntityList.getCompound(i));
+        }
+        return new RestoredChunk(pos, sections, blockEntities);
+    }
+
+    private static InputStream decompress(BackupExtractor.RegionChunk chunk) throws IOException {
+        InputStream data = new ByteArrayInputStream(chunk.data());
+        return switch (chunk.compression()) {
+            case 1 -> new GZIPInputStream(data);
+            case 2 -> new InflaterInputStream(data);
+            case 3 -> data;
+            default -> throw new IOException("Unknown chunk compression type " + chunk.compression());
+        };
+    }
+
+    /**
+     * Sets every block that differs from the backup, on the server thread.
+     *
+     * @return Number of blocks changed
+     */
+    private static int apply(ServerWorld world, RestoredChunk restored) {
+        ChunkPos pos = restored.pos();
+        WorldChunk chunk = world.getChunk(pos.x, pos.z);
+        BlockState air = Blocks.AIR.getDefaultState();
+        BlockPos.Mutable blockPos = new BlockPos.Mutable();
+        int changed = 0;
+        for (int sectionIndex = 0; sectionIndex < world.countVerticalSections(); sectionIndex++) {
+            int sectionY = world.sectionIndexToCoord(sectionIndex);
+            PalettedContainer<BlockState> states = restored.sections().get(sectionY);
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        BlockState state = states != null ? states.get(x, y, z) : air;
+                        blockPos.set(pos.getStartX() + x, (sectionY << 4) + y, pos.getStartZ() + z);
+                        if (chunk.getBlockState(blockPos) != state) {
+                            // Remove block entities first so containers don't drop their items
+                            world.removeBlockEntity(blockPos);
+                            world.setBlockState(blockPos, state, Block.NOTIFY_LISTENERS | Block.FORCE_STATE | Block.SKIP_DROPS);
+                            changed++;
+                        }
+                    }
+                }
+            }
+        }
+
+        for (NbtCompound nbt : restored.blockEntities()) {
+            BlockPos blockEntityPos = BlockEntity.posFromNbt(nbt);
+            BlockEntity blockEntity = world.getBlockEntity(blockEntityPos);
+            if (blockEntity != null) {
+                blockEntity.readNbt(nbt);
+                blockEntity.markDirty();
+                world.getChunkManager().markForUpdate(blockEntityPos);
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,98 @@
+package org.spoorn.simplebackup;
+
+import net.minecraft.entity.boss.BossBar;
+import net.minecraft.entity.boss.ServerBossBar;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.text.Text;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.progress.ProgressListener;
+import org.spoorn.simplebackup.progress.ProgressSnapshot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shows each running backup as a boss bar to players with at least {@code permissionLevelForProgressBossBar}.
+ */
+public class BossBarProgressListener implements ProgressListener {
+
+    public static final long UPDATE_INTERVAL_MILLIS = 1000;
+
+    private final MinecraftServer server;
+    // Only touched on the server thread
+    private final Map<Long, ServerBossBar> bossBars = new HashMap<>();
+
+    public BossBarProgressListener(MinecraftServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public void onStart(ProgressSnapshot snapshot) {
+        Text title = getTitle(snapshot);
+        this.server.execute(() -> {
+            ServerBossBar bossBar = new ServerBossBar(title, BossBar.Color.BLUE, BossBar.Style.PROGRESS);
+            bossBar.setPercent(0);
+            this.bossBars.put(snapshot.id(), bossBar);
+            updatePlayers(bossBar);
+        });
+    }
+
+    @Override
+    public void onProgress(ProgressSnapshot snapshot) {
+        Text title = getTitle(snapshot);
+        int percent = snapshot.percent();
+        this.server.execute(() -> {
+            ServerBossBar bossBar = this.bossBars.get(snapshot.id());
+            if (bossBar == null) {
+                return;
+            }
+            bossBar.setName(title);
+            if (percent >= 0) {
+                bossBar.setPercent(percent / 100f);
+            }
+            updatePlayers(bossBar);
+        });
+    }
+
+    @Override
+    public void onFinish(ProgressSnapshot snapshot, boolean success) {
+        this.server.execute(() -> {
+            ServerBossBar bossBar = this.bossBars.remove(snapshot.id());
+            if (bossBar != null) {
+                bossBar.clearPlayers();
+            }
+        });
+    }
+
+    private void updatePlayers(ServerBossBar bossBar) {
+        int permissionLevel = ModConfig.get().permissionLevelForProgressBossBar;
+        for (ServerPlayerEntity player : new ArrayList<>(bossBar.getPlayers())) {
+            if (player.isDisconnected() || !player.hasPermissionLevel(permissionLevel)) {
+                bossBar.removePlayer(player);
+            }
+        }
+        for (ServerPlayerEntity player : this.server.getPlayerManager().getPlayerList()) {
+            if (player.hasPermissionLevel(permissionLevel)) {
+                // No-op for players already watching
+                bossBar.addPlayer(player);
+            }
+        }
+    }
+
+    private static Text getTitle(ProgressSnapshot snapshot) {
+        StringBuilder sb = new StringBuilder(ModConfig.get().broadcastMessages.getOrDefault("simplebackup.progress.bossbar", "Backing up "))
+                .append(snapshot.name());
+        int percent = snapshot.percent();
+        if (percent >= 0) {
+            sb.append(": ").append(percent).append("%");
+        }
+        sb.append(" - ").append(ProgressSnapshot.formatBytes((long) snapshot.bytesPerSecond())).append("/s");
+        long eta = snapshot.etaMillis();
+        if (eta >= 0) {
+            sb.append(", ").append(ProgressSnapshot.formatDuration(eta)).append(" left");
+        }
+        return Text.literal(sb.toString());
+    }
+}
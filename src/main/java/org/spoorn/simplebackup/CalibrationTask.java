@@ -0,0 +1,63 @@
+package org.spoorn.simplebackup;
+
+import lombok.extern.log4j.Log4j2;
+import net.minecraft.server.MinecraftServer;
+import org.spoorn.simplebackup.config.BackupSettings;
+import org.spoorn.simplebackup.util.CompressionTuner;
+import org.spoorn.simplebackup.util.ModUtil;
+
+import java.nio.file.Path;
+import java.util.OptionalLong;
+
+/**
+ * Background job that measures compression levels on a sample of the world for {@link CompressionTuner}.
+ *
+ * Calibrates shortly after the server starts if it never has, so autotuning works from the first backup, then again
+ * once a day while the server is idle and no backup is running, as the world and host change over time.
+ */
+@Log4j2
+public class CalibrationTask implements Runnable {
+
+    private static final long CHECK_INTERVAL_MILLIS = 60 * 1000;
+    private static final long RECALIBRATE_AFTER_MILLIS = 24 * 60 * 60 * 1000;
+
+    private final MinecraftServer server;
+    private final Path worldSavePath;
+    private volatile boolean terminated = false;
+
+    CalibrationTask(MinecraftServer server, Path worldSavePath) {
+        this.server = server;
+        this.worldSavePath = worldSavePath;
+    }
+
+    public void terminate() {
+        this.terminated = true;
+    }
+
+    @Override
+    public void run() {
+        while (!this.terminated) {
+            try {
+                Thread.sleep(CHECK_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (SimpleBackup.isBackupInProgress()) {
+                continue;
+            }
+
+            BackupSettings settings = ModUtil.getBackupSettings();
+            OptionalLong calibrated = CompressionTuner.getCalibrationTime(settings);
+            if (calibrated.isPresent() && (calibrated.getAsLong() + RECALIBRATE_AFTER_MILLIS > System.currentTimeMillis()
+                    || !SimpleBackupTask.isServerIdle(this.server))) {
+                continue;
+            }
+            try {
+                CompressionTuner.calibrate(settings, this.worldSavePath);
+            } catch (Exception e) {
+                log.error("Could not calibrate compression on world [" + this.worldSavePath + "]", e);
+            }
+        }
+        log.info("CalibrationTask Finished!");
+    }
+}
@@ -0,0 +1,136 @@
+package org.spoorn.simplebackup;
+
+import lombok.extern.log4j.Log4j2;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.world.ChunkHolder;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.server.world.ThreadedAnvilChunkStorage;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.chunk.ChunkSerializer;
+import net.minecraft.world.chunk.WorldChunk;
+import net.minecraft.world.dimension.DimensionType;
+import net.minecraft.world.storage.StorageIoWorker;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.io.RegionSnapshot;
+import org.spoorn.simplebackup.mixin.ThreadedAnvilChunkStorageInvoker;
+import org.spoorn.tarlz4java.util.concurrent.NamedThreadFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Captures loaded chunks with unsaved changes straight from server memory for a backup, so busy areas are backed up as
+ * they are right now without saving them and reading them back from disk.
+ *
+ * Chunks are captured in one go between ticks, so they are consistent with each other.  Only building the NBT happens
+ * on the server thread, for at most {@link ModConfig#chunkSnapshotMaxMillisPerTick}; chunks left after that are backed
+ * up from disk.  Writing and compressing the NBT happens on the backup's own threads.  Entities and points of interest
+ * are stored in their own files, and are backed up from disk as the game last saved them.
+ */
+@Log4j2
+public class ChunkSnapshotter {
+
+    // Give up and back up from disk if the server is too busy to get to us
+    private static final long CAPTURE_TIMEOUT_SECONDS = 30;
+
+    private record CapturedChunk(Path regionFolder, ChunkPos pos, NbtCompound nbt) {}
+
+    /**
+     * @param worldSavePath World folder
+     * @return Loaded chunks with unsaved changes, or empty if they could not be captured, in which case the world
+     *         should be backed up from disk as usual
+     */
+    static Optional<RegionSnapshot> capture(MinecraftServer server, Path worldSavePath) {
+        if (!server.isRunning() || server.isOnThread()) {
+            // Either everything was saved when the server stopped, or we'd be blocking the tick we are waiting for
+            return Optional.empty();
+        }
+
+        long startMillis = System.currentTimeMillis();
+        List<CapturedChunk> captured = new ArrayList<>();
+        List<CompletableFuture<Void>> pendingWrites = new ArrayList<>();
+        try {
+            server.submit(() -> captureOnTick(server, worldSavePath, captured, pendingWrites)).get(CAPTURE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            // Chunks saved before the snapshot may still be queued for writing, and aren't in the snapshot
+            CompletableFuture.allOf(pendingWrites.toArray(CompletableFuture[]::new)).get(CAPTURE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.error("Could not capture chunks from memory, backing up the world from disk instead", e);
+            return Optional.empty();
+        }
+
+        RegionSnapshot snapshot = new RegionSnapshot(startMillis);
+        ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, ModConfig.get().numThreads), new NamedThreadFactory("SimpleBackup-Snapshot"));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (CapturedChunk chunk : captured) {
+                futures.add(executorService.submit(() -> {
+                    snapshot.addChunk(chunk.regionFolder(), chunk.pos().x, chunk.pos().z, compress(chunk.nbt()));
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (Exception e) {
+            log.error("Could not compress chunks captured from memory, backing up the world from disk instead", e);
+            return Optional.empty();
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        log.info("Captured {} chunks with unsaved changes from memory in {} ms", snapshot.getChunkCount(), System.currentTimeMillis() - startMillis);
+        return Optional.of(snapshot);
+    }
+
+    private static void captureOnTick(MinecraftServer server, Path worldSavePath, List<CapturedChunk> captured, List<CompletableFuture<Void>> pendingWrites) {
+        long startNanos = System.nanoTime();
+        long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(ModConfig.get().chunkSnapshotMaxMillisPerTick);
+        int skipped = 0;
+        for (ServerWorld world : server.getWorlds()) {
+            Path regionFolder = DimensionType.getSaveDirectory(world.getRegistryKey(), worldSavePath).resolve("region");
+            ThreadedAnvilChunkStorage storage = world.getChunkManager().threadedAnvilChunkStorage;
+            for (ChunkHolder holder : ((ThreadedAnvilChunkStorageInvoker) storage).invokeEntryIterator()) {
+                WorldChunk chunk = holder.getWorldChunk();
+                if (chunk != null && chunk.needsSaving()) {
+                    if (System.nanoTime() - deadlineNanos >= 0) {
+                        // Backed up from disk as the game last saved it
+                        skipped++;
+                        continue;
+                    }
+                    // Heightmaps and light are shared with the live chunk rather than copied, so copy them before leaving the tick
+                    captured.add(new CapturedChunk(regionFolder, chunk.getPos(), ChunkSerializer.serialize(world, chunk).copy()));
+                }
+            }
+            pendingWrites.add(((StorageIoWorker) storage.getWorker()).completeAll(false));
+        }
+        if (skipped > 0) {
+            log.info("Ran out of time capturing chunks from memory, backing up {} chunks with unsaved changes from disk instead", skipped);
+        }
+        log.debug("Captured {} chunks on the server thread in {} ms", captured.size(), (System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    /**
+     * @return Chunk NBT compressed the same way the game stores it in region files
+     */
+    private static byte[] compress(NbtCompound nbt) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(out)))) {
+            NbtIo.write(nbt, data);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,231 @@
+package org.spoorn.simplebackup;
+
+import lombok.extern.log4j.Log4j2;
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.model.FileHeader;
+import org.spoorn.simplebackup.compressors.LZ4Compressor;
+import org.spoorn.simplebackup.compressors.ZipCompressor;
+import org.spoorn.simplebackup.config.BackupSettings;
+import org.spoorn.simplebackup.io.BackupEncryption;
+import org.spoorn.simplebackup.progress.BackupProgress;
+import org.spoorn.simplebackup.progress.ProgressBus;
+import org.spoorn.simplebackup.util.ModUtil;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Journal of slow follow-up work for incremental server stopped backups.  The delta is written quickly while the
+ * server is stopping, and merging it with the backup it was taken against into a full backup, compressing, verifying
+ * and pruning is recorded here and finished in a low priority background thread on the next server start.  Until then,
+ * retention keeps the delta and the backup it's based on, see {@link SimpleBackupUtil#getPinnedBackups}.
+ */
+@Log4j2
+public class PendingBackupJobs implements Runnable {
+
+    private static final String JOURNAL_FILE = "pending-jobs.txt";
+    private static volatile boolean running = false;
+
+    /**
+     * Records a delta backup folder that still needs to be merged into a full backup in the backup format.
+     */
+    public static synchronized void enqueue(String deltaName, String backupFormat) {
+        List<String> jobs = readJournal();
+        jobs.add(deltaName + "\t" + backupFormat);
+        writeJournal(jobs);
+    }
+
+    /**
+     * Starts a low priority daemon thread to finish any pending jobs left over from the last server stop.
+     */
+    public static void startProcessing() {
+        if (readJournal().isEmpty()) {
+            return;
+        }
+        Thread thread = new Thread(new PendingBackupJobs(), "SimpleBackup-PendingJobs");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        // Set before the thread starts, so there is no moment where jobs are about to run but aren't counted
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * @return True while pending jobs are being finished, which read and write backups like any other backup
+     */
+    public static boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void run() {
+        try {
+            runJobs();
+        } finally {
+            running = false;
+        }
+    }
+
+    private void runJobs() {
+        for (String job : readJournal()) {
+            String[] parts = job.split("\t");
+            if (parts.length != 2) {
+                log.error("Skipping invalid pending backup job [{}]", job);
+                remove(job);
+                continue;
+            }
+
+            log.info("Finishing pending backup job for [{}]", parts[0]);
+            if (finalizeDelta(parts[0], parts[1])) {
+                remove(job);
+            } else {
+                // Later deltas are based on this one, so they have to wait for it
+                log.error("Pending backup job for [{}] failed.  It and the jobs after it will be retried on the next server start", parts[0]);
+                break;
+            }
+        }
+        ModUtil.getEngine().deleteStaleBackupFiles();
+        log.info("Pending backup jobs finished");
+    }
+
+    private static boolean finalizeDelta(String deltaName, String backupFormat) {
+        BackupProgress progress = ProgressBus.get().start(deltaName);
+        boolean success = false;
+        try {
+            success = finalizeDelta(deltaName, backupFormat, progress);
+            return success;
+        } finally {
+            ProgressBus.get().finish(progress, success);
+        }
+    }
+
+    private static boolean finalizeDelta(String deltaName, String backupFormat, BackupProgress progress) {
+        BackupEngine engine = ModUtil.getEngine();
+        BackupSettings settings = engine.getSettings();
+        Path backupPath = settings.backupPath;
+        Path delta = backupPath.resolve(deltaName);
+        if (!Files.isDirectory(delta)) {
+            log.warn("Delta backup at {} no longer exists", delta);
+            return true;
+        }
+
+        String timeStr = deltaName.substring(0, deltaName.length() - SimpleBackupUtil.DELTA_SUFFIX.length());
+        Path staging = backupPath.resolve(timeStr + SimpleBackupUtil.STAGING_EXTENSION);
+        try {
+            Path merged = backupPath.resolve(timeStr);
+            if (SimpleBackupUtil.DIRECTORY_FORMAT.equals(backupFormat) && Files.isDirectory(merged)) {
+                // Merged by an attempt that was cut off before deleting the delta
+                SimpleBackupUtil.deleteRecursively(delta);
+                return true;
+            }
+
+            Path world = engine.mergeDelta(deltaName);
+            Path archive;
+            if (SimpleBackupUtil.ZIP_FORMAT.equals(backupFormat)) {
+                archive = backupPath.resolve(timeStr + ZipCompressor.ZIP_EXTENSION);
+                // Leftover from a previous attempt that was cut off
+                Files.deleteIfExists(archive);
+                if (!ZipCompressor.zip(world.toString(), merged.toString(), settings, progress) || !verifyZip(archive, world)) {
+                    SimpleBackupUtil.cleanupFailedBackup(archive);
+                    return false;
+                }
+            } else if (SimpleBackupUtil.LZ4_FORMAT.equals(backupFormat)) {
+                archive = backupPath.resolve(timeStr + LZ4Compressor.TAR_LZ4_EXTENSION);
+                Files.deleteIfExists(archive);
+                if (!LZ4Compressor.compress(world.toString(), backupPath.toString(), timeStr, settings, progress) || !Files.exists(archive) || Files.size(archive) == 0) {
+                    SimpleBackupUtil.cleanupFailedBackup(archive);
+                    return false;
+                }
+            } else {
+                // The staging folder already is a DIRECTORY backup
+                archive = null;
+                Files.move(staging, merged, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            if (archive != null && settings.encryption != null) {
+                // Compressed deltas are checked before they are encrypted, so they are encrypted as a separate pass
+                Path encrypted = archive.resolveSibling(archive.getFileName() + BackupEncryption.ENCRYPTED_EXTENSION);
+                Files.deleteIfExists(encrypted);
+                settings.encryption.encryptFile(archive, encrypted, settings.numThreads);
+                Files.delete(archive);
+            }
+
+            SimpleBackupUtil.deleteRecursively(delta);
+            log.info("Merged delta backup [{}] into full backup [{}]", deltaName, engine.getBackupName(timeStr, backupFormat));
+            return true;
+        } catch (Exception e) {
+            log.error("Could not finish delta backup at " + delta, e);
+            return false;
+        } finally {
+            if (Files.exists(staging)) {
+                SimpleBackupUtil.cleanupFailedBackup(staging);
+            }
+        }
+    }
+
+    /**
+     * @param world Merged world folder the archive was made from
+     */
+    private static boolean verifyZip(Path zip, Path world) throws IOException {
+        try (ZipFile zipFile = new ZipFile(zip.toFile())) {
+            long entries = 0;
+            if (!zipFile.isValidZipFile()) {
+                log.error("Merged delta backup at {} is not a valid zip file", zip);
+                return false;
+            }
+            for (FileHeader fileHeader : zipFile.getFileHeaders()) {
+                if (!fileHeader.isDirectory()) {
+                    entries++;
+                }
+            }
+            long expected = SimpleBackupUtil.fileCount(world);
+            if (entries != expected) {
+                log.error("Merged delta backup at {} has {} files, expected {}", zip, entries, expected);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static synchronized void remove(String job) {
+        List<String> jobs = readJournal();
+        jobs.remove(job);
+        writeJournal(jobs);
+    }
+
+    private static synchronized List<String> readJournal() {
+        Path journal = ModUtil.getMetadataPath().resolve(JOURNAL_FILE);
+        try {
+            if (Files.exists(journal)) {
+                List<String> jobs = new ArrayList<>();
+                for (String line : Files.readAllLines(journal)) {
+                    if (!line.isBlank()) {
+                        jobs.add(line);
+                    }
+                }
+                return jobs;
+            }
+        } catch (IOException e) {
+            log.error("Could not read pending backup jobs from " + journal, e);
+        }
+        return new ArrayList<>();
+    }
+
+    private static synchronized void writeJournal(List<String> jobs) {
+        Path folder = ModUtil.getMetadataPath();
+        Path journal = folder.resolve(JOURNAL_FILE);
+        Path tmp = folder.resolve(JOURNAL_FILE + ".tmp");
+        try {
+            Files.createDirectories(folder);
+            Files.write(tmp, jobs);
+            Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Could not write pending backup jobs to " + journal, e);
+        }
+    }
+}
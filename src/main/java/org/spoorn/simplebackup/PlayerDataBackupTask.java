@@ -0,0 +1,125 @@
+package org.spoorn.simplebackup;
+
+import lombok.extern.log4j.Log4j2;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.io.PlayerDataLog;
+import org.spoorn.simplebackup.util.ModUtil;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Backs up player data, advancements, stats and level.dat into a {@link PlayerDataLog} every
+ * playerDataBackupIntervalInSeconds, and shortly after players log out.
+ *
+ * Runs on its own thread and shares no locks with {@link SimpleBackupTask}, so full backups never wait for it and it
+ * never waits for them.
+ */
+@Log4j2
+public class PlayerDataBackupTask {
+
+    // The game saves a player's data after the disconnect event, and players often leave together
+    private static final long LOGOUT_DELAY_MILLIS = 2000;
+    private static final long COMPACT_INTERVAL_MILLIS = 60 * 60 * 1000;
+    private static final long STOP_TIMEOUT_SECONDS = 30;
+
+    private final String worldFolderName;
+    private final Path worldSavePath;
+    private final ScheduledExecutorService executorService;
+    private final AtomicBoolean logoutPending = new AtomicBoolean();
+    private PlayerDataLog playerDataLog;
+    // Only touched on the executor
+    private long lastCompactionMillis;
+
+    PlayerDataBackupTask(String worldFolderName, Path worldSavePath) {
+        this.worldFolderName = worldFolderName;
+        this.worldSavePath = worldSavePath;
+        this.executorService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "SimpleBackup-PlayerData");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        long interval = ModConfig.get().playerDataBackupIntervalInSeconds;
+        this.executorService.scheduleWithFixedDelay(() -> backup("interval"), interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Backs up a little after a player logs out, once the game has saved their data.  Logouts until then share the backup.
+     */
+    public void onLogout() {
+        if (this.logoutPending.compareAndSet(false, true)) {
+            try {
+                this.executorService.schedule(() -> {
+                    this.logoutPending.set(false);
+                    backup("logout");
+                }, LOGOUT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Stopping, which takes its own backup
+            }
+        }
+    }
+
+    /**
+     * Takes a last backup, as the game saved every player on the way down, and waits for it.
+     */
+    public void stop() {
+        this.executorService.execute(() -> backup("stop"));
+        this.executorService.shutdown();
+        try {
+            if (!this.executorService.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Player data backups did not finish within {} seconds of the server stopping", STOP_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (this.playerDataLog != null) {
+                try {
+                    this.playerDataLog.close();
+                } catch (IOException e) {
+                    log.error("Could not close player data log", e);
+                }
+                this.playerDataLog = null;
+            }
+        }
+        log.info("PlayerDataBackupTask Finished!");
+    }
+
+    /**
+     * @return Log of this world's player data backups, opened the first time it's needed
+     */
+    public synchronized PlayerDataLog getPlayerDataLog() throws IOException {
+        if (this.playerDataLog == null) {
+            this.playerDataLog = PlayerDataLog.open(PlayerDataLog.getLogPath(ModUtil.getMetadataPath(), this.worldFolderName));
+        }
+        return this.playerDataLog;
+    }
+
+    private void backup(String reason) {
+        try {
+            PlayerDataLog playerDataLog = getPlayerDataLog();
+            long start = System.currentTimeMillis();
+            int changed = playerDataLog.snapshot(this.worldSavePath, reason);
+            if (changed > 0) {
+                log.info("Backed up {} changed player data files of world [{}] on {} in {} ms", changed, this.worldFolderName, reason,
+                        System.currentTimeMillis() - start);
+            }
+
+            if (start - this.lastCompactionMillis >= COMPACT_INTERVAL_MILLIS) {
+                this.lastCompactionMillis = start;
+                playerDataLog.compact(start - TimeUnit.HOURS.toMillis(ModConfig.get().playerDataBackupRetentionInHours));
+            }
+        } catch (Exception e) {
+            log.error("Could not back up player data of world [" + this.worldFolderName + "]", e);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.spoorn.simplebackup;
+
+import lombok.extern.log4j.Log4j2;
+import net.minecraft.server.MinecraftServer;
+import org.spoorn.simplebackup.compressors.Recompressor;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.io.BackupEncryption;
+import org.spoorn.simplebackup.util.ModUtil;
+import org.spoorn.simplebackup.util.SimpleBackupUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Background job that recompresses backups older than recompressBackupsOlderThanHours into .tar.xz, so recent
+ * backups stay fast to write and restore while older ones take up as little space as possible.
+ *
+ * It only works while the server is idle, using the same checks that pause automatic backups, and never at the same
+ * time as a backup.  If a player joins or a backup starts, the current recompression is abandoned and picked up again
+ * from the start at the next idle period.
+ */
+@Log4j2
+public class RecompressionTask implements Runnable {
+
+    private static final long CHECK_INTERVAL_MILLIS = 60 * 1000;
+
+    private final MinecraftServer server;
+    // Backups that failed to recompress, so we don't retry them over and over
+    private final Set<String> failed = new HashSet<>();
+    private volatile boolean terminated = false;
+
+    RecompressionTask(MinecraftServer server) {
+        this.server = server;
+    }
+
+    public void terminate() {
+        this.terminated = true;
+    }
+
+    @Override
+    public void run() {
+        deleteLeftoverFiles();
+        while (!this.terminated) {
+            try {
+                Thread.sleep(CHECK_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!canRun()) {
+                continue;
+            }
+
+            Optional<Path> candidate = findCandidate();
+            if (candidate.isEmpty()) {
+                continue;
+            }
+            Path backup = candidate.get();
+            log.info("Server is idle, recompressing backup [{}]", backup);
+            if (!Recompressor.recompress(backup, ModConfig.get().recompressionXzPreset, () -> this.terminated || !canRun())
+                    && !this.terminated && canRun()) {
+                this.failed.add(backup.getFileName().toString());
+            }
+        }
+        log.info("RecompressionTask Finished!");
+    }
+
+    private boolean canRun() {
+        return SimpleBackupTask.isServerIdle(this.server) && !SimpleBackup.isBackupInProgress();
+    }
+
+    /**
+     * @return Oldest backup that is old enough and not yet recompressed.  Backups incremental backups are still to be
+     *      merged into are left alone until they are merged
+     */
+    private Optional<Path> findCandidate() {
+        long cutoff = System.currentTimeMillis() - ModConfig.get().recompressBackupsOlderThanHours * 60L * 60 * 1000;
+        Set<String> pinned = SimpleBackupUtil.getPinnedBackups(ModUtil.getBackupPath());
+        File[] backups = ModUtil.getBackupPath().toFile().listFiles(file -> {
+            String name = file.getName();
+            // Encrypted backups are left alone, recompressing them would write them out unencrypted
+            return SimpleBackupUtil.isBackupName(name) && !name.endsWith(Recompressor.TAR_XZ_EXTENSION) && !name.endsWith(BackupEncryption.ENCRYPTED_EXTENSION)
+                    && !name.endsWith(SimpleBackupUtil.DELTA_SUFFIX) && !pinned.contains(name) && !this.failed.contains(name);
+        });
+        if (backups == null) {
+            return Optional.empty();
+        }
+
+        Path oldest = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (File file : backups) {
+            try {
+                long created = SimpleBackupUtil.getBackupTime(file.getName())
+                        .orElse(Files.readAttributes(file.toPath(), BasicFileAttributes.class).creationTime().toMillis());
+                if (created < cutoff && created < oldestTime) {
+                    oldest = file.toPath();
+                    oldestTime = created;
+                }
+            } catch (IOException e) {
+                log.error("Could not read backup " + file, e);
+            }
+        }
+        return Optional.ofNullable(oldest);
+    }
+
+    /**
+     * Deletes .tar.xz.tmp files left over from a recompression that was cut off by the server stopping.
+     */
+    private static void deleteLeftoverFiles() {
+        File[] leftovers = ModUtil.getBackupPath().toFile().listFiles((dir, name) -> name.endsWith(Recompressor.TAR_XZ_EXTENSION + ".tmp"));
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                SimpleBackupUtil.cleanupFailedBackup(leftover.toPath());
+            }
+        }
+    }
+}
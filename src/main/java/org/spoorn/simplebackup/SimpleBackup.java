@@ -1,26 +1,48 @@
 package org.spoorn.simplebackup;
 
+import static net.minecraft.server.command.CommandManager.argument;
 import static net.minecraft.server.command.CommandManager.literal;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mojang.authlib.GameProfile;
+import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import com.mojang.brigadier.suggestion.Suggestions;
+import com.mojang.brigadier.suggestion.SuggestionsBuilder;
 import lombok.extern.log4j.Log4j2;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
+import net.minecraft.command.argument.ColumnPosArgumentType;
+import net.minecraft.command.argument.GameProfileArgumentType;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.text.Style;
 import net.minecraft.text.Text;
 import net.minecraft.util.WorldSavePath;
-import org.spoorn.simplebackup.compressors.LZ4Compressor;
-import org.spoorn.simplebackup.compressors.ZipCompressor;
+import net.minecraft.util.math.ColumnPos;
 import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.io.BackupDiff;
+import org.spoorn.simplebackup.io.BufferPool;
+import org.spoorn.simplebackup.io.PlayerDataLog;
 import org.spoorn.simplebackup.mixin.MinecraftServerAccessor;
+import org.spoorn.simplebackup.progress.LogProgressListener;
+import org.spoorn.simplebackup.progress.ProgressBus;
+import org.spoorn.simplebackup.util.ModUtil;
 import org.spoorn.simplebackup.util.SimpleBackupUtil;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
@@ -32,6 +54,9 @@ public class SimpleBackup implements ModInitializer {
     private static final AtomicReference<SimpleBackupTask> manualBackupTask = new AtomicReference<>();
     public static AtomicReference<SimpleBackupTask> simpleBackupTask = new AtomicReference<>();
     public static AtomicReference<SimpleBackupTask> serverEndBackupTask = new AtomicReference<>();
+    public static AtomicReference<RecompressionTask> recompressionTask = new AtomicReference<>();
+    public static AtomicReference<CalibrationTask> calibrationTask = new AtomicReference<>();
+    public static AtomicReference<PlayerDataBackupTask> playerDataBackupTask = new AtomicReference<>();
     //public static ExecutorService EXECUTOR_SERVICE;
 
     @Override
@@ -46,19 +71,65 @@ public class SimpleBackup implements ModInitializer {
         // Lang for backup broadcast messages
         SimpleBackupTask.init();
         
-        // Compressors init
-        LZ4Compressor.init();
-        ZipCompressor.init();
+        // Shared I/O buffers
+        BufferPool.init(ModConfig.get().bufferPoolMaxSizeInBytes);
+        
+        // Encryption key, before anything is backed up
+        ModUtil.initEncryption();
+        
+        // Backup progress in the server log
+        ProgressBus.get().subscribe(new LogProgressListener(ModConfig.get().intervalPercentageToLogBackupProgress),
+                LogProgressListener.SAMPLE_INTERVAL_MILLIS);
         
         // Create worlds backup folder
-        Path backupsPath = SimpleBackupUtil.getBackupPath();
+        Path backupsPath = ModUtil.getBackupPath();
         SimpleBackupUtil.createDirectoryFailSafe(backupsPath);
         log.info("Worlds backup folder: {}", backupsPath);
+        
+        // Finish compressing/pruning incremental backups from the last server stop
+        PendingBackupJobs.startProcessing();
 
         // Automatic backups
         final boolean enableAutomaticBackups = ModConfig.get().enableAutomaticBackups;
         final AtomicReference<Thread> automaticBackupThread = new AtomicReference<>();
+        final AtomicReference<Thread> recompressionThread = new AtomicReference<>();
+        final AtomicReference<Thread> calibrationThread = new AtomicReference<>();
+        final AtomicReference<ProgressBus.Subscription> bossBarSubscription = new AtomicReference<>();
         ServerLifecycleEvents.SERVER_STARTED.register(server -> {
+            if (ModConfig.get().enableProgressBossBar) {
+                bossBarSubscription.set(ProgressBus.get().subscribe(new BossBarProgressListener(server),
+                        BossBarProgressListener.UPDATE_INTERVAL_MILLIS));
+            }
+            
+            if (ModConfig.get().enableBackgroundRecompression) {
+                log.info("Backups older than {} hours will be recompressed while the server is idle", ModConfig.get().recompressBackupsOlderThanHours);
+                recompressionTask.set(new RecompressionTask(server));
+                Thread thread = new Thread(recompressionTask.get(), "SimpleBackup-Recompression");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                thread.start();
+                recompressionThread.set(thread);
+            }
+            
+            if (ModConfig.get().enableAutotuning) {
+                log.info("Backups will be autotuned to take at most {} seconds", ModConfig.get().autotuneBackupTimeBudgetInSeconds);
+                Path worldSavePath = ((MinecraftServerAccessor) server).getSession().getDirectory(WorldSavePath.ROOT).getParent();
+                calibrationTask.set(new CalibrationTask(server, worldSavePath));
+                Thread thread = new Thread(calibrationTask.get(), "SimpleBackup-Calibration");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                thread.start();
+                calibrationThread.set(thread);
+            }
+            
+            if (ModConfig.get().enablePlayerDataBackups) {
+                log.info("Player data will be backed up every {} seconds", ModConfig.get().playerDataBackupIntervalInSeconds);
+                MinecraftServerAccessor accessor = (MinecraftServerAccessor) server;
+                playerDataBackupTask.set(new PlayerDataBackupTask(accessor.getSession().getDirectoryName(),
+                        accessor.getSession().getDirectory(WorldSavePath.ROOT).getParent()));
+                playerDataBackupTask.get().start();
+            }
+            
             if (enableAutomaticBackups) {
                 log.info("Automatic backups are enabled");
                 MinecraftServerAccessor accessor = (MinecraftServerAccessor) server;
@@ -79,7 +150,7 @@ public class SimpleBackup implements ModInitializer {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             SimpleBackupTask autoBackup;
             if ((autoBackup = simpleBackupTask.get()) != null) {
-                if (autoBackup.isProcessing && autoBackup.lastBackupProcessed != null) {
+                if (autoBackup.isProcessing && autoBackup.lastBackupProcessed != null && !autoBackup.isResumable()) {
                     SimpleBackupUtil.cleanupFailedBackup(autoBackup.lastBackupProcessed);
                 }
             }
@@ -95,8 +166,38 @@ public class SimpleBackup implements ModInitializer {
             }
         });
         
+        // Back up player data once the game has saved it
+        ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> {
+            PlayerDataBackupTask playerDataBackup;
+            if (ModConfig.get().playerDataBackupOnLogout && (playerDataBackup = playerDataBackupTask.get()) != null) {
+                playerDataBackup.onLogout();
+            }
+        });
+        
         // Backup when server is stopped
         ServerLifecycleEvents.SERVER_STOPPED.register(server -> {
+            ProgressBus.Subscription subscription;
+            if ((subscription = bossBarSubscription.getAndSet(null)) != null) {
+                subscription.close();
+            }
+            
+            RecompressionTask recompression;
+            if ((recompression = recompressionTask.get()) != null) {
+                recompression.terminate();
+                recompressionThread.get().interrupt();
+            }
+            
+            CalibrationTask calibration;
+            if ((calibration = calibrationTask.get()) != null) {
+                calibration.terminate();
+                calibrationThread.get().interrupt();
+            }
+            
+            PlayerDataBackupTask playerDataBackup;
+            if ((playerDataBackup = playerDataBackupTask.getAndSet(null)) != null) {
+                playerDataBackup.stop();
+            }
+
             SimpleBackupTask autoBackup;
             if (enableAutomaticBackups && (autoBackup = simpleBackupTask.get()) != null) {
                 log.info("Terminating automatic backup thread");
@@ -113,12 +214,17 @@ public class SimpleBackup implements ModInitializer {
                 Path worldSavePath = accessor.getSession().getDirectory(WorldSavePath.ROOT).getParent();
 
                 SimpleBackupTask serverStopBackup = SimpleBackupTask.builder(worldFolderName, worldSavePath, server)
+                                .serverStopped(true)
                                 .build();
                 serverEndBackupTask.set(serverStopBackup);
-                serverStopBackup.backup();
+                if (SimpleBackupUtil.INCREMENTAL_MODE.equals(ModConfig.get().serverStoppedBackupMode)) {
+                    serverStopBackup.backupDelta();
+                } else {
+                    serverStopBackup.backup();
+                }
 
                 Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                    if (serverStopBackup.isProcessing && serverStopBackup.lastBackupProcessed != null) {
+                    if (serverStopBackup.isProcessing && serverStopBackup.lastBackupProcessed != null && !serverStopBackup.isResumable()) {
                         SimpleBackupUtil.cleanupFailedBackup(serverStopBackup.lastBackupProcessed);
                     }
                 }));
@@ -136,10 +242,248 @@ public class SimpleBackup implements ModInitializer {
                         .executes(c -> this.triggerManualBackup(c, SimpleBackupUtil.DIRECTORY_FORMAT)))
                     .then(literal("lz4")
                         .executes(c -> this.triggerManualBackup(c, SimpleBackupUtil.LZ4_FORMAT)))
+                    .then(literal("restore-chunks")
+                        .then(argument("backup", StringArgumentType.string()).suggests(this::suggestBackups)
+                            .then(argument("from", ColumnPosArgumentType.columnPos())
+                                .then(argument("to", ColumnPosArgumentType.columnPos())
+                                    .executes(this::restoreChunks)))))
+                    .then(literal("restore-player")
+                        .then(argument("backup", StringArgumentType.string()).suggests(this::suggestBackups)
+                            .then(argument("player", GameProfileArgumentType.gameProfile())
+                                .executes(this::restorePlayer))))
+                    .then(literal("restore-player-at")
+                        .then(argument("time", StringArgumentType.string()).suggests(this::suggestPlayerDataTimes)
+                            .then(argument("player", GameProfileArgumentType.gameProfile())
+                                .executes(this::restorePlayerAt))))
+                    .then(literal("diff")
+                        .then(argument("a", StringArgumentType.string()).suggests(this::suggestBackups)
+                            .then(argument("b", StringArgumentType.string()).suggests(this::suggestBackups)
+                                .executes(this::diff))))
                     );
         });
     }
     
+    /**
+     * @return True if an automatic, manual or server stopped backup is running, or pending incremental backups are
+     *      being merged
+     */
+    static boolean isBackupInProgress() {
+        SimpleBackupTask task;
+        return PendingBackupJobs.isRunning() || manualBackupTask.get() != null
+                || ((task = simpleBackupTask.get()) != null && task.isProcessing)
+                || ((task = serverEndBackupTask.get()) != null && task.isProcessing);
+    }
+    
+    private CompletableFuture<Suggestions> suggestBackups(CommandContext<ServerCommandSource> c, SuggestionsBuilder builder) {
+        File[] backups = ModUtil.getBackupPath().toFile().listFiles(file -> SimpleBackupUtil.isBackupName(file.getName())
+                && !file.getName().endsWith(SimpleBackupUtil.DELTA_SUFFIX));
+        if (backups != null) {
+            for (File backup : backups) {
+                if (backup.getName().startsWith(builder.getRemainingLowerCase())) {
+                    builder.suggest(backup.getName());
+                }
+            }
+        }
+        return builder.buildFuture();
+    }
+    
+    private CompletableFuture<Suggestions> suggestPlayerDataTimes(CommandContext<ServerCommandSource> c, SuggestionsBuilder builder) {
+        PlayerDataBackupTask playerDataBackup;
+        if ((playerDataBackup = playerDataBackupTask.get()) != null) {
+            try {
+                for (PlayerDataLog.Snapshot snapshot : playerDataBackup.getPlayerDataLog().getSnapshots()) {
+                    String time = SimpleBackupUtil.formatBackupTime(snapshot.timeMillis());
+                    if (time.startsWith(builder.getRemainingLowerCase())) {
+                        builder.suggest(time);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Could not read player data backups", e);
+            }
+        }
+        return builder.buildFuture();
+    }
+    
+    private int restoreChunks(CommandContext<ServerCommandSource> c) {
+        ServerCommandSource commandSource = c.getSource();
+        ServerWorld world = commandSource.getWorld();
+        ColumnPos from = ColumnPosArgumentType.getColumnPos(c, "from");
+        ColumnPos to = ColumnPosArgumentType.getColumnPos(c, "to");
+        return restore(c, backup -> {
+            int restored = BackupRestorer.restoreChunks(commandSource.getServer(), world, backup, from.toChunkPos(), to.toChunkPos());
+            return " (" + restored + " chunks)";
+        });
+    }
+    
+    private int restorePlayer(CommandContext<ServerCommandSource> c) throws CommandSyntaxException {
+        Map<String, String> broadcastMessages = ModConfig.get().broadcastMessages;
+        Collection<GameProfile> profiles = GameProfileArgumentType.getProfileArgument(c, "player");
+        return restore(c, backup -> {
+            StringBuilder pending = new StringBuilder();
+            for (GameProfile profile : profiles) {
+                if (!BackupRestorer.restorePlayer(c.getSource().getServer(), backup, profile)) {
+                    pending.append(".  ").append(profile.getName())
+                            .append(broadcastMessages.getOrDefault("simplebackup.restore.player.pending", " is online.  Their data will be restored the next time they log in"));
+                }
+            }
+            return pending.toString();
+        });
+    }
+    
+    /**
+     * Restores players from player data backups as of a time.  Files of that second are included, as times are shown
+     * without milliseconds.
+     */
+    private int restorePlayerAt(CommandContext<ServerCommandSource> c) throws CommandSyntaxException {
+        Map<String, String> broadcastMessages = ModConfig.get().broadcastMessages;
+        ServerCommandSource commandSource = c.getSource();
+        if (!checkRestorePermission(commandSource)) {
+            return 1;
+        }
+        
+        PlayerDataBackupTask playerDataBackup = playerDataBackupTask.get();
+        if (playerDataBackup == null) {
+            commandSource.sendFeedback(() -> Text.literal(broadcastMessages.getOrDefault("simplebackup.restore.playerdata.disabled",
+                    "Player data backups are disabled by the server!"))
+                    .setStyle(Style.EMPTY.withColor(16433282)), false);
+            return 0;
+        }
+        String time = StringArgumentType.getString(c, "time");
+        OptionalLong atMillis = SimpleBackupUtil.getBackupTime(time);
+        if (atMillis.isEmpty()) {
+            commandSource.sendFeedback(() -> Text.literal(broadcastMessages.getOrDefault("simplebackup.restore.playerdata.invalidtime",
+                    "Invalid time, expected a time like 2022-05-04_05-04-13: ") + time)
+                    .setStyle(Style.EMPTY.withColor(16754871)), false);
+            return 0;
+        }
+        
+        Collection<GameProfile> profiles = GameProfileArgumentType.getProfileArgument(c, "player");
+        return runRestore(commandSource, time + " (player data)", () -> {
+            StringBuilder pending = new StringBuilder();
+            for (GameProfile profile : profiles) {
+                if (!BackupRestorer.restorePlayerAt(commandSource.getServer(), playerDataBackup.getPlayerDataLog(), atMillis.getAsLong() + 999, profile)) {
+                    pending.append(".  ").append(profile.getName())
+                            .append(broadcastMessages.getOrDefault("simplebackup.restore.player.pending", " is online.  Their data will be restored the next time they log in"));
+                }
+            }
+            return pending.toString();
+        });
+    }
+    
+    /**
+     * Checks permissions and runs a restore from the backup in the command's arguments, see {@link #runRestore}.
+     */
+    private int restore(CommandContext<ServerCommandSource> c, RestoreAction action) {
+        ServerCommandSource commandSource = c.getSource();
+        if (!checkRestorePermission(commandSource)) {
+            return 1;
+        }
+        
+        String backupName = StringArgumentType.getString(c, "backup");
+        Path backup = resolveBackupArgument(commandSource, backupName);
+        if (backup == null) {
+            return 0;
+        }
+        return runRestore(commandSource, backupName, () -> action.restore(backup));
+    }
+    
+    /**
+     * Runs a restore on its own thread, as it reads from the backup and waits on the server thread.
+     *
+     * @param backupName What is restored from, for messages
+     * @param restore Returns details to add to the success message
+     */
+    private int runRestore(ServerCommandSource commandSource, String backupName, Callable<String> restore) {
+        Map<String, String> broadcastMessages = ModConfig.get().broadcastMessages;
+        commandSource.sendFeedback(() -> Text.literal(broadcastMessages.getOrDefault("simplebackup.restore.started", "Restoring from backup ") + backupName)
+                .setStyle(Style.EMPTY.withColor(16433282)), true);
+        new Thread(() -> {
+            try {
+                String details = restore.call();
+                commandSource.getServer().execute(() -> commandSource.sendFeedback(() -> Text.literal(
+                        broadcastMessages.getOrDefault("simplebackup.restore.success", "Finished restoring from backup ") + backupName + details)
+                        .setStyle(Style.EMPTY.withColor(8060843)), true));
+            } catch (Exception e) {
+                log.error("Could not restore from backup " + backupName, e);
+                commandSource.getServer().execute(() -> commandSource.sendFeedback(() -> Text.literal(
+                        broadcastMessages.getOrDefault("simplebackup.restore.failed", "Failed to restore from backup.  Please check the server logs for errors!"))
+                        .setStyle(Style.EMPTY.withColor(16754871)), true));
+            }
+        }, "SimpleBackup-Restore").start();
+        return 1;
+    }
+    
+    /**
+     * Compares two backups on its own thread, and writes the full report to a file as it can be thousands of lines.
+     */
+    private int diff(CommandContext<ServerCommandSource> c) {
+        Map<String, String> broadcastMessages = ModConfig.get().broadcastMessages;
+        ServerCommandSource commandSource = c.getSource();
+        if (!checkRestorePermission(commandSource)) {
+            return 1;
+        }
+        
+        String fromName = StringArgumentType.getString(c, "a");
+        String toName = StringArgumentType.getString(c, "b");
+        Path from = resolveBackupArgument(commandSource, fromName);
+        Path to = resolveBackupArgument(commandSource, toName);
+        if (from == null || to == null) {
+            return 0;
+        }
+        
+        commandSource.sendFeedback(() -> Text.literal(broadcastMessages.getOrDefault("simplebackup.diff.started", "Comparing backups ") + fromName + " and " + toName)
+                .setStyle(Style.EMPTY.withColor(16433282)), false);
+        new Thread(() -> {
+            try {
+                BackupDiff.Report report = BackupDiff.diff(from, to, ModConfig.get().numThreads, ModUtil.getEncryption());
+                List<String> lines = report.toLines();
+                Path reportPath = ModUtil.getMetadataPath().resolve("diff_" + fromName + "_" + toName + ".txt");
+                Files.createDirectories(reportPath.getParent());
+                Files.write(reportPath, lines);
+                log.info("Compared backups {} and {}: {}.  Full report in {}", fromName, toName, lines.get(0), reportPath);
+                commandSource.getServer().execute(() -> commandSource.sendFeedback(() -> Text.literal(lines.get(0) + ".  "
+                        + broadcastMessages.getOrDefault("simplebackup.diff.success", "Full report in ") + reportPath)
+                        .setStyle(Style.EMPTY.withColor(8060843)), false));
+            } catch (Exception e) {
+                log.error("Could not compare backups " + from + " and " + to, e);
+                commandSource.getServer().execute(() -> commandSource.sendFeedback(() -> Text.literal(
+                        broadcastMessages.getOrDefault("simplebackup.diff.failed", "Failed to compare backups.  Please check the server logs for errors!"))
+                        .setStyle(Style.EMPTY.withColor(16754871)), false));
+            }
+        }, "SimpleBackup-Diff").start();
+        return 1;
+    }
+    
+    private boolean checkRestorePermission(ServerCommandSource commandSource) {
+        if (!commandSource.hasPermissionLevel(ModConfig.get().permissionLevelForRestores)) {
+            commandSource.sendFeedback(() -> Text.literal(ModConfig.get().broadcastMessages.getOrDefault("simplebackup.restore.notallowed",
+                    "You don't have permissions to restore from backups!"))
+                    .setStyle(Style.EMPTY.withColor(16433282)), false);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * @return Path of the backup, or null after telling the command source it doesn't exist
+     */
+    private Path resolveBackupArgument(ServerCommandSource commandSource, String backupName) {
+        Path backup = BackupRestorer.resolveBackup(backupName);
+        if (backup == null) {
+            commandSource.sendFeedback(() -> Text.literal(ModConfig.get().broadcastMessages.getOrDefault("simplebackup.restore.notfound", "Could not find backup ") + backupName)
+                    .setStyle(Style.EMPTY.withColor(16754871)), false);
+        }
+        return backup;
+    }
+    
+    @FunctionalInterface
+    private interface RestoreAction {
+        /**
+         * @return Details to add to the success message
+         */
+        String restore(Path backup) throws Exception;
+    }
+    
     private int triggerManualBackup(CommandContext<ServerCommandSource> c, String backupFormat) {
         Map<String, String> broadcastMessages = ModConfig.get().broadcastMessages;
         try {
@@ -6,21 +6,28 @@ import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.PlayerManager;
 import net.minecraft.text.Style;
 import net.minecraft.text.Text;
-import org.spoorn.simplebackup.compressors.LZ4Compressor;
-import org.spoorn.simplebackup.compressors.ZipCompressor;
 import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.io.BufferPool;
+import org.spoorn.simplebackup.io.RegionSnapshot;
+import org.spoorn.simplebackup.util.BackupSpacePlanner;
 import org.spoorn.simplebackup.util.ClientUtil;
+import org.spoorn.simplebackup.util.CompressionTuner;
+import org.spoorn.simplebackup.util.HostCoordinator;
+import org.spoorn.simplebackup.util.ModUtil;
 import org.spoorn.simplebackup.util.SimpleBackupUtil;
 
 import java.nio.file.Path;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
 
 @Log4j2
 public class SimpleBackupTask implements Runnable {
     
-    private static final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+    private static final DateTimeFormatter dtf = SimpleBackupUtil.BACKUP_TIME_FORMAT;
     private static Text BROADCAST1;
     private static Text SUCCESS_BROADCAST;
     private static Text FAILED_BROADCAST1;
@@ -34,15 +41,18 @@ public class SimpleBackupTask implements Runnable {
     private final MinecraftServer server;
     private final long backupIntervalInMillis;
     private final String backupFormat;
+    private final boolean serverStopped;
     
     private boolean terminated = false;
 
-    SimpleBackupTask(String worldFolderName, Path worldSavePath, MinecraftServer server, int backupIntervalInSeconds, String backupFormat) {
+    SimpleBackupTask(String worldFolderName, Path worldSavePath, MinecraftServer server, int backupIntervalInSeconds, String backupFormat,
+                     boolean serverStopped) {
         this.worldFolderName = worldFolderName;
         this.worldSavePath = worldSavePath;
         this.server = server;
         this.backupIntervalInMillis = backupIntervalInSeconds * 1000L;
         this.backupFormat = backupFormat;
+        this.serverStopped = serverStopped;
     }
     
     public static void init() {
@@ -95,35 +105,145 @@ public class SimpleBackupTask implements Runnable {
     
     public void backup() {
         this.isProcessing = true;
+        // So a shutdown while waiting below doesn't clean up the last backup as if it failed
+        this.lastBackupProcessed = null;
+        BackupEngine engine = ModUtil.getEngine();
+        // Wait for a turn on the host before looking at the world at all
+        try {
+            HostCoordinator.Slot slot = acquireHostSlot(engine);
+            try {
+                backup(engine);
+            } finally {
+                if (slot != null) {
+                    slot.close();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.info("Backup of world [{}] was cancelled while waiting for its turn on the host", this.worldFolderName);
+        }
+        this.isProcessing = false;
+    }
+    
+    private void backup(BackupEngine engine) {
         PlayerManager playerManager = this.server.getPlayerManager();
+        LocalDateTime startTime = LocalDateTime.now();
+        String timeStr = dtf.format(startTime);
+        boolean resuming = false;
+        if (engine.isResumable(this.backupFormat)) {
+            Optional<String> interrupted = engine.findResumableBackup(this.backupFormat);
+            if (interrupted.isPresent()) {
+                log.info("Found interrupted backup [{}].  Resuming it", interrupted.get());
+                timeStr = interrupted.get();
+                // Files copied before the interruption are as old as the original start
+                startTime = LocalDateTime.parse(timeStr, dtf);
+                resuming = true;
+            }
+        }
+        ModUtil.broadcastMessage(BROADCAST1, playerManager);
 
-        String timeStr = dtf.format(LocalDateTime.now());
-        SimpleBackupUtil.broadcastMessage(BROADCAST1, playerManager);
+        // Make sure the backup fits before writing anything, which may mean pruning first or using a smaller format
+        Optional<BackupSpacePlanner.Plan> plan = BackupSpacePlanner.plan(engine.getSettings(), this.worldSavePath, this.worldFolderName, engine.getBackupPath(),
+                this.backupFormat, ModConfig.get().maxBackupsToKeep, ModConfig.get().allowCheaperBackupFormat && !resuming);
+        String backupFormat = plan.map(BackupSpacePlanner.Plan::backupFormat).orElse(this.backupFormat);
 
         String broadcastBackupPath;
-        if (SimpleBackupUtil.ZIP_FORMAT.equals(this.backupFormat)) {
-            broadcastBackupPath = timeStr + ZipCompressor.ZIP_EXTENSION;
-            this.lastBackupProcessed = SimpleBackupUtil.getBackupPath().resolve(broadcastBackupPath);
-        } else if (SimpleBackupUtil.LZ4_FORMAT.equals(this.backupFormat)) {
-            broadcastBackupPath = timeStr + LZ4Compressor.TAR_LZ4_EXTENSION;
-            this.lastBackupProcessed = SimpleBackupUtil.getBackupPath().resolve(broadcastBackupPath);
+        if (SimpleBackupUtil.ZIP_FORMAT.equals(backupFormat) || SimpleBackupUtil.LZ4_FORMAT.equals(backupFormat)) {
+            broadcastBackupPath = engine.getBackupName(timeStr, backupFormat);
+            this.lastBackupProcessed = engine.getBackupPath().resolve(broadcastBackupPath);
         } else {
             broadcastBackupPath = timeStr + "/" + this.worldFolderName;
-            this.lastBackupProcessed = SimpleBackupUtil.getBackupPath().resolve(timeStr);
+            this.lastBackupProcessed = engine.getBackupPath().resolve(timeStr);
+        }
+        // Resumed backups carry on from disk, as the files already backed up can't be matched to a new snapshot
+        RegionSnapshot snapshot = ModConfig.get().enableChunkSnapshots && plan.isPresent() && !resuming
+                ? ChunkSnapshotter.capture(this.server, this.worldSavePath).orElse(null) : null;
+        boolean autotune = ModConfig.get().enableAutotuning && plan.isPresent();
+        if (autotune) {
+            CompressionTuner.tune(engine.getSettings(), this.worldSavePath, backupFormat, plan.get().sourceBytes());
         }
-        boolean copied = SimpleBackupUtil.backup(this.worldSavePath, this.worldFolderName, timeStr, this.backupFormat)
-                && SimpleBackupUtil.deleteStaleBackupFiles();
+        long backupStartMillis = System.currentTimeMillis();
+        boolean copied = plan.isPresent() && BackupSpacePlanner.pruneFirst(plan.get(), engine.getBackupPath())
+                && engine.backup(this.worldSavePath, this.worldFolderName, timeStr, backupFormat, snapshot)
+                && engine.deleteStaleBackupFiles();
         Text relFolderPath = Text.literal(broadcastBackupPath);
         if (copied) {
+            if (autotune) {
+                CompressionTuner.recordBackup(engine.getSettings(), this.worldSavePath, backupFormat, plan.get().sourceBytes(),
+                        System.currentTimeMillis() - backupStartMillis);
+            }
+            BackupSpacePlanner.recordBackup(engine.getSettings(), this.worldFolderName, backupFormat, plan.get().sourceBytes(), this.lastBackupProcessed);
+            engine.setLastBackupTime(this.worldFolderName, startTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), timeStr);
             log.info("Successfully backed up world [{}] to [{}]", this.worldFolderName, broadcastBackupPath);
-            SimpleBackupUtil.broadcastMessage(SUCCESS_BROADCAST.copyContentOnly().append(relFolderPath).setStyle(Style.EMPTY.withColor(8060843)), playerManager);
+            ModUtil.broadcastMessage(SUCCESS_BROADCAST.copyContentOnly().append(relFolderPath).setStyle(Style.EMPTY.withColor(8060843)), playerManager);
         } else {
             log.error("Server backup for world [{}] failed!  Check the logs for errors.", this.worldFolderName);
-            SimpleBackupUtil.broadcastMessage(FAILED_BROADCAST1.copyContentOnly().append(relFolderPath).append(FAILED_BROADCAST2).setStyle(Style.EMPTY.withColor(16754871)), playerManager);
+            ModUtil.broadcastMessage(FAILED_BROADCAST1.copyContentOnly().append(relFolderPath).append(FAILED_BROADCAST2).setStyle(Style.EMPTY.withColor(16754871)), playerManager);
+        }
+        BufferPool.get().logStats();
+    }
+    
+    /**
+     * Backs up only the files changed since the last successful backup into a delta folder, and leaves compressing
+     * and pruning to {@link PendingBackupJobs} on the next server start.  Used for fast backups when the server stops.
+     * Falls back to a full {@link #backup()} if there is no previous backup to compare against.
+     */
+    public void backupDelta() {
+        BackupEngine engine = ModUtil.getEngine();
+        OptionalLong lastBackupTime = engine.getLastBackupTime(this.worldFolderName);
+        Optional<String> lastBackupTimeStr = engine.getLastBackupTimeStr(this.worldFolderName);
+        if (lastBackupTime.isEmpty() || lastBackupTimeStr.isEmpty()) {
+            log.info("No previous backup found for world [{}].  Creating a full backup instead of an incremental one", this.worldFolderName);
+            backup();
+            return;
+        }
+        
+        this.isProcessing = true;
+        this.lastBackupProcessed = null;
+        try {
+            HostCoordinator.Slot slot = acquireHostSlot(engine);
+            try {
+                LocalDateTime startTime = LocalDateTime.now();
+                long startMillis = startTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                String timeStr = dtf.format(startTime);
+                String deltaName = timeStr + SimpleBackupUtil.DELTA_SUFFIX;
+                this.lastBackupProcessed = engine.getBackupPath().resolve(deltaName);
+                Optional<BackupSpacePlanner.Plan> plan = BackupSpacePlanner.planDelta(engine.getSettings(), this.worldSavePath, this.worldFolderName, engine.getBackupPath());
+                if (plan.isPresent() && engine.backupDelta(this.worldSavePath, this.worldFolderName, timeStr, lastBackupTime.getAsLong(), lastBackupTimeStr.get())) {
+                    BackupSpacePlanner.recordDelta(engine.getSettings(), this.worldFolderName, plan.get().sourceBytes(), this.lastBackupProcessed);
+                    engine.setLastBackupTime(this.worldFolderName, startMillis, timeStr);
+                    PendingBackupJobs.enqueue(deltaName, this.backupFormat);
+                    log.info("Successfully backed up changes in world [{}] to [{}] in {} ms.  Compressing and pruning will finish on the next server start",
+                            this.worldFolderName, deltaName, System.currentTimeMillis() - startMillis);
+                } else {
+                    log.error("Incremental server backup for world [{}] failed!  Check the logs for errors.", this.worldFolderName);
+                }
+            } finally {
+                if (slot != null) {
+                    slot.close();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.info("Incremental backup of world [{}] was cancelled while waiting for its turn on the host", this.worldFolderName);
         }
         this.isProcessing = false;
     }
     
+    /**
+     * Only automatic backups wait a random jitter, as someone is waiting on the others.  Server stopped backups only
+     * wait so long, so stopping isn't held up by the backups of other servers.
+     */
+    private HostCoordinator.Slot acquireHostSlot(BackupEngine engine) throws InterruptedException {
+        return engine.acquireHostSlot(this.worldFolderName, this.backupIntervalInMillis > 1000,
+                this.serverStopped ? ModConfig.get().hostBackupStopWaitInSeconds * 1000L : 0);
+    }
+    
+    /**
+     * @return True if an interrupted backup from this task is left in place to be resumed, rather than cleaned up
+     */
+    public boolean isResumable() {
+        return ModUtil.getEngine().isResumable(this.backupFormat);
+    }
+    
     // This doesn't account for spurious wakeups!
     private void waitToContinue(PlayerManager playerManager) {
         // Automatic periodic backups
@@ -134,8 +254,7 @@ public class SimpleBackupTask implements Runnable {
             // online, or the single player game is paused.  This does mean the next backup's changed content
             // might span a duration less than the backup intervals, but this is intended as I think it's better
             // than trying to make sure each backup has an exact "online running" difference from the previous.
-            if ((ModConfig.get().onlyBackupIfPlayersOnline && playerManager.getCurrentPlayerCount() == 0)
-                || (this.server.isSingleplayer() && ClientUtil.isPaused())) {
+            if ((ModConfig.get().onlyBackupIfPlayersOnline && hasNoPlayersOnline(this.server)) || isGamePaused(this.server)) {
                 // Wait until a player logs on
                 synchronized (this.lock) {
                     this.lock.wait();
@@ -154,6 +273,21 @@ public class SimpleBackupTask implements Runnable {
         }
     }
 
+    /**
+     * @return True if nobody is playing, using the same checks that pause automatic backups
+     */
+    public static boolean isServerIdle(MinecraftServer server) {
+        return hasNoPlayersOnline(server) || isGamePaused(server);
+    }
+
+    private static boolean hasNoPlayersOnline(MinecraftServer server) {
+        return server.getPlayerManager().getCurrentPlayerCount() == 0;
+    }
+
+    private static boolean isGamePaused(MinecraftServer server) {
+        return server.isSingleplayer() && ClientUtil.isPaused();
+    }
+
     /**
      * Manual builder because lombok is stupid: https://github.com/projectlombok/lombok/issues/2307.
      */
@@ -163,6 +297,7 @@ public class SimpleBackupTask implements Runnable {
         private MinecraftServer server;
         private int backupIntervalInSeconds = -1;
         private String backupFormat = ModConfig.get().backupFormat;
+        private boolean serverStopped = false;
 
         SimpleBackupTaskBuilder() {
         }
@@ -192,14 +327,19 @@ public class SimpleBackupTask implements Runnable {
             return this;
         }
 
+        public SimpleBackupTaskBuilder serverStopped(boolean serverStopped) {
+            this.serverStopped = serverStopped;
+            return this;
+        }
+
         public SimpleBackupTask build() {
-            return new SimpleBackupTask(worldFolderName, worldSavePath, server, backupIntervalInSeconds, backupFormat);
+            return new SimpleBackupTask(worldFolderName, worldSavePath, server, backupIntervalInSeconds, backupFormat, serverStopped);
         }
 
         public String toString() {
             return "SimpleBackupTask.SimpleBackupTaskBuilder(worldFolderName=" + this.worldFolderName + ", worldSavePath=" 
                     + this.worldSavePath + ", server=" + this.server + ", backupIntervalInSeconds=" + this.backupIntervalInSeconds 
-                    + ", backupFormat=" + this.backupFormat + ")";
+                    + ", backupFormat=" + this.backupFormat + ", serverStopped=" + this.serverStopped + ")";
         }
     }
 }
@@ -4,23 +4,39 @@ import draylar.omegaconfig.OmegaConfig;
 import draylar.omegaconfig.api.Comment;
 import draylar.omegaconfig.api.Config;
 import org.spoorn.simplebackup.SimpleBackup;
+import org.spoorn.simplebackup.io.BackupEncryption;
 import org.spoorn.simplebackup.util.SimpleBackupUtil;
+import org.spoorn.simplebackup.util.StorageUtil;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class ModConfig implements Config {
 
     private static ModConfig CONFIG;
-    private static final Map<String, String> DEFAULT_BROADCAST_MESSAGES = Map.of(
-            "simplebackup.backup.broadcast", "Starting server backup...",
-            "simplebackup.backup.success.broadcast", "Server was successfully backed up to ",
-            "simplebackup.backup.failed.broadcast1", "Server failed to backup to ",
-            "simplebackup.backup.failed.broadcast2", ".  Please check the server logs for errors!",
-            "simplebackup.manualbackup.alreadyexists", "There is already an ongoing manual backup.  Please wait for it to finish before starting another!",
-            "simplebackup.manualbackup.started", " triggered a manual backup",
-            "simplebackup.manualbackup.disabled", "Manual backups are disabled by the server!",
-            "simplebackup.manualbackup.notallowed", "You don't have permissions to trigger a manual backup!  Sorry :("
+    private static final Map<String, String> DEFAULT_BROADCAST_MESSAGES = Map.ofEntries(
+            Map.entry("simplebackup.backup.broadcast", "Starting server backup..."),
+            Map.entry("simplebackup.backup.success.broadcast", "Server was successfully backed up to "),
+            Map.entry("simplebackup.backup.failed.broadcast1", "Server failed to backup to "),
+            Map.entry("simplebackup.backup.failed.broadcast2", ".  Please check the server logs for errors!"),
+            Map.entry("simplebackup.manualbackup.alreadyexists", "There is already an ongoing manual backup.  Please wait for it to finish before starting another!"),
+            Map.entry("simplebackup.manualbackup.started", " triggered a manual backup"),
+            Map.entry("simplebackup.manualbackup.disabled", "Manual backups are disabled by the server!"),
+            Map.entry("simplebackup.manualbackup.notallowed", "You don't have permissions to trigger a manual backup!  Sorry :("),
+            Map.entry("simplebackup.restore.notallowed", "You don't have permissions to restore from backups!"),
+            Map.entry("simplebackup.restore.notfound", "Could not find backup "),
+            Map.entry("simplebackup.restore.started", "Restoring from backup "),
+            Map.entry("simplebackup.restore.success", "Finished restoring from backup "),
+            Map.entry("simplebackup.restore.player.pending", " is online.  Their data will be restored the next time they log in"),
+            Map.entry("simplebackup.restore.failed", "Failed to restore from backup.  Please check the server logs for errors!"),
+            Map.entry("simplebackup.restore.playerdata.disabled", "Player data backups are disabled by the server!"),
+            Map.entry("simplebackup.restore.playerdata.invalidtime", "Invalid time, expected a time like 2022-05-04_05-04-13: "),
+            Map.entry("simplebackup.diff.started", "Comparing backups "),
+            Map.entry("simplebackup.diff.success", "Full report in "),
+            Map.entry("simplebackup.diff.failed", "Failed to compare backups.  Please check the server logs for errors!"),
+            Map.entry("simplebackup.progress.bossbar", "Backing up ")
     );
 
     @Comment("True to enable automatic backups in intervals.  False to disable. [default = true]\n" +
@@ -40,6 +56,30 @@ public class ModConfig implements Config {
             "\tsuch as CTRL+C!  Double check the backup file is the size you expect")
     public boolean enableServerStoppedBackup = true;
     
+    @Comment("Backup mode when the server is stopped.  [default = \"FULL\"]\n" +
+            "Supported modes: \"FULL\", \"INCREMENTAL\"\n" +
+            "\tFULL: creates a regular backup using backupFormat\n" +
+            "\tINCREMENTAL: only copies files changed since the last backup into a <time>-delta folder, which is much faster.\n" +
+            "\t\tMerging the delta with the backup it was taken against into a full backup in backupFormat, and pruning old backups, finishes\n" +
+            "\t\tin the background on the next server start.  Until then the delta can't be restored from.\n" +
+            "\t\tFalls back to FULL if there is no previous backup of the world.")
+    public String serverStoppedBackupMode = "FULL";
+    
+    @Comment("True to also back up just player data, advancements, stats and level.dat every playerDataBackupIntervalInSeconds.  [default = false]\n" +
+            "These are small and the most often rolled back, so they can be backed up every few minutes on their own thread, without ever waiting\n" +
+            "on or holding up full backups.  Only files that changed are stored, in an append-only log per world in the .simplebackup folder in backupPath.\n" +
+            "Restore a player with /simplebackup restore-player-at <time> <player>, see permissionLevelForRestores.")
+    public boolean enablePlayerDataBackups = false;
+    
+    @Comment("Seconds between player data backups.  [default = 300]")
+    public int playerDataBackupIntervalInSeconds = 300;
+    
+    @Comment("True to also back up player data a couple seconds after a player logs out, once the game has saved it.  [default = true]")
+    public boolean playerDataBackupOnLogout = true;
+    
+    @Comment("Hours to keep player data backups for.  Older ones are merged into a single backup of every file as of then.  [default = 72]")
+    public int playerDataBackupRetentionInHours = 72;
+    
     @Comment("Backup format.  Supports simply backing up as a direct copy of the folder, or ZIP [default = \"ZIP\"]\n" +
             "Supported formats: \"DIRECTORY\", \"ZIP\", \"LZ4\"\n" +
             "\tDIRECTORY: copies the world folder as-is\n" +
@@ -49,19 +89,86 @@ public class ModConfig implements Config {
             "See https://github.com/spoorn/SimpleBackup/blob/main/README.md for more information on the backup formats")
     public String backupFormat = "ZIP";
     
-    @Comment("Number of threads to execute backup.  Allows for parallel compression.  Only applies for LZ4 format currently!  [default = 1]\n" +
+    @Comment("Number of threads to execute backup.  Allows for parallel compression and copying.  Only applies for LZ4 and DIRECTORY formats currently!  [default = 1]\n" +
             "Recommend only increasing this value if your world is very large and backups take a while.\n" +
             "Recommend setting numThreads for multi-threaded processing to the number of cores in your CPU, or a multiple of that number.\n" +
-            "This is capped to number of processors * 4 for your safety!")
+            "This is capped to number of processors * 4 for your safety!\n" +
+            "If the world or backup folder is on a spinning disk (see sourceStorageType and backupStorageType), that side is limited to a single thread.")
     public int numThreads = 1;
     
+    @Comment("Storage type of the disk the world folder is on.  [default = \"AUTO\"]\n" +
+            "Supported types: \"AUTO\", \"HDD\", \"SSD\"\n" +
+            "\tAUTO: detects spinning disks on Linux through /sys/block/*/queue/rotational, otherwise assumes SSD\n" +
+            "\tHDD: reads files one at a time in physical (inode) order\n" +
+            "\tSSD: reads files in parallel using numThreads")
+    public String sourceStorageType = "AUTO";
+    
+    @Comment("Storage type of the disk the backup folder is on.  [default = \"AUTO\"]\n" +
+            "Supported types: \"AUTO\", \"HDD\", \"SSD\"\n" +
+            "\tAUTO: detects spinning disks on Linux through /sys/block/*/queue/rotational, otherwise assumes SSD\n" +
+            "\tHDD: writes backups using a single sequential writer\n" +
+            "\tSSD: writes files in parallel using numThreads")
+    public String backupStorageType = "AUTO";
+    
     @Comment("Buffer size in bytes for multi-threading (when numThreads > 1) used for compressing and merging files [default = 8192]")
     public int multiThreadBufferSize = 8192;
     
+    @Comment("Deflate level of ZIP backups, from 1 (fastest) to 9 (smallest).  [default = 5]")
+    public int zipCompressionLevel = 5;
+    
+    @Comment("Compression level of LZ4 backups.  [default = 0]\n" +
+            "\t0: LZ4's fast compressor, multi-threaded with numThreads\n" +
+            "\t1 to 17: LZ4's high compressor at that level, which makes smaller backups but is much slower and single-threaded")
+    public int lz4CompressionLevel = 0;
+    
+    @Comment("True to pick numThreads, multiThreadBufferSize, zipCompressionLevel and lz4CompressionLevel automatically before each backup.  [default = false]\n" +
+            "Compression speed and size of each level is measured on a sample of the world shortly after the server starts, and again once a day\n" +
+            "while the server is idle.  Each backup then uses the smallest level predicted to finish within autotuneBackupTimeBudgetInSeconds, with\n" +
+            "as many threads as the CPU can spare up to autotuneMaxCpuPercent.  Predictions are corrected with how long each backup actually took.")
+    public boolean enableAutotuning = false;
+    
+    @Comment("How long a backup should take at most when autotuning, in seconds.  If no level fits, the fastest one is used.  [default = 300]")
+    public int autotuneBackupTimeBudgetInSeconds = 300;
+    
+    @Comment("Most of the CPU, as a percent of all cores, a backup may use when autotuning.  Fewer threads are used if the CPU is busy.  [default = 50]")
+    public int autotuneMaxCpuPercent = 50;
+    
+    @Comment("Maximum size in bytes of idle off-heap buffers kept around for reuse between files and backups [default = 33554432]\n" +
+            "Backups borrow read/write buffers from this pool instead of allocating new ones per file, which reduces GC pauses\n" +
+            "on worlds with many small files.  Buffers are sized per file, up to 1 MB for region files.  Set to 0 to disable pooling and use heap buffers.")
+    public long bufferPoolMaxSizeInBytes = 32 * 1024 * 1024;
+    
+    @Comment("True to make ZIP and DIRECTORY backups resumable if the server is killed in the middle of a backup.  [default = false]\n" +
+            "The backup is written to a .partial file or folder with periodic checkpoints of which files are done.  The next backup\n" +
+            "continues from the last checkpoint instead of starting over, and the backup is renamed once it completes.\n" +
+            "Note: files archived before the interruption reflect the world at that time, so a resumed backup can mix world states.\n" +
+            "LZ4 backups are not resumable.")
+    public boolean enableResumableBackups = false;
+    
+    @Comment("How often in seconds to checkpoint progress for resumable backups.  [default = 60]")
+    public int checkpointIntervalInSeconds = 60;
+    
+    @Comment("True to back up loaded chunks with unsaved changes straight from server memory.  [default = false]\n" +
+            "The chunks are captured all at once between two ticks and merged into the region files as they are read, so busy areas\n" +
+            "such as spawn are backed up as they are right now, without waiting for the game to save them.\n" +
+            "Entities and points of interest are still backed up as the game last saved them.  Does not apply to INCREMENTAL or\n" +
+            "resumed backups, and backups in this mode are not resumable.")
+    public boolean enableChunkSnapshots = false;
+    
+    @Comment("Most time in milliseconds to spend on the server thread capturing chunks when enableChunkSnapshots is true.  [default = 20]\n" +
+            "Chunks left once this runs out are backed up from disk as the game last saved them, so the tick is never held up\n" +
+            "for much longer than this however many chunks have unsaved changes.")
+    public int chunkSnapshotMaxMillisPerTick = 20;
+    
     @Comment("Percentage of disk space available required before creating a backup.  [default = 20]\n" +
-            "This will prevent generating backups if your disk space is getting close to maxing out.")
+            "This will prevent generating backups if your disk space is getting close to maxing out.\n" +
+            "Backups over maxBackupsToKeep count as available, as they are deleted before the backup starts if needed to make space.\n" +
+            "The size of each backup is also predicted from past backups, and a backup that is not expected to fit is not started.")
     public int percentageAvailableDiskSpaceRequirement = 20;
     
+    @Comment("If a backup is predicted to not fit on disk in backupFormat, use a format that has compressed smaller in past backups instead.  [default = false]")
+    public boolean allowCheaperBackupFormat = false;
+    
     @Comment("Backup folder.  If this is set to a relative path, it will be relative to the game directory [default = \"backup\"]\n" +
             "This can be an absolute path as well if you want to store backups in a different location.\n" +
             "Note: If you are using backslashes '\\' instead of forward slash, you will need to escape it with double backslash '\\\\'.\n" +
@@ -74,12 +181,89 @@ public class ModConfig implements Config {
             "If we generate a backup, but have more backups than this number, the oldest backup will be deleted.")
     public int maxBackupsToKeep = 10;
     
+    @Comment("True to recompress older backups in backupPath into much smaller .tar.xz files in the background.  [default = false]\n" +
+            "This only runs while no players are online (or the single player game is paused), and never during a backup.\n" +
+            "The new archive is verified against the original before the original is deleted.")
+    public boolean enableBackgroundRecompression = false;
+    
+    @Comment("Backups older than this many hours are recompressed when enableBackgroundRecompression is true.  [default = 72]")
+    public int recompressBackupsOlderThanHours = 72;
+    
+    @Comment("XZ preset for background recompression, from 0 (fastest) to 9 (smallest).  [default = 6]\n" +
+            "Higher presets use a lot more memory, up to ~700 MB at 9.")
+    public int recompressionXzPreset = 6;
+    
+    @Comment("Extra places to write every automatic and manual backup to, in addition to backupPath.  [default = []]\n" +
+            "The world is only read once and each destination is written concurrently, so a slow disk doesn't slow down the others.\n" +
+            "Each destination has its own folder, format and number of backups to keep.  If one destination fails, the others still finish.\n" +
+            "\"type\" is LOCAL for a folder on this machine, or S3 to stream backups straight into an S3 compatible bucket (AWS S3, MinIO, B2...)\n" +
+            "without writing them to disk first.  For S3, \"path\" is the folder inside the bucket, and uploads are split into parts of\n" +
+            "\"partSizeInMB\" (at least 5) with up to \"maxConcurrentUploads\" parts uploading at once.  Backups are limited to 10000 parts.\n" +
+            "Example:\n" +
+            "\t\"additionalBackupDestinations\": [\n" +
+            "\t\t{ \"path\": \"/mnt/nas/backup\", \"format\": \"LZ4\", \"maxBackupsToKeep\": 30 },\n" +
+            "\t\t{ \"type\": \"S3\", \"endpoint\": \"https://s3.us-east-1.amazonaws.com\", \"region\": \"us-east-1\", \"bucket\": \"my-bucket\",\n" +
+            "\t\t  \"accessKey\": \"...\", \"secretKey\": \"...\", \"path\": \"backups/survival\", \"format\": \"ZIP\", \"maxBackupsToKeep\": 30 }\n" +
+            "\t],")
+    public List<BackupDestination> additionalBackupDestinations = new ArrayList<>();
+    
+    @Comment("True to encrypt ZIP and LZ4 backups, including those sent to additionalBackupDestinations.  [default = false]\n" +
+            "Archives are encrypted in blocks as they are compressed, on numThreads threads, so backups take about as long as without encryption.\n" +
+            "Encrypted backups end in .enc, and can't be resumed.  DIRECTORY backups are never encrypted.")
+    public boolean enableEncryption = false;
+    
+    @Comment("Key file that encryption keys are derived from.  Relative paths are relative to the game directory.  [default = \"config/simplebackup.key\"]\n" +
+            "If it doesn't exist, it's created with a random key when encryption is enabled.\n" +
+            "Keep a copy of it somewhere other than the backups!  Encrypted backups can't be restored without it.")
+    public String encryptionKeyFile = "config/simplebackup.key";
+    
+    @Comment("Encryption algorithm, AES_GCM or CHACHA20_POLY1305.  [default = \"AES_GCM\"]\n" +
+            "AES_GCM is fastest on CPUs with AES instructions, which is almost all of them.  CHACHA20_POLY1305 is faster on those without.\n" +
+            "Backups can be read whichever algorithm is set, so changing it only affects new backups.")
+    public String encryptionAlgorithm = "AES_GCM";
+    
+    @Comment("Folder shared by every server on this host to coordinate their backups through.  Relative paths are relative to the game directory.\n" +
+            "Empty to not coordinate.  [default = \"\"]\n" +
+            "With many servers on one host, their backups tend to start at the same moment and saturate the backup disk together.  With this set,\n" +
+            "at most maxConcurrentBackupsOnHost backups run at once across the host and the rest queue up oldest first, each automatic backup starts\n" +
+            "after a random delay of up to hostBackupStartJitterInSeconds, and all backups share hostBackupBandwidthInMBPerSecond.  Coordination is done\n" +
+            "with file locks, which the OS drops if a server dies, so a crashed server never holds up the others.  Use the same folder and\n" +
+            "values on every server.")
+    public String hostCoordinationFolder = "";
+    
+    @Comment("Backups that may run at the same time across every server on this host, with hostCoordinationFolder.  [default = 2]")
+    public int maxConcurrentBackupsOnHost = 2;
+    
+    @Comment("MB per second that backups may read the world at, shared by every server on this host, with hostCoordinationFolder.  0 for no limit.  [default = 0]\n" +
+            "With a limit, ZIP and LZ4 backups are read through the same pipeline as additionalBackupDestinations, and are not resumable.")
+    public int hostBackupBandwidthInMBPerSecond = 0;
+    
+    @Comment("Most seconds to randomly delay each automatic backup by, with hostCoordinationFolder, so servers started together spread out.\n" +
+            "Manual and server stopped backups start right away.  [default = 30]")
+    public int hostBackupStartJitterInSeconds = 30;
+    
+    @Comment("Most seconds a server stopped backup waits for its turn on the host, with hostCoordinationFolder, before backing up anyway so\n" +
+            "the server isn't kept from stopping.  [default = 60]")
+    public int hostBackupStopWaitInSeconds = 60;
+    
     @Comment("True to enable manual backups, false to disable  [default = true]")
     public boolean enableManualBackups = true;
     
     @Comment("Permission level to allow manual backups.  [4 = Ops] [0 = everyone] [default = 4]")
     public int permissionLevelForManualBackups = 4;
     
+    @Comment("Permission level to allow restoring chunks and players from a backup while the server is running, and comparing backups.  [4 = Ops] [default = 4]\n" +
+            "\t/simplebackup restore-chunks <backup> <from> <to>: sets the blocks and block entities of every chunk between the two\n" +
+            "\t\tpositions in your current dimension back to how they are in the backup.  Entities and biomes are not restored.\n" +
+            "\t/simplebackup restore-player <backup> <player>: restores a player's inventory, position, etc.  If they are online,\n" +
+            "\t\tthis happens the next time they log in.\n" +
+            "\t/simplebackup restore-player-at <time> <player>: same as restore-player, from player data backups as of a time like\n" +
+            "\t\t2022-05-04_05-04-13.  Needs enablePlayerDataBackups.\n" +
+            "\t/simplebackup diff <a> <b>: lists the files and chunks that changed between two backups, without extracting them.\n" +
+            "\t\tThe full report is written to the .simplebackup folder in backupPath.\n" +
+            "<backup> is the name of a backup in backupPath, i.e. 2022-05-04_05-04-13.zip.  The backup must be from the same Minecraft version.")
+    public int permissionLevelForRestores = 4;
+    
     @Comment("True to broadcast across the server when backups are triggered and finished.  False to disable. [default = true]")
     public boolean broadcastBackupMessage = true;
     
@@ -87,6 +271,13 @@ public class ModConfig implements Config {
             "Set this to a value <= 0 or > 100 to not print anything.")
     public int intervalPercentageToLogBackupProgress = 10;
     
+    @Comment("True to show the progress of backups in a boss bar, with throughput and time left, to players with at least\n" +
+            "permissionLevelForProgressBossBar.  [default = false]")
+    public boolean enableProgressBossBar = false;
+    
+    @Comment("Permission level to see the backup progress boss bar.  [4 = Ops] [0 = everyone] [default = 4]")
+    public int permissionLevelForProgressBossBar = 4;
+    
     @Comment("Broadcast messages when server is backing up and success/failed.  These are in the config file to allow\n" +
             "servers to use whatever language they want without updating the mod source directly.  Default language is english")
     public Map<String, String> broadcastMessages = new HashMap<>(DEFAULT_BROADCAST_MESSAGES);
@@ -97,6 +288,49 @@ public class ModConfig implements Config {
             && !SimpleBackupUtil.LZ4_FORMAT.equals(CONFIG.backupFormat)) {
             throw new IllegalArgumentException("SimpleBackup config 'backupFormat' is invalid!");
         }
+        if (!SimpleBackupUtil.FULL_MODE.equals(CONFIG.serverStoppedBackupMode) && !SimpleBackupUtil.INCREMENTAL_MODE.equals(CONFIG.serverStoppedBackupMode)) {
+            throw new IllegalArgumentException("SimpleBackup config 'serverStoppedBackupMode' is invalid!");
+        }
+        CONFIG.sourceStorageType = CONFIG.sourceStorageType == null ? "" : CONFIG.sourceStorageType.trim().toUpperCase();
+        CONFIG.backupStorageType = CONFIG.backupStorageType == null ? "" : CONFIG.backupStorageType.trim().toUpperCase();
+        if (!StorageUtil.isValidStorageType(CONFIG.sourceStorageType)) {
+            throw new IllegalArgumentException("SimpleBackup config 'sourceStorageType' is invalid!");
+        }
+        if (!StorageUtil.isValidStorageType(CONFIG.backupStorageType)) {
+            throw new IllegalArgumentException("SimpleBackup config 'backupStorageType' is invalid!");
+        }
+        for (BackupDestination destination : CONFIG.additionalBackupDestinations) {
+            if (!SimpleBackupUtil.ZIP_FORMAT.equals(destination.format) && !SimpleBackupUtil.DIRECTORY_FORMAT.equals(destination.format)
+                    && !SimpleBackupUtil.LZ4_FORMAT.equals(destination.format)) {
+                throw new IllegalArgumentException("SimpleBackup config 'additionalBackupDestinations' has an invalid format!");
+            }
+            if (SimpleBackupUtil.S3_STORAGE.equals(destination.type)) {
+                if (destination.endpoint == null || destination.endpoint.isBlank() || destination.bucket == null || destination.bucket.isBlank()
+                        || destination.partSizeInMB < 5 || destination.partSizeInMB > 5 * 1024) {
+                    throw new IllegalArgumentException("SimpleBackup config 'additionalBackupDestinations' has an invalid S3 endpoint, bucket or partSizeInMB!");
+                }
+            } else if (!SimpleBackupUtil.LOCAL_STORAGE.equals(destination.type) || destination.path == null || destination.path.isBlank()) {
+                throw new IllegalArgumentException("SimpleBackup config 'additionalBackupDestinations' has an invalid type or path!");
+            }
+        }
+        if (!BackupEncryption.isSupportedAlgorithm(CONFIG.encryptionAlgorithm)) {
+            throw new IllegalArgumentException("SimpleBackup config 'encryptionAlgorithm' is invalid!");
+        }
+        if (CONFIG.enableEncryption && (CONFIG.encryptionKeyFile == null || CONFIG.encryptionKeyFile.isBlank())) {
+            throw new IllegalArgumentException("SimpleBackup config 'encryptionKeyFile' is missing!");
+        }
+        CONFIG.chunkSnapshotMaxMillisPerTick = Math.max(1, CONFIG.chunkSnapshotMaxMillisPerTick);
+        CONFIG.recompressionXzPreset = Math.max(0, Math.min(9, CONFIG.recompressionXzPreset));
+        CONFIG.zipCompressionLevel = Math.max(1, Math.min(9, CONFIG.zipCompressionLevel));
+        CONFIG.lz4CompressionLevel = Math.max(0, Math.min(17, CONFIG.lz4CompressionLevel));
+        CONFIG.autotuneMaxCpuPercent = Math.max(1, Math.min(100, CONFIG.autotuneMaxCpuPercent));
+        CONFIG.autotuneBackupTimeBudgetInSeconds = Math.max(1, CONFIG.autotuneBackupTimeBudgetInSeconds);
+        CONFIG.maxConcurrentBackupsOnHost = Math.max(1, CONFIG.maxConcurrentBackupsOnHost);
+        CONFIG.hostBackupBandwidthInMBPerSecond = Math.max(0, CONFIG.hostBackupBandwidthInMBPerSecond);
+        CONFIG.hostBackupStartJitterInSeconds = Math.max(0, CONFIG.hostBackupStartJitterInSeconds);
+        CONFIG.hostBackupStopWaitInSeconds = Math.max(1, CONFIG.hostBackupStopWaitInSeconds);
+        CONFIG.playerDataBackupIntervalInSeconds = Math.max(10, CONFIG.playerDataBackupIntervalInSeconds);
+        CONFIG.playerDataBackupRetentionInHours = Math.max(1, CONFIG.playerDataBackupRetentionInHours);
         CONFIG.numThreads = Math.min(Runtime.getRuntime().availableProcessors() * 4, CONFIG.numThreads);
     }
 
@@ -104,6 +338,21 @@ public class ModConfig implements Config {
         return CONFIG;
     }
 
+    public static class BackupDestination {
+        public String type = "LOCAL";
+        public String path = "";
+        public String format = "ZIP";
+        public int maxBackupsToKeep = 10;
+        // S3 only
+        public String endpoint = "";
+        public String region = "us-east-1";
+        public String bucket = "";
+        public String accessKey = "";
+        public String secretKey = "";
+        public int partSizeInMB = 16;
+        public int maxConcurrentUploads = 4;
+    }
+
     @Override
     public void save() {
         for (Map.Entry<String, String> entry : DEFAULT_BROADCAST_MESSAGES.entrySet()) {
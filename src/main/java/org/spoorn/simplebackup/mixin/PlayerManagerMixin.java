@@ -0,0 +1,27 @@
+package org.spoorn.simplebackup.mixin;
+
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.PlayerManager;
+import net.minecraft.server.network.ServerPlayerEntity;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
+import org.spoorn.simplebackup.BackupRestorer;
+
+@Mixin(PlayerManager.class)
+public class PlayerManagerMixin {
+
+    @Shadow @Final private MinecraftServer server;
+
+    /**
+     * Swap in player data restored from a backup while the player was online, before the game reads it.
+     */
+    @Inject(method = "loadPlayerData", at = @At(value = "HEAD"))
+    private void applyPendingPlayerRestore(ServerPlayerEntity player, CallbackInfoReturnable<NbtCompound> cir) {
+        BackupRestorer.applyPendingPlayerRestore(this.server, player.getUuid());
+    }
+}
@@ -0,0 +1,13 @@
+package org.spoorn.simplebackup.mixin;
+
+import net.minecraft.server.world.ChunkHolder;
+import net.minecraft.server.world.ThreadedAnvilChunkStorage;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Invoker;
+
+@Mixin(ThreadedAnvilChunkStorage.class)
+public interface ThreadedAnvilChunkStorageInvoker {
+
+    @Invoker("entryIterator")
+    Iterable<ChunkHolder> invokeEntryIterator();
+}
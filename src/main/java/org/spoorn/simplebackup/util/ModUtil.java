@@ -0,0 +1,121 @@
+package org.spoorn.simplebackup.util;
+
+import net.fabricmc.loader.api.FabricLoader;
+import net.minecraft.server.PlayerManager;
+import net.minecraft.text.Text;
+import org.spoorn.simplebackup.BackupEngine;
+import org.spoorn.simplebackup.compressors.MultiDestinationCompressor;
+import org.spoorn.simplebackup.config.BackupSettings;
+import org.spoorn.simplebackup.config.ModConfig;
+import org.spoorn.simplebackup.io.BackupEncryption;
+import org.spoorn.simplebackup.storage.LocalStorageBackend;
+import org.spoorn.simplebackup.storage.S3StorageBackend;
+import org.spoorn.simplebackup.storage.StorageBackend;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Helpers that need the game or {@link ModConfig}.  Everything else lives in the core module's {@link SimpleBackupUtil}.
+ */
+public class ModUtil {
+
+    // Also loaded while encryption is off if the key file exists, so older encrypted backups can still be restored
+    private static BackupEncryption encryption;
+
+    public static Path getBackupPath() {
+        return resolveGamePath(ModConfig.get().backupPath);
+    }
+
+    /**
+     * Resolves a configured path.  Relative paths are relative to the game directory.
+     */
+    public static Path resolveGamePath(String path) {
+        Path p = Paths.get(path);
+        if (p.isAbsolute()) {
+            return p;
+        } else {
+            Path root = FabricLoader.getInstance().getGameDir();
+            return root.resolve(path);
+        }
+    }
+
+    /**
+     * Loads the encryption key file, creating it if encryption is on and it doesn't exist yet.  If encryption is on
+     * and the key can't be loaded, this fails rather than letting backups silently go out unencrypted.
+     */
+    public static void initEncryption() {
+        ModConfig config = ModConfig.get();
+        Path keyFile = resolveGamePath(config.encryptionKeyFile);
+        if (!config.enableEncryption && !Files.exists(keyFile)) {
+            return;
+        }
+        try {
+            encryption = BackupEncryption.load(keyFile, config.encryptionAlgorithm);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not load SimpleBackup encryption key file " + keyFile, e);
+        }
+    }
+
+    /**
+     * @return Key to read encrypted backups with, or null if there is none
+     */
+    public static BackupEncryption getEncryption() {
+        return encryption;
+    }
+
+    public static Path getMetadataPath() {
+        return SimpleBackupUtil.getMetadataPath(getBackupPath());
+    }
+
+    public static void broadcastMessage(Text message, PlayerManager playerManager) {
+        if (ModConfig.get().broadcastBackupMessage) {
+            playerManager.broadcast(message, false);
+        }
+    }
+
+    /**
+     * @return Backup engine set up from the current config
+     */
+    public static BackupEngine getEngine() {
+        return new BackupEngine(getBackupSettings());
+    }
+
+    public static BackupSettings getBackupSettings() {
+        ModConfig config = ModConfig.get();
+        BackupSettings settings = new BackupSettings(getBackupPath());
+        settings.numThreads = config.numThreads;
+        settings.sourceStorageType = config.sourceStorageType;
+        settings.backupStorageType = config.backupStorageType;
+        settings.multiThreadBufferSize = config.multiThreadBufferSize;
+        settings.zipCompressionLevel = config.zipCompressionLevel;
+        settings.lz4CompressionLevel = config.lz4CompressionLevel;
+        settings.autotuneTimeBudgetInSeconds = config.autotuneBackupTimeBudgetInSeconds;
+        settings.autotuneMaxCpuPercent = config.autotuneMaxCpuPercent;
+        settings.enableResumableBackups = config.enableResumableBackups;
+        settings.checkpointIntervalInSeconds = config.checkpointIntervalInSeconds;
+        settings.percentageAvailableDiskSpaceRequirement = config.percentageAvailableDiskSpaceRequirement;
+        settings.maxBackupsToKeep = config.maxBackupsToKeep;
+        settings.intervalPercentageToLogBackupProgress = config.intervalPercentageToLogBackupProgress;
+        settings.encryption = config.enableEncryption ? encryption : null;
+        if (config.hostCoordinationFolder != null && !config.hostCoordinationFolder.isBlank()) {
+            settings.hostCoordinator = new HostCoordinator(resolveGamePath(config.hostCoordinationFolder), config.maxConcurrentBackupsOnHost,
+                    config.hostBackupBandwidthInMBPerSecond * 1024L * 1024L, config.hostBackupStartJitterInSeconds);
+        }
+        for (ModConfig.BackupDestination destination : config.additionalBackupDestinations) {
+            StorageBackend backend = createStorageBackend(destination);
+            settings.additionalDestinations.add(new MultiDestinationCompressor.Destination(backend.getName(), destination.format, backend, destination.maxBackupsToKeep, false));
+        }
+        return settings;
+    }
+
+    private static StorageBackend createStorageBackend(ModConfig.BackupDestination destination) {
+        if (SimpleBackupUtil.S3_STORAGE.equals(destination.type)) {
+            return new S3StorageBackend(destination.endpoint, destination.region, destination.bucket, destination.path,
+                    destination.accessKey, destination.secretKey, destination.partSizeInMB * 1024 * 1024, destination.maxConcurrentUploads);
+        }
+        return new LocalStorageBackend(resolveGamePath(destination.path));
+    }
+}